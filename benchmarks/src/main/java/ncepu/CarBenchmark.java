@@ -0,0 +1,172 @@
+package ncepu;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.embedded.RedisServer;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 小车热路径基准测试（嵌入式Redis）
+ * 功能：测量CheckTask、tryMove+updatePosition、单步advance和经过邮箱/线程池的完整moveStep，
+ * 按路径长度、地图尺寸变化；线程数用 -t 指定，分配速率用 -prof gc 查看
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CarBenchmark {
+    private static final int PORT = Integer.getInteger("bench.redis.port", 6399);
+
+    // 每个fork一个嵌入式Redis和连接池
+    @State(Scope.Benchmark)
+    public static class Fleet {
+        @Param({"10", "100"})
+        public int routeLength;
+
+        @Param({"100", "1000"})
+        public int mapSize;
+
+        static volatile JedisPool pool;//setJedisProvider只生效一次，通过静态字段取当前的连接池
+        private RedisServer server;
+        final AtomicInteger nextCar = new AtomicInteger();
+
+        @Setup(Level.Trial)
+        public void start() throws IOException {
+            server = new RedisServer(PORT);
+            server.start();
+            JedisPoolConfig config = new JedisPoolConfig();
+            config.setMaxTotal(JedisPoolUtil.MAX_TOTAL);
+            pool = new JedisPool(config, "localhost", PORT);
+            Car.setJedisProvider(() -> pool.getResource());
+            Car.setMapLayout(MapLayout.fromConfig());//-jvmArgsAppend -Dcar.map.tile=N 测分块存储
+            try (Jedis jedis = pool.getResource()) {
+                jedis.flushAll();
+                jedis.set("mapWidth", String.valueOf(mapSize));
+                jedis.set("mapLength", String.valueOf(mapSize));
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() throws IOException {
+            Car.cleanup();
+            pool.close();
+            server.stop();
+        }
+    }
+
+    // 每个线程一辆车，在自己的一行上来回行驶；路径末尾固定挂一个远处的黑块，
+    // 保证路径不会因为来回点亮变成"全亮"而被删除，车也永远走不到它
+    @State(Scope.Thread)
+    public static class Driver {
+        Car car;
+        Jedis jedis;
+        private Fleet fleet;
+        private int row;
+        private int x = 1;
+        private int direction = 1;
+        private int remaining;
+
+        @Setup(Level.Trial)
+        public void setUp(Fleet fleet) {
+            this.fleet = fleet;
+            int rows = Math.max(1, (fleet.mapSize - 4) / 3);
+            row = 1 + 3 * (fleet.nextCar.getAndIncrement() % rows);
+            String carId = "Bench" + row;
+            jedis = Fleet.pool.getResource();
+            jedis.set("Car" + carId, x + "," + row);
+            long offset = (long) row * fleet.mapSize + x;
+            MapLayout layout = Car.mapLayout();
+            jedis.setbit(layout.key("obstacle_map", offset, fleet.mapSize), layout.bit(offset, fleet.mapSize), true);
+            car = new Car(carId);
+            if (!car.initialize()) {
+                throw new IllegalStateException("cannot initialize " + carId);
+            }
+            refill();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            jedis.close();
+        }
+
+        // 下一个格子：在1..mapSize-2之间来回
+        long nextCell() {
+            if (x + direction < 1 || x + direction > fleet.mapSize - 2) {
+                direction = -direction;
+            }
+            x += direction;
+            return Coords.pack(x, row);
+        }
+
+        // 重新下发routeLength格路径 + 远处的黑块
+        void refill() {
+            String[] cells = new String[fleet.routeLength + 1];
+            for (int i = 0; i < fleet.routeLength; i++) {
+                cells[i] = Coords.format(nextCell());
+            }
+            cells[fleet.routeLength] = (fleet.mapSize - 1) + "," + (fleet.mapSize - 1);
+            jedis.del("Car" + car.getCarId() + "TaskList");
+            jedis.rpush("Car" + car.getCarId() + "TaskList", cells);
+            remaining = fleet.routeLength;
+        }
+
+        void consume() {
+            if (remaining-- <= 0) {
+                refill();
+                remaining--;
+            }
+        }
+    }
+
+    // 增量路径校验：LLEN + 仍为黑块的格子的一次BITFIELD
+    @Benchmark
+    public boolean checkTask(Driver driver) {
+        return driver.car.CheckTask(driver.jedis);
+    }
+
+    // 障碍检测 + 位置/路径/点亮事务
+    @Benchmark
+    public boolean tryMoveAndUpdatePosition(Driver driver) {
+        long target = driver.nextCell();
+        if (driver.car.tryMove(driver.jedis, target)) {
+            driver.car.updatePosition(driver.jedis, target);
+            return true;
+        }
+        return false;
+    }
+
+    // 单步移动的完整流程（借连接、检查、弹出、障碍检测、提交），在当前线程同步执行
+    @Benchmark
+    public int advance(Driver driver) {
+        driver.consume();
+        return driver.car.advance(1);
+    }
+
+    // 经过邮箱调度和CarThreadPool的完整moveStep，等待提交完成
+    @Benchmark
+    public boolean moveStep(Driver driver) throws Exception {
+        driver.consume();
+        CompletableFuture<Boolean> done = new CompletableFuture<>();
+        driver.car.moveStep(1, done::complete);
+        return done.get(10, TimeUnit.SECONDS);
+    }
+}
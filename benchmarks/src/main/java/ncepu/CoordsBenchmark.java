@@ -0,0 +1,66 @@
+package ncepu;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 坐标解析/格式化基准测试
+ * 功能：对比手写解析（Coords）与原来的String.split + Integer.parseInt
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CoordsBenchmark {
+    @Param({"7,3", "1234,5678"})
+    public String cell;
+
+    private long coord;
+
+    @Setup
+    public void setUp() {
+        coord = Coords.parse(cell);
+    }
+
+    @Benchmark
+    public long parse() {
+        return Coords.parse(cell);
+    }
+
+    // 原实现：String.split(",")
+    @Benchmark
+    public void parseBySplit(Blackhole bh) {
+        String[] parts = cell.split(",");
+        bh.consume(Integer.parseInt(parts[0]));
+        bh.consume(Integer.parseInt(parts[1]));
+    }
+
+    @Benchmark
+    public void parsePosition(Blackhole bh) {
+        bh.consume(Car.Position.parse(cell));
+    }
+
+    @Benchmark
+    public String format() {
+        return Coords.format(coord);
+    }
+
+    @Benchmark
+    public long offset() {
+        return Coords.offset(coord, 10_000);
+    }
+}
@@ -0,0 +1,363 @@
+package ncepu;
+
+import org.apache.activemq.broker.BrokerService;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.embedded.RedisServer;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 车队负载模拟器
+ * 功能：嵌入式Redis + 进程内ActiveMQ（vm://），按配置生成地图、静态障碍和N辆车的位置/路径，
+ * 以目标速率发送指令，经过真实的 CarMessageListener → Car 链路执行；路径走完或被删除后重新下发随机路径，
+ * 每个统计周期输出端到端指令延迟、移动速率、障碍/路径删除/事务冲突次数和地图探索覆盖率；
+ * -Dsim.store=memory 时不启动Redis，小车状态放在MemoryCarStore中，用于测量Redis之外的开销；
+ * -Dsim.store=writeBehind 时状态以内存为准，每隔 sim.flush 毫秒批量写回Redis（WriteBehindCarStore）；
+ * -Dsim.journal=目录 把本次运行的移动写入MoveJournal；-Dsim.replay=目录 时小车、出发位置和路径取自日志，
+ * 不再随机下发，指令不限速发送（地图尺寸、障碍密度和种子需与录制时相同）
+ *
+ * 运行：java -cp target/benchmarks.jar ncepu.FleetSimulator，参数用 -Dsim.xxx 指定
+ */
+public class FleetSimulator {
+    private static final int CARS = Integer.getInteger("sim.cars", 50);
+    private static final int MAP_SIZE = Integer.getInteger("sim.mapSize", 200);
+    private static final double OBSTACLE_DENSITY = Double.parseDouble(System.getProperty("sim.obstacles", "0.02"));
+    private static final int RATE = Integer.getInteger("sim.rate", 500);              // 每秒指令数
+    private static final int DURATION = Integer.getInteger("sim.duration", 30);       // 运行时长(秒)
+    private static final int ROUTE_LENGTH = Integer.getInteger("sim.routeLength", 30);
+    private static final int REPORT_INTERVAL = Integer.getInteger("sim.report", 5);   // 统计周期(秒)
+    private static final int REDIS_PORT = Integer.getInteger("sim.redis.port", 6398);
+    private static final long SEED = Long.getLong("sim.seed", 42);
+    private static final String STORE = System.getProperty("sim.store", "redis");
+    private static final boolean MEMORY = "memory".equalsIgnoreCase(STORE);
+    private static final boolean WRITE_BEHIND = "writeBehind".equalsIgnoreCase(STORE);
+    private static final long FLUSH_INTERVAL = Long.getLong("sim.flush", 100); // 写回周期(毫秒)
+    private static final String JOURNAL = System.getProperty("sim.journal");
+    private static final String REPLAY = System.getProperty("sim.replay");
+    private static final String BROKER_URL = "vm://sim?create=false";
+
+    private final MapLayout layout = MapLayout.fromConfig();//-Dcar.map.tile=N 时分块存储
+    private final Random random = new Random(SEED);
+    private final List<String> carIds = new ArrayList<>(CARS);
+    private final AtomicBoolean running = new AtomicBoolean(true);
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong refills = new AtomicLong();
+    private JedisPool pool;
+    private MemoryCarStore memory;
+    private WriteBehindCarStore writeBehind;
+    private MoveJournal journal;
+    private Map<String, List<Long>> replay;//小车ID -> 出发位置 + 依次到达的格子
+
+    public static void main(String[] args) throws Exception {
+        new FleetSimulator().run();
+        System.exit(0);
+    }
+
+    private void run() throws Exception {
+        if (REPLAY != null) {
+            replay = JournalReplay.routes(Path.of(REPLAY));
+        }
+        if (JOURNAL != null) {
+            journal = MoveJournal.fromConfig(JOURNAL);
+            Car.setJournal(journal);
+        }
+        RedisServer redis = MEMORY ? null : new RedisServer(REDIS_PORT);
+        if (redis != null) {
+            redis.start();
+        }
+        BrokerService broker = new BrokerService();
+        broker.setBrokerName("sim");
+        broker.setPersistent(false);
+        broker.setUseJmx(false);
+        broker.start();
+        broker.waitUntilStarted();
+
+        if (MEMORY) {
+            memory = new MemoryCarStore(MAP_SIZE, MAP_SIZE);
+            Car.setStore(memory);
+            seedMemory();
+        } else {
+            JedisPoolConfig config = new JedisPoolConfig();
+            config.setMaxTotal(JedisPoolUtil.MAX_TOTAL);
+            pool = new JedisPool(config, "localhost", REDIS_PORT);
+            Car.setJedisProvider(() -> pool.getResource());
+            Car.setMapLayout(layout);
+            seed();
+            if (WRITE_BEHIND) {
+                writeBehind = WriteBehindCarStore.load(pool::getResource, layout, FLUSH_INTERVAL);
+                writeBehind.start();
+                Car.setStore(writeBehind);
+            }
+        }
+
+        CarRegistry registry = new CarRegistry();
+        registry.start();
+        CarMessageListener listener = new CarMessageListener(registry, BROKER_URL);
+        listener.initConnection();
+        listener.startListening();
+
+        System.out.printf("车辆 %d, 地图 %dx%d（%s）, 障碍密度 %.3f, 目标速率 %s 条/秒, 时长 %d 秒%n",
+                carIds.size(), MAP_SIZE, MAP_SIZE, MEMORY ? "memory" : WRITE_BEHIND ? layout + ", write-behind" : layout,
+                OBSTACLE_DENSITY, (replay != null) ? "不限速重放" : String.valueOf(RATE), DURATION);
+        if (replay == null) {
+            Thread refiller = new Thread(this::refillLoop, "sim-refill");
+            refiller.setDaemon(true);
+            refiller.start();
+        }
+        Thread sender = new Thread(this::sendLoop, "sim-sender");
+        sender.start();
+
+        long start = System.nanoTime();
+        long movesBefore = CarMetrics.MOVES.sum();
+        Counters last = new Counters(sent.get());
+        CarMetrics.COMMAND.reset();
+        for (int elapsed = REPORT_INTERVAL; elapsed <= DURATION; elapsed += REPORT_INTERVAL) {
+            LockSupport.parkNanos(start + TimeUnit.SECONDS.toNanos(elapsed) - System.nanoTime());
+            Counters current = new Counters(sent.get());
+            report(elapsed, last, current);
+            last = current;
+        }
+        running.set(false);
+        sender.join();
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("合计: 发送 %d, 移动 %d (%.1f 步/秒), 障碍 %d, 路径删除 %d, 事务冲突 %d, 错误 %d, 重新下发路径 %d, 覆盖率 %.2f%%%n",
+                sent.get(), CarMetrics.MOVES.sum() - movesBefore, (CarMetrics.MOVES.sum() - movesBefore) / seconds,
+                CarMetrics.OBSTACLES.sum(), CarMetrics.ROUTE_CLEARS.sum(), CarMetrics.TX_ABORTS.sum(),
+                CarMetrics.MOVE_ERRORS.sum(), refills.get(), coverage());
+
+        listener.closeConnection();
+        registry.shutdown();
+        CarThreadPool.shutdown();
+        Car.cleanup();
+        if (writeBehind != null) {
+            writeBehind.close();
+        }
+        if (journal != null) {
+            Car.setJournal(null);
+            journal.close();
+        }
+        if (pool != null) {
+            pool.close();
+        }
+        broker.stop();
+        if (redis != null) {
+            redis.stop();
+        }
+    }
+
+    // 地图尺寸、静态障碍、小车初始位置和路径
+    private void seed() {
+        try (Jedis jedis = pool.getResource()) {
+            jedis.flushAll();
+            jedis.set("mapWidth", String.valueOf(MAP_SIZE));
+            jedis.set("mapLength", String.valueOf(MAP_SIZE));
+            Pipeline pipeline = jedis.pipelined();
+            long cells = (long) MAP_SIZE * MAP_SIZE;
+            for (long i = (long) (cells * OBSTACLE_DENSITY); i > 0; i--) {
+                long offset = (long) (random.nextDouble() * cells);
+                pipeline.setbit(layout.key("obstacle_map", offset, MAP_SIZE), layout.bit(offset, MAP_SIZE), true);
+            }
+            pipeline.sync();
+            if (replay != null) {
+                for (Map.Entry<String, List<Long>> car : replay.entrySet()) {
+                    long position = car.getValue().get(0);
+                    long offset = Coords.offset(position, MAP_SIZE);
+                    jedis.set("Car" + car.getKey(), Coords.format(position));
+                    jedis.setbit(layout.key("obstacle_map", offset, MAP_SIZE), layout.bit(offset, MAP_SIZE), true);
+                    jedis.rpush("Car" + car.getKey() + "TaskList", format(recorded(car.getValue())));
+                    carIds.add(car.getKey());
+                }
+                return;
+            }
+            for (int i = 0; i < CARS; i++) {
+                String carId = String.format("Sim%04d", i);
+                long position;
+                do {
+                    position = Coords.pack(random.nextInt(MAP_SIZE), random.nextInt(MAP_SIZE));
+                } while (layout.getBit(jedis, "obstacle_map", Coords.offset(position, MAP_SIZE), MAP_SIZE));
+                long offset = Coords.offset(position, MAP_SIZE);
+                jedis.set("Car" + carId, Coords.format(position));
+                jedis.setbit(layout.key("obstacle_map", offset, MAP_SIZE), layout.bit(offset, MAP_SIZE), true);
+                jedis.rpush("Car" + carId + "TaskList", format(route(position)));
+                carIds.add(carId);
+            }
+        }
+    }
+
+    // 同seed，写入进程内存储
+    private void seedMemory() {
+        long cells = (long) MAP_SIZE * MAP_SIZE;
+        for (long i = (long) (cells * OBSTACLE_DENSITY); i > 0; i--) {
+            memory.setObstacle((long) (random.nextDouble() * cells), true);
+        }
+        if (replay != null) {
+            for (Map.Entry<String, List<Long>> car : replay.entrySet()) {
+                memory.setPosition(car.getKey(), car.getValue().get(0));
+                memory.pushRoute(car.getKey(), recorded(car.getValue()));
+                carIds.add(car.getKey());
+            }
+            return;
+        }
+        for (int i = 0; i < CARS; i++) {
+            String carId = String.format("Sim%04d", i);
+            long position;
+            do {
+                position = Coords.pack(random.nextInt(MAP_SIZE), random.nextInt(MAP_SIZE));
+            } while (memory.isObstacle(Coords.offset(position, MAP_SIZE)));
+            memory.setPosition(carId, position);
+            memory.pushRoute(carId, route(position));
+            carIds.add(carId);
+        }
+    }
+
+    // 从position出发的随机游走路径，不走出地图、不原地掉头
+    private long[] route(long position) {
+        long[] cells = new long[ROUTE_LENGTH];
+        int x = Coords.x(position);
+        int y = Coords.y(position);
+        int back = -1;
+        for (int i = 0; i < ROUTE_LENGTH; i++) {
+            int direction;
+            int nx;
+            int ny;
+            do {
+                direction = random.nextInt(4);
+                nx = x + (direction == 0 ? 1 : direction == 1 ? -1 : 0);
+                ny = y + (direction == 2 ? 1 : direction == 3 ? -1 : 0);
+            } while (direction == back || !Coords.inside(nx, ny, MAP_SIZE, MAP_SIZE));
+            back = direction ^ 1;
+            x = nx;
+            y = ny;
+            cells[i] = Coords.pack(x, y);
+        }
+        return cells;
+    }
+
+    // 日志中依次到达的格子（去掉第一个出发位置）
+    private static long[] recorded(List<Long> cells) {
+        long[] route = new long[cells.size() - 1];
+        for (int i = 0; i < route.length; i++) {
+            route[i] = cells.get(i + 1);
+        }
+        return route;
+    }
+
+    private static String[] format(long[] cells) {
+        String[] formatted = new String[cells.length];
+        for (int i = 0; i < cells.length; i++) {
+            formatted[i] = Coords.format(cells[i]);
+        }
+        return formatted;
+    }
+
+    // 按目标速率轮流给每辆车发单步指令（重放日志时不限速）
+    private void sendLoop() {
+        try (CarCommandPublisher publisher = new CarCommandPublisher(BROKER_URL)) {
+            long interval = (replay != null) ? 0 : 1_000_000_000L / RATE;
+            long next = System.nanoTime();
+            for (int i = 0; running.get(); i++) {
+                publisher.send(carIds.get(i % carIds.size()));
+                sent.incrementAndGet();
+                next += interval;
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                } else if (wait < -100_000_000L) {
+                    next = System.nanoTime();//落后超过100毫秒不再补发，避免突发流量
+                }
+            }
+        } catch (Exception e) {
+            System.err.println("发送失败: " + e);
+            running.set(false);
+        }
+    }
+
+    // 路径走完或被删除（遇到障碍、全部点亮）的车重新下发一条随机路径
+    private void refillLoop() {
+        while (running.get()) {
+            if (MEMORY) {
+                for (String carId : carIds) {
+                    if (memory.routeLength(carId) == 0) {
+                        memory.pushRoute(carId, route(memory.position(carId)));
+                        refills.incrementAndGet();
+                    }
+                }
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+                continue;
+            }
+            try (Jedis jedis = pool.getResource()) {
+                Pipeline pipeline = jedis.pipelined();
+                List<Response<Long>> lengths = new ArrayList<>(carIds.size());
+                List<Response<String>> positions = new ArrayList<>(carIds.size());
+                for (String carId : carIds) {
+                    lengths.add(pipeline.llen("Car" + carId + "TaskList"));
+                    positions.add(pipeline.get("Car" + carId));
+                }
+                pipeline.sync();
+                for (int i = 0; i < carIds.size(); i++) {
+                    if (lengths.get(i).get() == 0 && positions.get(i).get() != null) {
+                        pipeline.rpush("Car" + carIds.get(i) + "TaskList", format(route(Coords.parse(positions.get(i).get()))));
+                        refills.incrementAndGet();
+                    }
+                }
+                pipeline.sync();
+            } catch (Exception e) {
+                System.err.println("下发路径失败: " + e);
+            }
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+        }
+    }
+
+    private void report(int elapsed, Counters last, Counters current) {
+        LatencySnapshot latency = CarMetrics.COMMAND.snapshot();
+        CarMetrics.COMMAND.reset();
+        System.out.printf("[%3ds] 发送 %6.1f/s, 移动 %6.1f 步/s, 指令延迟 p50 %.1fms p99 %.1fms max %.1fms, 障碍 %d, 路径删除 %d, 事务冲突 %d, 覆盖率 %.2f%%%n",
+                elapsed,
+                (current.sent - last.sent) / (double) REPORT_INTERVAL,
+                (current.moves - last.moves) / (double) REPORT_INTERVAL,
+                latency.getP50() / 1000, latency.getP99() / 1000, latency.getMax() / 1000,
+                current.obstacles - last.obstacles,
+                current.clears - last.clears,
+                current.aborts - last.aborts,
+                coverage());
+    }
+
+    // 已探索格子占地图的百分比
+    private double coverage() {
+        if (MEMORY) {
+            return 100.0 * memory.exploredCount() / ((long) MAP_SIZE * MAP_SIZE);
+        }
+        try (Jedis jedis = pool.getResource()) {
+            return 100.0 * layout.bitCount(jedis, "map") / ((long) MAP_SIZE * MAP_SIZE);
+        }
+    }
+
+    private static class Counters {
+        final long sent;
+        final long moves;
+        final long obstacles;
+        final long clears;
+        final long aborts;
+
+        Counters(long sent) {
+            this.sent = sent;
+            this.moves = CarMetrics.MOVES.sum();
+            this.obstacles = CarMetrics.OBSTACLES.sum();
+            this.clears = CarMetrics.ROUTE_CLEARS.sum();
+            this.aborts = CarMetrics.TX_ABORTS.sum();
+        }
+    }
+}
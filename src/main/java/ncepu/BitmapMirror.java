@@ -0,0 +1,84 @@
+package ncepu;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.util.SafeEncoder;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 位图本地镜像（Car只镜像点亮地图map；障碍物地图随每次移动变化，镜像几乎总是失效）
+ * 功能：在进程内缓存整张位图，读取直接走本地；KeyspaceWatcher收到变更通知后标记失效，
+ * 失效期间调用方回退到Redis读取，下一次refreshIfStale时整体重新拉取
+ */
+public class BitmapMirror {
+    private final String key;
+    private final boolean monotonic; // 只会由0变1的位图（点亮地图），失效时已为1的位仍然可信
+    private final KeyspaceWatcher watcher;
+    private final long refreshInterval; // 两次整体拉取之间的最小间隔(毫秒)，避免变更密集时反复GET
+
+    private final AtomicLong generation = new AtomicLong();
+    private volatile byte[] bits = new byte[0];
+    private volatile boolean stale = true;
+    private volatile long lastRefresh = 0;
+
+    public BitmapMirror(String key, boolean monotonic, KeyspaceWatcher watcher, long refreshInterval) {
+        this.key = key;
+        this.monotonic = monotonic;
+        this.watcher = watcher;
+        this.refreshInterval = refreshInterval;
+        watcher.watch(key, this::invalidate);
+    }
+
+    public String key() {
+        return key;
+    }
+
+    // 返回本地缓存的位，缓存不可信时返回null
+    Boolean get(long offset) {
+        boolean fresh = !stale;//先读状态再读数据，避免把旧数据当成新数据
+        boolean bit = bitAt(bits, offset);
+        if (fresh) {
+            return bit;
+        }
+        return (monotonic && bit) ? Boolean.TRUE : null;
+    }
+
+    synchronized void invalidate() {
+        generation.incrementAndGet();
+        stale = true;
+    }
+
+    boolean isStale() {
+        return stale;
+    }
+
+    // 失效且距上次拉取超过间隔时重新拉取整张位图
+    void refreshIfStale(Jedis jedis) {
+        if (stale && watcher.isActive()
+                && System.currentTimeMillis() - lastRefresh >= refreshInterval) {
+            refresh(jedis);
+        }
+    }
+
+    // 拉取期间又收到变更通知则保持失效状态
+    void refresh(Jedis jedis) {
+        long before = generation.get();
+        lastRefresh = System.currentTimeMillis();
+        byte[] data = jedis.get(SafeEncoder.encode(key));
+        synchronized (this) {
+            bits = (data != null) ? data : new byte[0];
+            if (watcher.isActive() && generation.get() == before) {
+                stale = false;
+            }
+        }
+    }
+
+    // Redis位图按字节从高位到低位编号
+    private static boolean bitAt(byte[] data, long offset) {
+        long index = offset >>> 3;
+        if (offset < 0 || index >= data.length) {
+            return false;
+        }
+        return (data[(int) index] & (0x80 >>> (offset & 7))) != 0;
+    }
+}
@@ -1,140 +1,526 @@
 package ncepu;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
 import redis.clients.jedis.Transaction;
 import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.util.SafeEncoder;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Map;
+import java.util.Set;
 import java.util.function.Supplier;
 /**
  * 小车控制类
  * 功能：处理移动逻辑，保证Redis操作原子性
+ * 移动任务经CarDispatcher按车串行后统一交给CarThreadPool执行；状态读写经CarStore，
+ * 默认为Redis（RedisCarStore），也可以换成进程内的MemoryCarStore
  */
 public class Car {
-    private final String carId;
-    int mapWidth;
-    int mapLength;
+    private static final Logger log = LoggerFactory.getLogger(Car.class);
+    private static final LogLimiter errors = new LogLimiter(10_000);//同类错误10秒内只输出一条
 
-    private static Supplier<Jedis> jedisProvider;//连接器
-    private static final ExecutorService threadPool = Executors.newFixedThreadPool(10);
+    private final String carId;
+    volatile int mapWidth;
+    volatile int mapLength;
+    // 预先拼好的Redis key
+    private final String positionKey;
+    private final String routeKey;
+    private final String pathKey;
+    // 每次移动都在连接上直接发送的命令（WATCH/EXISTS任务队列、GET位置）用编码好的key，不再逐次编码
+    private final byte[] positionKeyBytes;
+    private final byte[] routeKeyBytes;
+
+    private static JedisProvider jedisProvider;//连接器
+    private static volatile CarStore store;//状态存储，为null时使用Redis
+    private static final CarDispatcher dispatcher = new CarDispatcher(CarThreadPool::submitTask);//每车串行的指令邮箱
+    private static volatile boolean scriptMode = false;//Lua脚本移动模式
+    private static volatile BitmapMirror mapMirror;//点亮地图本地镜像
+    private static volatile MapLayout mapLayout = MapLayout.SINGLE;//位图存储布局（整张/分块）
+    private static volatile MoveJournal journal;//本地移动日志
+
+    private final RouteState routeState = new RouteState();//增量路径校验状态
+    private volatile long lastUsed = System.currentTimeMillis();//最近一次收到指令的时间
 
     public Car(String carId) {
         this.carId = carId;
+        this.positionKey = "Car" + keyTag(carId); // Car001，集群时为Car{001}
+        this.routeKey = "Car" + keyTag(carId) + "TaskList";
+        this.pathKey = PathHistory.key(carId);
+        this.positionKeyBytes = SafeEncoder.encode(positionKey);
+        this.routeKeyBytes = SafeEncoder.encode(routeKey);
     }
 
+    // 单机部署：从连接池借连接
     public static void setJedisProvider(Supplier<Jedis> provider) {
+        setJedisProvider(standalone(provider));
+    }
+
+    // 集群部署等按key借连接的连接器
+    public static void setJedisProvider(JedisProvider provider) {
         if (jedisProvider == null) {
             jedisProvider = provider;
         }
     }
 
+    // 替换连接器（切换单机/集群部署），返回原来的连接器；已创建的小车仍使用原来的key
+    static JedisProvider replaceJedisProvider(JedisProvider provider) {
+        JedisProvider previous = jedisProvider;
+        jedisProvider = provider;
+        return previous;
+    }
+
+    static JedisProvider replaceJedisProvider(Supplier<Jedis> provider) {
+        return replaceJedisProvider(standalone(provider));
+    }
+
+    private static JedisProvider standalone(Supplier<Jedis> provider) {
+        return (provider == null || provider instanceof StandaloneJedisProvider)
+                ? (StandaloneJedisProvider) provider : (StandaloneJedisProvider) provider::get;
+    }
+
+    // 设置状态存储，为null时恢复为Redis
+    public static void setStore(CarStore carStore) {
+        store = carStore;
+    }
+
+    static CarStore store() {
+        CarStore current = store;
+        return (current != null) ? current : RedisCarStore.INSTANCE;
+    }
+
+    // 集群部署：小车的key带hash tag，事务按槽位拆分
+    static boolean clustered() {
+        JedisProvider provider = jedisProvider;
+        return provider != null && provider.isCluster();
+    }
+
+    // 小车key中的ID部分，集群时加hash tag让同一辆车的key落在同一槽位
+    static String keyTag(String carId) {
+        return clustered() ? "{" + carId + "}" : carId;
+    }
+
+    // 开启后moveStep通过MoveScript在Redis端一次完成整个移动过程（脚本跨多个槽位，集群部署时不可用）
+    public static void setScriptMode(boolean enabled) {
+        scriptMode = enabled;
+    }
+
+    // 设置点亮地图本地镜像，为null时全部读取走Redis；
+    // 障碍物地图随每辆车的每次移动变化，镜像几乎总是失效，不做镜像
+    public static void setBitmapMirror(BitmapMirror map) {
+        mapMirror = map;
+    }
+
+    // 设置位图存储布局，所有实例和协调端需一致
+    public static void setMapLayout(MapLayout layout) {
+        mapLayout = layout;
+    }
+
+    static MapLayout mapLayout() {
+        return mapLayout;
+    }
+
+    // 设置本地移动日志，为null时不记录
+    public static void setJournal(MoveJournal moveJournal) {
+        journal = moveJournal;
+    }
+
+    // 记录一步已提交的移动（所有提交路径共用）
+    static void journalMove(String carId, long from, long to, int width, int length) {
+        MoveJournal current = journal;
+        if (current != null) {
+            current.append(carId, from, to, width, length);
+        }
+    }
+
     public static void cleanup() {
-        if (!threadPool.isShutdown()) {
-            threadPool.shutdownNow();
+        if (!CarThreadPool.isShutdown()) {
+            CarThreadPool.shutdownNow();
         }
     }
 
     public boolean initialize() {//初始化
         boolean result = false;
-        if (jedisProvider == null) {
-            throw new IllegalStateException("Jedis provider not set");
-        }
-        Jedis jedis = jedisProvider.get();
+        long start = System.nanoTime();
+        MDC.put("carId", carId);
+        CarStore carStore = store();
         //获取地图信息小车位置信息
         try {
-            this.mapWidth = getIntegerConfig(jedis, "mapWidth");
-            this.mapLength = getIntegerConfig(jedis, "mapLength");
-            if (!hasPosition(jedis)) {
+            this.mapWidth = carStore.readConfig("mapWidth");
+            this.mapLength = carStore.readConfig("mapLength");
+            if (!carStore.hasPosition(this)) {
                 throw new JedisConnectionException("cannot find position");
             }
             result = true;
         }
+        catch (RedisUnavailableException e) {
+            throw e;//熔断中由调用方决定重投
+        }
         catch (JedisConnectionException e) {
-            System.out.println("[" + carId + "]--未找到小车坐标--");
+            log.warn("未找到小车坐标");
         }
         finally {
-            if (jedis != null) jedis.close();
+            CarMetrics.INITIALIZE.recordSince(start);
+            MDC.remove("carId");
         }
         return result;
     }
 
-    // 移动方法
+    //由CarRegistry调用：地图尺寸使用注册表缓存的值，只检查坐标是否存在
+    boolean initialize(int width, int length) {
+        applyMapSize(width, length);
+        long start = System.nanoTime();
+        MDC.put("carId", carId);
+        try {
+            if (!store().hasPosition(this)) {
+                log.warn("未找到小车坐标");
+                return false;
+            }
+            return true;
+        } finally {
+            CarMetrics.INITIALIZE.recordSince(start);
+            MDC.remove("carId");
+        }
+    }
+
+    //地图尺寸变化后偏移量全部失效，路径状态需要重新同步
+    void applyMapSize(int width, int length) {
+        if (width != mapWidth || length != mapLength) {
+            this.mapWidth = width;
+            this.mapLength = length;
+            routeState.invalidate();
+        }
+    }
+
+    //任务队列被外部（如FleetScheduler）修改，下次移动前重新同步
+    void routeChanged() {
+        routeState.invalidate();
+    }
+
+    String getCarId() {
+        return carId;
+    }
+
+    void touch() {
+        lastUsed = System.currentTimeMillis();
+    }
+
+    long getLastUsed() {
+        return lastUsed;
+    }
+
+    // 不指定key的连接，只有单机部署可用（节拍调度等不支持集群的功能使用）
+    static Jedis connection() {
+        JedisProvider provider = jedisProvider;
+        if (provider == null) {
+            throw new IllegalStateException("Jedis provider not set");
+        }
+        if (!(provider instanceof StandaloneJedisProvider)) {
+            throw new IllegalStateException("cluster connections must be borrowed by key, use connection(key)");
+        }
+        return ((StandaloneJedisProvider) provider).get();
+    }
+
+    // key所在节点的连接（单机时同connection()）
+    static Jedis connection(String key) {
+        if (jedisProvider == null) {
+            throw new IllegalStateException("Jedis provider not set");
+        }
+        return jedisProvider.forKey(key);
+    }
+
+    // 移动方法：投递到小车自己的邮箱，同一辆车的移动串行执行
     public  void moveStep() {
-        threadPool.execute(() -> {
-            Jedis jedis = null;
-            try {
-                System.out.println("["+carId+"][ " + Thread.currentThread().getName() + " Start ]");
-                jedis = jedisProvider.get();
-                boolean result = CheckTask(jedis);//检查路径
-                Position target = getNextPosition(jedis);//lpop
-
-                if(target == null) {
-                    System.out.println("["+carId+"]--未收到任务信息--");
-                    return;
-                }
-                if (result&&tryMove(jedis, target)) {
-                    updatePosition(jedis, target);
-                    System.out.println("[" + carId + "]< 小车" + carId + "移动到" + target + " >");
-                }
+        dispatcher.submit(carId, this::advance);
+    }
 
+    // 移动完成（或确定无法执行）后回调，用于MQ消息在提交后才确认
+    public void moveStep(CarDispatcher.Completion done) {
+        dispatcher.submit(carId, this::advance, done);
+    }
 
-            } catch (Exception e) {
-                System.err.println("[" + carId + "]--移动异常--: " + e.getMessage());
-            } finally {
-                System.out.println("["+carId+"][ " + Thread.currentThread().getName() + " Finnish ]");
-                if (jedis != null) jedis.close();
-            }
-        });
+    // 一条指令前进steps步（批量消息中的步数）
+    public void moveStep(int steps, CarDispatcher.Completion done) {
+        dispatcher.submit(carId, steps, this::advance, done);
     }
 
+    // 前进n步，用于批量回放和快进模拟
+    public void moveSteps(int steps) {
+        dispatcher.submit(carId, steps, this::advance, committed -> { });
+    }
 
+    // 一直走到任务队列结束（或遇到障碍/路径全亮）
+    public void driveToEnd() {
+        moveSteps(Integer.MAX_VALUE);
+    }
 
-    //检查小车路径是否为全亮
-    boolean CheckTask(Jedis jedis) {
-        List<String> task = jedis.lrange(routeKey(), 0, -1);//获取队列
-        boolean lighted = false;//全亮为false
-        for (int i = 0; i < task.size(); i++) {
-            if (!jedis.getbit("map", offset(parsePosition(task.get(i)))))//小车路径有黑块
-            {
-                lighted = true;
+    // 全部小车排队中的指令数
+    public static int pendingCommands() {
+        return dispatcher.totalDepth();
+    }
+
+    // 排队中的指令数
+    public static int pendingCommands(String carId) {
+        return dispatcher.depth(carId);
+    }
+
+    // 执行邮箱合并后的n步：一步走原流程，多步一次读取、一个事务提交
+    // 返回成功执行的步数，异常时为0（指令等待重投）
+    int advance(int steps) {
+        long start = System.nanoTime();
+        MDC.put("carId", carId);
+        try {
+            log.debug("开始移动 steps={}", steps);
+            store().move(this, steps);
+            return steps;
+        } catch (RedisUnavailableException e) {
+            errors.warn(log, "redis-unavailable", "Redis不可用，指令等待重投: {}", e.getMessage());
+            return 0;
+        } catch (Exception e) {
+            CarMetrics.MOVE_ERRORS.increment();
+            errors.error(log, "move", "移动异常: {}", e.getMessage());
+            return 0;
+        } finally {
+            CarMetrics.MOVE.recordSince(start);
+            log.debug("移动结束");
+            MDC.remove("carId");
+        }
+    }
+
+    // Redis上的移动（RedisCarStore调用）：脚本模式一次EVALSHA，否则一步走原流程，多步一次读取、一个事务提交；
+    // 集群时先重放上次移动未完成的跨槽位写入
+    void move(Jedis jedis, int steps) {
+        if (clustered()) {
+            SlotTransaction.recover(jedis, positionKey(), jedisProvider);
+        }
+        if (scriptMode) {
+            moveByScript(jedis, steps);
+        } else if (steps == 1) {
+            moveOnce(jedis);
+        } else {
+            moveSteps(jedis, steps);
+        }
+    }
+
+    // 单步移动
+    private void moveOnce(Jedis jedis) {
+        refreshMirrors(jedis);
+        long start = System.nanoTime();
+        boolean result = CheckTask(jedis);//检查路径
+        CarMetrics.CHECK_TASK.recordSince(start);
+        start = System.nanoTime();
+        long target = getNextPosition(jedis);//lpop
+        CarMetrics.NEXT_POSITION.recordSince(start);
+
+        if(target == Coords.NONE) {
+            log.info("未收到任务信息");
+            return;
+        }
+        start = System.nanoTime();
+        boolean free = result && tryMove(jedis, target);
+        CarMetrics.TRY_MOVE.recordSince(start);
+        if (free) {
+            start = System.nanoTime();
+            updatePosition(jedis, target);
+            CarMetrics.UPDATE_POSITION.recordSince(start);
+            CarMetrics.MOVES.increment();
+            if (log.isDebugEnabled()) {
+                log.debug("移动到 {}", Coords.format(target));
             }
-            if (i == task.size() - 1) {
-                for (int dx = -1; dx < 2; dx++) {
-                    for (int dy = -1; dy < 2; dy++) {
-                        Position TaskTarget = parsePosition(task.get(i));
-                        int x = TaskTarget.x + dx;
-                        int y = TaskTarget.y + dy;
-                        if (x >= 0 && x < mapWidth &&
-                                y >= 0 && y < mapLength) {
-                            int offset = offset(x, y);
-                            if (!jedis.getbit("map", offset)) {
-                                lighted = true;
-                            }
-                        }
-
-                    }
+        }
+    }
+
+    //批量移动：一次读取（路径同步、当前位置、后续n格的障碍位），一个事务提交n步的位置、路径和点亮
+    //与逐步执行语义一致：每步前检查路径是否全亮，遇到障碍清空队列并上报后停止
+    //WATCH任务队列，期间被协调端修改则重试，多次冲突后退回逐步执行
+    void moveSteps(Jedis jedis, int steps) {
+        refreshMirrors(jedis);
+        for (int attempt = 0; attempt < 3; attempt++) {
+            jedis.watch(routeKeyBytes);
+            boolean committed;
+            try {
+                committed = commitSteps(jedis, steps);
+            } catch (RuntimeException e) {
+                routeState.invalidate();
+                throw e;
+            }
+            if (committed) {
+                return;
+            }
+            CarMetrics.TX_ABORTS.increment();
+            routeState.invalidate();
+            log.debug("任务队列被修改，重试批量移动");
+        }
+        for (int i = 0; i < steps && jedis.exists(routeKeyBytes); i++) {
+            moveOnce(jedis);
+        }
+    }
+
+    // 返回false表示事务因任务队列被修改而放弃
+    private boolean commitSteps(Jedis jedis, int steps) {
+        long startTime = System.nanoTime();
+        boolean lighted = routeState.sync(jedis, this);
+        List<String> cells = routeState.head(steps);
+        byte[] current = jedis.get(positionKeyBytes);
+        long[] targets = new long[cells.size()];
+        long[] targetOffsets = new long[cells.size()];
+        for (int i = 0; i < targets.length; i++) {
+            targets[i] = Coords.parse(cells.get(i));
+            targetOffsets[i] = offset(targets[i]);
+        }
+        boolean[] blocked = getBits(jedis, obstacleKey(), targetOffsets, mapWidth);
+
+        long start = (current != null) ? Coords.parse(current) : Coords.NONE;
+        long pos = start;
+        long[] walked = new long[Math.min(steps, targets.length)];//本批次依次到达的格子
+        Map<Long, Boolean> moved = new HashMap<>();//本批次中自己造成的障碍位变化
+        Set<Long> litOffsets = new LinkedHashSet<>();
+        int popped = 0;
+        int movedSteps = 0;
+        boolean deleted = false;
+        boolean obstacle = false;
+        try (SlotTransaction tx = transaction(jedis)) {
+            for (int i = 0; i < steps; i++) {
+                if (i >= cells.size()) {
+                    break;//任务队列已走完，LTRIM弹出走过的格子后列表为空，Redis自动删除
                 }
+                if (!lighted) {
+                    tx.del(routeKey());
+                    deleted = true;
+                    break;
+                }
+                long target = targets[i];
+                routeState.popped(cells.get(i), this);
+                popped++;
+                long targetOffset = targetOffsets[i];
+                if (moved.getOrDefault(targetOffset, blocked[i])) {
+                    tx.sadd("obstacle_events", carId);
+                    tx.del(routeKey());
+                    deleted = true;
+                    obstacle = true;
+                    break;
+                }
+                if (pos != Coords.NONE) {
+                    moved.put(offset(pos), false);
+                }
+                moved.put(targetOffset, true);
+                PathHistory.append(tx.on(pathKey()), pathKey(), target);//上传路径
+                long[] explored = exploredOffsets(target);
+                for (long offset : explored) {
+                    litOffsets.add(offset);
+                }
+                routeState.lit(explored);
+                lighted = routeState.hasDark();
+                pos = target;
+                walked[movedSteps++] = target;
+            }
+            if (!deleted && popped > 0) {
+                tx.ltrim(routeKey(), popped, -1);//一次弹出本批次走过的格子
             }
+            if (pos != start) {
+                if (start != Coords.NONE) {
+                    setBit(tx, obstacleKey(), offset(start), false);//去掉旧位置标记
+                }
+                tx.set(positionKey(), Coords.format(pos));//上传新位置
+                setBit(tx, obstacleKey(), offset(pos), true);//上传新位置障碍物地图
+                for (long offset : litOffsets) {
+                    setBit(tx, mapKey(), offset, true);//更新探索地图
+                }
+            }
+            List<Object> results = tx.exec();
+            CarMetrics.COMMIT_STEPS.recordSince(startTime);
+            if (results == null) {
+                return false;
+            }
+        }
+        CarMetrics.MOVES.add(movedSteps);
+        for (int i = 0; i < movedSteps; i++) {
+            journalMove(carId, (i == 0) ? start : walked[i - 1], walked[i], mapWidth, mapLength);
+        }
+        if (movedSteps > 0 && log.isDebugEnabled()) {
+            log.debug("移动{}步到 {}", movedSteps, Coords.format(pos));
         }
+        if (cells.isEmpty()) {
+            log.info("未收到任务信息");
+        } else if (deleted) {
+            routeState.cleared();
+            (obstacle ? CarMetrics.OBSTACLES : CarMetrics.ROUTE_CLEARS).increment();
+            log.info(obstacle ? "检测到障碍，清空队列" : "路径全亮，删除任务队列");
+        }
+        return true;
+    }
+
+    //脚本模式：检查、弹出、障碍检测和位置更新在一次EVALSHA中原子完成，最多前进steps步
+    void moveByScript(Jedis jedis, int steps) {
+        long start = System.nanoTime();
+        List<Object> reply = MoveScript.run(jedis,
+                Arrays.asList(routeKey(), positionKey(), pathKey(), obstacleKey(), mapKey(), "obstacle_events"),
+                Arrays.asList(carId, String.valueOf(mapWidth), String.valueOf(mapLength),
+                        String.valueOf(PathHistory.MAX_LENGTH), String.valueOf(steps),
+                        String.valueOf(mapLayout.tileSize())));
+        CarMetrics.SCRIPT.recordSince(start);
+        reportMove((Long) reply.get(0), (Long) reply.get(1), reply.get(2));
+        if (journal != null) {
+            long from = (reply.get(3) != null) ? Coords.parse((String) reply.get(3)) : Coords.NONE;
+            for (Object cell : (List<?>) reply.get(4)) {
+                long to = Coords.parse((String) cell);
+                journalMove(carId, from, to, mapWidth, mapLength);
+                from = to;
+            }
+        }
+    }
+
+    //按MoveScript的返回码（脚本模式和MemoryCarStore共用）记录指标和日志，last为最后到达/遇障的坐标
+    static void reportMove(long code, long moved, Object last) {
+        CarMetrics.MOVES.add(moved);
+        if (moved > 0) {
+            log.debug("移动{}步到 {}", moved, last);
+        }
+        if (code == MoveScript.MOVED) {
+            return;
+        } else if (code == MoveScript.OBSTACLE) {
+            CarMetrics.OBSTACLES.increment();
+            log.info("检测到障碍，清空队列");
+        } else if (code == MoveScript.ROUTE_CLEARED) {
+            CarMetrics.ROUTE_CLEARS.increment();
+            log.info("路径全亮，删除任务队列");
+        } else {
+            log.info("未收到任务信息");
+        }
+    }
+
+    //检查小车路径是否为全亮
+    //只同步新增任务并复查仍为黑块的格子，已确认点亮的格子不再读取
+    boolean CheckTask(Jedis jedis) {
+        boolean lighted = routeState.sync(jedis, this);//全亮为false
 
         if (!lighted) {
-            System.out.println("[" + carId + "]< 小车" + carId + "路径全亮 >");
-            System.out.println("[" + carId + "]< 删除任务队列" + carId + " >");
+            log.info("路径全亮，删除任务队列");
             Transaction tx = jedis.multi();
             tx.del(routeKey());
             //tx.sadd(routeKey());
             tx.exec();
-
+            routeState.cleared();
+            CarMetrics.ROUTE_CLEARS.increment();
         }
         return lighted;
     }
 
 
     //检查障碍
-    private boolean tryMove(Jedis jedis, Position target) {
-        jedis.watch(obstacleKey());
+    boolean tryMove(Jedis jedis, long target) {
+        boolean watching = !clustered();//集群时障碍物地图的块可能不在小车所在节点
+        if (watching) {
+            jedis.watch(mapLayout.key(obstacleKey(), offset(target), mapWidth));
+        }
         try {
 
             if (!isObstacle(jedis, target)) {
@@ -143,116 +529,227 @@ public class Car {
             handleObstacle(jedis);
             return false;
         } finally {
-            jedis.unwatch();
+            if (watching) {
+                jedis.unwatch();
+            }
         }
     }
     //更新位置
-    private void updatePosition(Jedis jedis, Position newPos) {
-        Position currentPos = parsePosition(jedis.get(positionKey()));
-        try {
-            Transaction tx = jedis.multi();
-            tx.setbit(obstacleKey(), offset(currentPos), false);//去掉旧位置标记
-            tx.rpush("Car" + carId + "Path", newPos.toString() + "|" + System.currentTimeMillis());//上传路径
-            tx.set(positionKey(), newPos.toString());//上传新位置
-            tx.setbit(obstacleKey(), offset(newPos), true);//上传新位置障碍物地图
-            updateExploredMap(tx, newPos);//更新探索地图
-            tx.exec();
+    void updatePosition(Jedis jedis, long newPos) {
+        long currentPos = Coords.parse(jedis.get(positionKeyBytes));
+        try (SlotTransaction tx = transaction(jedis)) {
+            setBit(tx, obstacleKey(), offset(currentPos), false);//去掉旧位置标记
+            PathHistory.append(tx.on(pathKey()), pathKey(), newPos);//上传路径
+            tx.set(positionKey(), Coords.format(newPos));//上传新位置
+            setBit(tx, obstacleKey(), offset(newPos), true);//上传新位置障碍物地图
+            long[] litOffsets = updateExploredMap(tx, newPos);//更新探索地图
+            if (tx.exec() != null) {
+                journalMove(carId, currentPos, newPos, mapWidth, mapLength);
+            }
+            routeState.lit(litOffsets);
         }
 
         catch (Exception e) {
-            System.err.println("["+carId+"]--小车移动失败--:" + e.getMessage());
+            errors.error(log, "update", "小车移动失败: {}", e.getMessage());
             throw new RuntimeException(e);
         }
 
     }
 
     // 更新点亮地图
-    void updateExploredMap(Transaction tx, Position center) {
+    long[] updateExploredMap(SlotTransaction tx, long center) {
+        long[] litOffsets = exploredOffsets(center);
+        for (long offset : litOffsets) {
+            setBit(tx, mapKey(), offset, true);
+        }
+        return litOffsets;
+    }
+
+    // 按存储布局写入位图（分块时写入格子所在的块）
+    private void setBit(SlotTransaction tx, String key, long offset, boolean value) {
+        MapLayout layout = mapLayout;
+        tx.setbit(layout.key(key, offset, mapWidth), layout.bit(offset, mapWidth), value);
+    }
+
+    // 以小车位置key所在槽位为主的事务（单机时就是jedis上的MULTI）
+    private SlotTransaction transaction(Jedis jedis) {
+        return new SlotTransaction(jedis, positionKey(), jedisProvider);
+    }
+
+    // 以center为中心的3*3中位于地图内的格子
+    long[] exploredOffsets(long center) {
+        long[] litOffsets = new long[9];
+        int count = 0;
+        int cx = Coords.x(center);
+        int cy = Coords.y(center);
         for (int dx = -1; dx <= 1; dx++) {
             for (int dy = -1; dy <= 1; dy++) {
-                int x = center.x + dx;
-                int y = center.y + dy;
+                int x = cx + dx;
+                int y = cy + dy;
 
                 // X方向边界：0到mapWidth-1
                 // Y方向边界：0到mapLength-1
                 //防止出现越过边界点亮
-                if (x >= 0 && x < mapWidth &&
-                        y >= 0 && y < mapLength) {
-
-                    int offset = offset(x, y);
-                    tx.setbit(mapKey(), offset, true);
+                if (Coords.inside(x, y, mapWidth, mapLength)) {
+                    litOffsets[count++] = offset(Coords.pack(x, y));
                 }
             }
         }
+        return (count == litOffsets.length) ? litOffsets : Arrays.copyOf(litOffsets, count);
+    }
+
+    //检查面前是否为障碍物（每次移动都会改变，不使用本地镜像）
+    private boolean isObstacle(Jedis jedis, long pos) {
+        long offset = offset(pos);
+        if (!clustered()) {
+            return mapLayout.getBit(jedis, obstacleKey(), offset, mapWidth);
+        }
+        try (Jedis node = jedisProvider.forKey(mapLayout.key(obstacleKey(), offset, mapWidth))) {
+            return mapLayout.getBit(node, obstacleKey(), offset, mapWidth);
+        }
     }
 
-    //检查面前是否为障碍物
-    private boolean isObstacle(Jedis jedis, Position pos) {
-        int offset = offset(pos);
-        return jedis.getbit(obstacleKey(), offset);
+    //镜像失效时重新拉取
+    private static void refreshMirrors(Jedis jedis) {
+        BitmapMirror map = mapMirror;
+        if (map != null) map.refreshIfStale(jedis);
     }
 
     //如果是障碍物清空队列并上报
     private void handleObstacle(Jedis jedis) {
-        System.out.println("["+carId+"]--检测到障碍，清空队列--");
-        try {
-            Transaction tx = jedis.multi();
+        log.info("检测到障碍，清空队列");
+        CarMetrics.OBSTACLES.increment();
+        try (SlotTransaction tx = transaction(jedis)) {
             tx.sadd("obstacle_events", carId);
             tx.del(routeKey());
             //tx.sadd(routeKey());
             tx.exec();
+            routeState.cleared();
         }catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
     // 协助方法（解析位移量、解析坐标等等）
+    //读取点亮地图
+    static boolean[] getMapBits(Jedis jedis, String key, long[] offsets, int width) {
+        return getBits(jedis, mapMirror, key, offsets, width);
+    }
+
+    //先查本地镜像，剩余的位再一次性读取
+    static boolean[] getBits(Jedis jedis, BitmapMirror mirror, String key, long[] offsets, int width) {
+        if (mirror == null) {
+            return getBits(jedis, key, offsets, width);
+        }
+        boolean[] bits = new boolean[offsets.length];
+        long[] missing = new long[offsets.length];
+        int[] missingIndex = new int[offsets.length];
+        int count = 0;
+        for (int i = 0; i < bits.length; i++) {
+            Boolean cached = mirror.get(offsets[i]);
+            if (cached != null) {
+                bits[i] = cached;
+            } else {
+                missing[count] = offsets[i];
+                missingIndex[count++] = i;
+            }
+        }
+        boolean[] fetched = getBits(jedis, key, Arrays.copyOf(missing, count), width);
+        for (int i = 0; i < fetched.length; i++) {
+            bits[missingIndex[i]] = fetched[i];
+        }
+        return bits;
+    }
+
+    //批量读取位图：每个key一条BITFIELD命令带多个GET u1，一次往返返回全部结果
+    //分块布局下格子落在多个块时，各块的BITFIELD放进同一个管道
+    static boolean[] getBits(Jedis jedis, String key, long[] offsets, int width) {
+        boolean[] bits = new boolean[offsets.length];
+        if (offsets.length == 0) {
+            return bits;
+        }
+        MapLayout layout = mapLayout;
+        if (!layout.isTiled()) {
+            List<Long> values = jedis.bitfield(key, layout.getArgs(offsets, width));
+            for (int i = 0; i < bits.length; i++) {
+                bits[i] = values.get(i) == 1L;
+            }
+            return bits;
+        }
+        Map<String, List<Integer>> tiles = layout.group(key, offsets, width);
+        if (clustered()) {
+            //集群时各块可能在不同节点，逐块向所在节点读取
+            for (Map.Entry<String, List<Integer>> tile : tiles.entrySet()) {
+                try (Jedis node = jedisProvider.forKey(tile.getKey())) {
+                    fill(bits, tile.getValue(), node.bitfield(tile.getKey(), layout.getArgs(offsets, tile.getValue(), width)));
+                }
+            }
+            return bits;
+        }
+        if (tiles.size() == 1) {
+            Map.Entry<String, List<Integer>> tile = tiles.entrySet().iterator().next();
+            fill(bits, tile.getValue(), jedis.bitfield(tile.getKey(), layout.getArgs(offsets, tile.getValue(), width)));
+            return bits;
+        }
+        Pipeline pipeline = jedis.pipelined();
+        List<Response<List<Long>>> replies = new ArrayList<>(tiles.size());
+        for (Map.Entry<String, List<Integer>> tile : tiles.entrySet()) {
+            replies.add(pipeline.bitfield(tile.getKey(), layout.getArgs(offsets, tile.getValue(), width)));
+        }
+        pipeline.sync();
+        int i = 0;
+        for (List<Integer> indices : tiles.values()) {
+            fill(bits, indices, replies.get(i++).get());
+        }
+        return bits;
+    }
+
+    private static void fill(boolean[] bits, List<Integer> indices, List<Long> values) {
+        for (int i = 0; i < values.size(); i++) {
+            bits[indices.get(i)] = values.get(i) == 1L;
+        }
+    }
+
     //getredis数据库方法
-    private int getIntegerConfig(Jedis jedis, String key) {
+    static int getIntegerConfig(Jedis jedis, String key) {
         String valueStr = jedis.get(key);
         return (valueStr != null) ? Integer.parseInt(valueStr) : 10;
     }
-    //是否存在坐标
-    private boolean hasPosition(Jedis jedis) {
-        return jedis.exists(positionKey());
-    }
+
     //获取新位置坐标（弹出）
     //不为空就解析，为空返回null
-    private Position getNextPosition(Jedis jedis) {
+    private long getNextPosition(Jedis jedis) {
         String nextPosStr = jedis.lpop(routeKey());
-        return (nextPosStr != null) ? parsePosition(nextPosStr) : null;
+        routeState.popped(nextPosStr, this);
+        return (nextPosStr != null) ? Coords.parse(nextPosStr) : Coords.NONE;
     }
-    //偏移量计算
-    int offset(Position pos) {
-        return pos.y * mapWidth + pos.x;
+    //偏移量计算（long，大地图不溢出）
+    long offset(Position pos) {
+        return (long) pos.y * mapWidth + pos.x;
     }
-    //同上
-    private int offset(int x, int y) {
-        return y * mapWidth + x;
-    }
-    //解析坐标（用，分割）
-    Position parsePosition(String str) {
-        String[] parts = str.split(",");
-        return new Position(
-                Integer.parseInt(parts[0]),
-                Integer.parseInt(parts[1])
-        );
+    //同上，打包坐标
+    long offset(long coord) {
+        return Coords.offset(coord, mapWidth);
     }
 
     // Redis key
-    private String positionKey() {
-        return "Car" + carId; // Car001
+    String positionKey() {
+        return positionKey;
+    }
+
+    String routeKey() {
+        return routeKey;
     }
 
-    private String routeKey() {
-        return "Car" + carId + "TaskList";
+    private String pathKey() {
+        return pathKey;
     }
 
     private String obstacleKey() {
         return "obstacle_map";
     }
 
-    private String mapKey() {
+    String mapKey() {
         return "map";
     }
 
@@ -265,6 +762,11 @@ public class Car {
             this.y = y;
         }
 
+        static Position parse(String str) {
+            long coord = Coords.parse(str);
+            return new Position(Coords.x(coord), Coords.y(coord));
+        }
+
         @Override
         public String toString() {
             return x + "," + y;
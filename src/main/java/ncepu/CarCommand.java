@@ -0,0 +1,94 @@
+package ncepu;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * UpdateCar消息解析
+ * 支持的格式：
+ * "001"                                  单车指令（原格式）
+ * ["001", "002"]                          批量指令，每辆车前进一步
+ * [{"carId": "001", "steps": 3}, "002"]   批量指令，可指定步数
+ */
+class CarCommand {
+    final String carId;
+    final int steps;
+
+    CarCommand(String carId, int steps) {
+        this.carId = carId;
+        this.steps = steps;
+    }
+
+    // 格式错误时抛出JsonParseException
+    static List<CarCommand> parse(String text) {
+        String trimmed = text.trim();
+        if (!trimmed.startsWith("[") && !trimmed.startsWith("{")) {
+            // 原格式：去掉首尾引号
+            if (trimmed.length() < 2) {
+                return Collections.emptyList();
+            }
+            String carId = trimmed.substring(1, trimmed.length() - 1);
+            return carId.isEmpty() ? Collections.emptyList()
+                    : Collections.singletonList(new CarCommand(carId, 1));
+        }
+        JsonElement root = JsonParser.parseString(trimmed);
+        List<CarCommand> commands = new ArrayList<>();
+        try {
+            if (root.isJsonArray()) {
+                for (JsonElement element : root.getAsJsonArray()) {
+                    add(commands, element);
+                }
+            } else {
+                add(commands, root);
+            }
+        } catch (IllegalStateException | UnsupportedOperationException | NumberFormatException e) {
+            throw new JsonParseException("指令字段类型错误: " + trimmed, e);
+        }
+        return commands;
+    }
+
+    // 批量格式，一步的指令只写小车ID
+    static String format(List<CarCommand> commands) {
+        JsonArray batch = new JsonArray();
+        for (CarCommand command : commands) {
+            if (command.steps == 1) {
+                batch.add(command.carId);
+            } else {
+                JsonObject object = new JsonObject();
+                object.addProperty("carId", command.carId);
+                object.addProperty("steps", command.steps);
+                batch.add(object);
+            }
+        }
+        return batch.toString();
+    }
+
+    private static void add(List<CarCommand> commands, JsonElement element) {
+        String carId;
+        int steps = 1;
+        if (element.isJsonPrimitive()) {
+            carId = element.getAsString();
+        } else if (element.isJsonObject()) {
+            JsonObject object = element.getAsJsonObject();
+            if (!object.has("carId")) {
+                throw new JsonParseException("缺少carId: " + object);
+            }
+            carId = object.get("carId").getAsString();
+            if (object.has("steps")) {
+                steps = object.get("steps").getAsInt();
+            }
+        } else {
+            throw new JsonParseException("无法识别的指令: " + element);
+        }
+        if (!carId.isEmpty() && steps > 0) {
+            commands.add(new CarCommand(carId, steps));
+        }
+    }
+}
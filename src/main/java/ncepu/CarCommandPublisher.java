@@ -0,0 +1,69 @@
+package ncepu;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 小车指令发送端（协调端使用）
+ * 功能：向UpdateCar队列发送指令，按小车ID散列出的消息组设置JMSXGroupID（-Dcar.mq.groups，默认64组），
+ * broker据此把同一辆车的指令固定派发给同一个消费者（跨节点亦然），消费者断开后自动重新分配；
+ * 批量指令按消息组拆成多条，单车指令和批量指令中的同一辆车落在同一组
+ */
+public class CarCommandPublisher implements AutoCloseable {
+    static final int GROUPS = Integer.getInteger("car.mq.groups", 64);
+
+    private final Connection connection;
+    private final Session session;
+    private final MessageProducer producer;
+
+    public CarCommandPublisher() throws JMSException {
+        this(CarMessageListener.BROKER_URL);
+    }
+
+    public CarCommandPublisher(String brokerUrl) throws JMSException {
+        connection = new ActiveMQConnectionFactory(brokerUrl).createConnection();
+        connection.start();
+        session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        producer = session.createProducer(session.createQueue(CarMessageListener.QUEUE_NAME));
+    }
+
+    // 发送单车指令，消息体沿用 "carId" 格式
+    public void send(String carId) throws JMSException {
+        TextMessage message = session.createTextMessage("\"" + carId + "\"");
+        message.setStringProperty("JMSXGroupID", groupOf(carId));
+        producer.send(message);
+    }
+
+    // 发送批量指令：按消息组拆分，每组一条消息携带组内各辆车及各自的步数
+    public void sendBatch(Map<String, Integer> steps) throws JMSException {
+        Map<String, List<CarCommand>> batches = new LinkedHashMap<>();
+        for (Map.Entry<String, Integer> entry : steps.entrySet()) {
+            batches.computeIfAbsent(groupOf(entry.getKey()), g -> new ArrayList<>())
+                    .add(new CarCommand(entry.getKey(), entry.getValue()));
+        }
+        for (Map.Entry<String, List<CarCommand>> batch : batches.entrySet()) {
+            TextMessage message = session.createTextMessage(CarCommand.format(batch.getValue()));
+            message.setStringProperty("JMSXGroupID", batch.getKey());
+            producer.send(message);
+        }
+    }
+
+    // 小车所属的消息组
+    static String groupOf(String carId) {
+        return "car-" + Math.floorMod(carId.hashCode(), GROUPS);
+    }
+
+    @Override
+    public void close() throws JMSException {
+        connection.close();
+    }
+}
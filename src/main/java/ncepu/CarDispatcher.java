@@ -0,0 +1,187 @@
+package ncepu;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+
+/**
+ * 小车指令调度器（每车一个邮箱）
+ * 功能：同一辆小车的指令串行执行，不同小车在线程池中并行；
+ * 小车忙碌期间到达的多条指令在邮箱中合并，下一轮作为一次"前进n步"请求执行，
+ * 每条指令的完成回调按执行结果逐条通知（用于MQ消息确认）
+ */
+public class CarDispatcher {
+    private static final Logger log = LoggerFactory.getLogger(CarDispatcher.class);
+    private static final Completion NONE = committed -> { };
+
+    private final Executor executor;
+    private final ConcurrentMap<String, Mailbox> mailboxes = new ConcurrentHashMap<>();
+
+    // 执行合并后的n步，返回从头开始成功提交的步数
+    public interface Advance {
+        int run(int steps);
+    }
+
+    // 指令完成回调，committed为false表示未能执行（可等待重投）
+    public interface Completion {
+        void done(boolean committed);
+    }
+
+    public CarDispatcher(Executor executor) {
+        this.executor = executor;
+    }
+
+    public void submit(String carId, Advance advance) {
+        submit(carId, 1, advance, NONE);
+    }
+
+    public void submit(String carId, Advance advance, Completion done) {
+        submit(carId, 1, advance, done);
+    }
+
+    // 投递一条前进steps步的指令，线程池拒绝时回调失败并抛出异常
+    public void submit(String carId, int steps, Advance advance, Completion done) {
+        Command command = new Command(steps, done);
+        Mailbox box;
+        do {
+            box = mailboxes.computeIfAbsent(carId, Mailbox::new);
+        } while (!box.offer(command, advance));//邮箱刚好空闲回收时重新获取
+        if (box.tryMarkScheduled()) {
+            execute(box);
+        }
+    }
+
+    // 某辆小车排队中的步数
+    public int depth(String carId) {
+        Mailbox box = mailboxes.get(carId);
+        return (box != null) ? box.pending() : 0;
+    }
+
+    // 全部小车排队中的步数
+    public int totalDepth() {
+        int total = 0;
+        for (Mailbox box : mailboxes.values()) {
+            total = saturatedAdd(total, box.pending());
+        }
+        return total;
+    }
+
+    // 同一邮箱同时最多只有一个任务在线程池中，调用方需先标记调度状态
+    private void execute(Mailbox box) {
+        try {
+            executor.execute(() -> drain(box));
+        } catch (RuntimeException e) {
+            complete(box.carId, box.takeAll(), 0);
+            box.finish(mailboxes);
+            throw e;
+        }
+    }
+
+    private void drain(Mailbox box) {
+        List<Command> batch = box.takeAll();
+        int steps = 0;
+        long now = System.nanoTime();
+        for (Command command : batch) {
+            steps = saturatedAdd(steps, command.steps);
+            CarMetrics.QUEUE_WAIT.record(now - command.enqueued);
+        }
+        int committed = 0;
+        try {
+            if (steps > 0) {
+                committed = box.advance.run(steps);
+            }
+        } finally {
+            complete(box.carId, batch, committed);
+            if (!box.finish(mailboxes)) {
+                execute(box);//执行期间又收到了指令
+            }
+        }
+    }
+
+    // 步数相加，溢出时取Integer.MAX_VALUE（driveToEnd）
+    private static int saturatedAdd(int a, int b) {
+        return (int) Math.min(Integer.MAX_VALUE, (long) a + b);
+    }
+
+    // 前committed步覆盖到的指令成功，其余失败
+    private static void complete(String carId, List<Command> batch, int committed) {
+        int done = 0;
+        for (Command command : batch) {
+            done = saturatedAdd(done, command.steps);
+            try {
+                command.done.done(done <= committed);
+            } catch (RuntimeException e) {
+                log.error("[{}] 指令回调异常: {}", carId, e.getMessage());
+            }
+        }
+    }
+
+    private static final class Command {
+        final int steps;
+        final Completion done;
+        final long enqueued = System.nanoTime();//投递时间，统计排队延迟
+
+        Command(int steps, Completion done) {
+            this.steps = steps;
+            this.done = done;
+        }
+    }
+
+    private static final class Mailbox {
+        final String carId;
+        private final ArrayDeque<Command> queue = new ArrayDeque<>();
+        private int pending = 0;
+        private boolean scheduled = false;
+        private boolean retired = false;//已从表中移除，不再接收指令
+        volatile Advance advance;
+
+        Mailbox(String carId) {
+            this.carId = carId;
+        }
+
+        synchronized boolean offer(Command command, Advance latest) {
+            if (retired) {
+                return false;
+            }
+            advance = latest;
+            queue.add(command);
+            pending = saturatedAdd(pending, command.steps);
+            return true;
+        }
+
+        synchronized List<Command> takeAll() {
+            List<Command> batch = new ArrayList<>(queue);
+            queue.clear();
+            pending = 0;
+            return batch;
+        }
+
+        synchronized int pending() {
+            return pending;
+        }
+
+        synchronized boolean tryMarkScheduled() {
+            if (scheduled) {
+                return false;
+            }
+            scheduled = true;
+            return true;
+        }
+
+        // 一轮执行结束：还有待执行的指令时保持调度状态并返回false，否则回收邮箱
+        synchronized boolean finish(ConcurrentMap<String, Mailbox> mailboxes) {
+            if (pending > 0) {
+                return false;
+            }
+            scheduled = false;
+            retired = true;
+            mailboxes.remove(carId, this);
+            return true;
+        }
+    }
+}
@@ -1,93 +1,258 @@
 package ncepu;
 
+import com.google.gson.JsonParseException;
 import org.apache.activemq.ActiveMQConnectionFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+import redis.clients.jedis.exceptions.JedisException;
 import javax.jms.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 /**
  * ActiveMQ消息监听器
- * 功能：监听指定队列，接收小车启动指令，支持异常触发重连
+ * 功能：监听指定队列，接收小车启动指令（单车或批量，格式见CarCommand），支持异常触发重连
+ * 流控：事务会话，会话线程等消息中的指令全部执行后才提交；全部指令都未执行时回滚，客户端按重投策略重投，
+ * 超过 -Dcar.mq.maxRedeliveries 次后broker转入死信队列（ActiveMQ.DLQ）。批量消息中部分小车已移动时不回滚，
+ * 在同一事务中提交原消息并只把未执行的小车重新发送（重发次数记在carRetries属性中，超过上限发往死信队列），
+ * 已移动的小车不会因重投再次移动；等待超时的指令仍在执行队列中，照常执行、不重发。
+ * 空消息、非文本消息和格式错误的消息直接提交丢弃。
+ * 执行中的指令超过高水位时暂停消费直到回落到低水位
+ * 并发：每个会话同时只处理一条消息，每个进程开多个会话/消费者（-Dcar.mq.consumers，默认为线程池并发度），
+ * 生产端按小车ID散列出的消息组设置JMSXGroupID，批量指令按组拆分（见CarCommandPublisher），
+ * broker会把同一辆车的指令固定派发给同一个消费者，集群中多个节点不会同时处理同一辆车
  */
 public class CarMessageListener {
-    private static final String BROKER_URL = "failover:(tcp://192.168.43.69:61616)" +
+    private static final Logger log = LoggerFactory.getLogger(CarMessageListener.class);
+    private static final LogLimiter errors = new LogLimiter(10_000);//重连风暴等重复错误10秒内只输出一条
+    static final String BROKER_URL = "failover:(tcp://192.168.43.69:61616)" +
             "?initialReconnectDelay=1000" +
             "&maxReconnectDelay=30000" +
             "&maxReconnectAttempts=-1" +  // 无限重试
             "&randomize=false";
+    static final String QUEUE_NAME = "UpdateCar";
+    // 每个会话同时只处理一条消息，默认会话数与线程池并发度一致
+    private static final int CONSUMERS = Math.max(1,
+            Integer.getInteger("car.mq.consumers", CarThreadPool.concurrency()));
+    // 总预取数按线程池并发度设置，平均分给各个消费者
+    private static final int PREFETCH = Math.max(1,
+            Integer.getInteger("car.mq.prefetch", CarThreadPool.concurrency()) / CONSUMERS);
+    private static final int HIGH_WATERMARK = Integer.getInteger("car.mq.highWatermark", 200);
+    private static final int LOW_WATERMARK = HIGH_WATERMARK / 2;
+    private static final int MAX_REDELIVERIES = Integer.getInteger("car.mq.maxRedeliveries", 6);
+    private static final long REDELIVERY_DELAY = Long.getLong("car.mq.redeliveryDelay", 1000);
+    private static final long COMMAND_TIMEOUT = Long.getLong("car.mq.commandTimeout", 30_000);//等待指令执行的上限(毫秒)
+    static final String RETRIES = "carRetries";//部分重发的次数
+    private static final String DLQ_NAME = "ActiveMQ.DLQ";
 
     private Connection mqConnection;
-    private Session session;
-    private MessageConsumer consumer;
+    private final List<Session> sessions = new ArrayList<>();
+    private final List<MessageConsumer> consumers = new ArrayList<>();
     private final AtomicBoolean running = new AtomicBoolean(false);
     private final AtomicBoolean reconnectFlag = new AtomicBoolean(false);
+    private final CarRegistry registry;
+    private final String brokerUrl;
+    private final boolean scheduled; // 开启节拍调度时只把小车加入活跃集合，由调度器移动
+    private final AtomicInteger inFlight = new AtomicInteger(0);//已派发未完成的指令数
+    private final Object flowLock = new Object();
+
+    public CarMessageListener() {
+        this(new CarRegistry());
+    }
+
+    public CarMessageListener(CarRegistry registry) {
+        this(registry, BROKER_URL);
+    }
+
+    // 指定broker地址（如模拟器中的vm://）
+    public CarMessageListener(CarRegistry registry, String brokerUrl) {
+        this(registry, brokerUrl, false);
+    }
+
+    // scheduled为true时与FleetScheduler配合使用
+    public CarMessageListener(CarRegistry registry, String brokerUrl, boolean scheduled) {
+        this.registry = registry;
+        this.brokerUrl = brokerUrl;
+        this.scheduled = scheduled;
+    }
 
     // 初始化MQ连接
     public void initConnection() throws JMSException {
         running.set(true);
         establishConnection();
-        System.out.println("[MQ] 连接初始化成功");
+        log.info("[MQ] 连接初始化成功");
     }
 
     // 开始监听指令队列
     public void startListening() {
         reconnectFlag.set(false);
         new Thread(this::monitorConnection).start();
-        System.out.println("[MQ] 监听线程已启动");
+        log.info("[MQ] 监听线程已启动");
     }
 
     // 建立连接的核心方法
     private void establishConnection() throws JMSException {
-        ActiveMQConnectionFactory factory = new ActiveMQConnectionFactory(BROKER_URL);
+        ActiveMQConnectionFactory factory = new ActiveMQConnectionFactory(brokerUrl);
+        factory.getPrefetchPolicy().setQueuePrefetch(PREFETCH);
+        // 回滚的消息由客户端延迟重投，超过次数后发送毒消息确认，broker转入死信队列
+        factory.getRedeliveryPolicy().setMaximumRedeliveries(MAX_REDELIVERIES);
+        factory.getRedeliveryPolicy().setInitialRedeliveryDelay(REDELIVERY_DELAY);
+        factory.getRedeliveryPolicy().setRedeliveryDelay(REDELIVERY_DELAY);
         mqConnection = factory.createConnection();
 
         mqConnection.setExceptionListener(e -> {
-            System.err.println("[MQ] 触发连接异常监听器: " + e.getMessage());
+            errors.warn(log, "exception-listener", "[MQ] 触发连接异常监听器: {}", e.getMessage());
             reconnectFlag.set(true);
         });
 
         mqConnection.start();
 
-        session = mqConnection.createSession(false, Session.AUTO_ACKNOWLEDGE);
-        Queue queue = session.createQueue("UpdateCar");
-        consumer = session.createConsumer(queue);
+        // 每个会话由ActiveMQ单独的线程派发，会话之间并行；提交和回滚都在会话自己的派发线程上执行
+        for (int i = 0; i < CONSUMERS; i++) {
+            Session session = mqConnection.createSession(true, Session.SESSION_TRANSACTED);
+            Queue queue = session.createQueue(QUEUE_NAME);
+            MessageConsumer consumer = session.createConsumer(queue);
+            // 设置异步消息处理
+            consumer.setMessageListener(message -> onMessage(session, message));
+            sessions.add(session);
+            consumers.add(consumer);
+        }
+    }
 
-        // 设置异步消息处理
-        consumer.setMessageListener(message -> {
-            try {
-                if (message instanceof TextMessage) {
-                    String text = ((TextMessage) message).getText();
-                    if (text == null) {
-                        System.err.println("--消息内容为空--");
-                        return;
-                    }
-                    String carId = text.trim();
-                    carId = carId.substring(1, carId.length() - 1);
-                    if (carId.isEmpty()) {
-                        System.err.println("--忽略空信息--");
-                        return;
-                    }
-
-                    handleCommand(carId);
-                }
-            } catch (JMSException e) {
-                System.err.println("--消息处理失败--: " + e.getMessage());
+    private void onMessage(Session session, Message message) {
+        try {
+            CarMetrics.MESSAGES.increment();
+            long sent = message.getJMSTimestamp();
+            if (sent > 0) {
+                CarMetrics.MQ_DELIVERY.record((System.currentTimeMillis() - sent) * 1_000_000L);
+            }
+            List<CarCommand> commands = commandsOf(message);
+            if (commands.isEmpty()) {
+                session.commit();//无法执行的消息提交丢弃，不占用预取额度
+                return;
+            }
 
-                // 捕获消息处理异常触发重连
-                if (running.get()) {
-                    System.err.println("--触发消息处理异常重连--");
-                    reconnectFlag.set(true);
+            if (scheduled) {
+                try {
+                    activate(commands);
+                } catch (JedisException e) {
+                    //Redis不可用：不触发MQ重连，SADD幂等，回滚等待重投
+                    errors.warn(log, "activate", "[MQ] 激活小车失败，等待重投: {}", e.getMessage());
+                    session.rollback();
+                    return;
                 }
-            } catch (Exception e) {
-                System.err.println("--未知处理异常--（ MQ收到消息无法在redis修改）: " + e.getMessage());
+                session.commit();
+                return;
+            }
+            awaitCapacity();
+            Outcome outcome = handleCommands(commands);
+            await(outcome);
+            List<CarCommand> failed = outcome.failed();
+            if (failed.isEmpty()) {
+                session.commit();
+                recordCommandLatency(message);
+            } else if (failed.size() == commands.size()) {
+                log.warn("[MQ] 指令均未执行，回滚等待重投");
+                session.rollback();
+            } else {
+                retry(session, message, failed);
+                session.commit();
+            }
+        } catch (JsonParseException e) {
+            errors.warn(log, "bad-format", "[MQ] 消息格式错误，丢弃: {}", e.getMessage());
+            commit(session);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            rollback(session);
+        } catch (JMSException e) {
+            errors.error(log, "jms-error", "[MQ] 消息处理失败，触发重连: {}", e.getMessage());
 
-                // 捕获其他异常触发重连
-                if (running.get()) {
-                    System.err.println("--触发未知异常重连--");
-                    reconnectFlag.set(true);
-                }
+            // 捕获消息处理异常触发重连
+            if (running.get()) {
+                reconnectFlag.set(true);
             }
-        });
+        } catch (Exception e) {
+            errors.error(log, "unknown-error", "[MQ] 未知处理异常（MQ收到消息无法在redis修改），触发重连: {}", e.getMessage());
+            rollback(session);
+
+            // 捕获其他异常触发重连
+            if (running.get()) {
+                reconnectFlag.set(true);
+            }
+        }
+    }
+
+    // 节拍调度：加入活跃小车集合（幂等，失败时回滚重投），步数由调度器按拍推进
+    private static void activate(List<CarCommand> commands) {
+        List<String> carIds = new ArrayList<>(commands.size());
+        for (CarCommand command : commands) {
+            carIds.add(command.carId);
+        }
+        FleetScheduler.activate(carIds);
+    }
+
+    // 等待指令执行结束；超时或被中断时已派发的指令仍会执行，按已有结果处理
+    private static void await(Outcome outcome) {
+        try {
+            outcome.done.get(COMMAND_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            errors.warn(log, "timeout", "[MQ] 指令执行超时，{}条仍在执行队列中，不再重投", outcome.pending());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            //done只会正常完成
+        }
+    }
+
+    // 在当前事务中重新发送未执行的指令，与原消息同一消息组；超过重投上限时发往死信队列
+    private static void retry(Session session, Message message, List<CarCommand> failed) throws JMSException {
+        int retries = message.propertyExists(RETRIES) ? message.getIntProperty(RETRIES) + 1 : 1;
+        boolean dead = retries > MAX_REDELIVERIES;
+        TextMessage resend = session.createTextMessage(CarCommand.format(failed));
+        resend.setIntProperty(RETRIES, retries);
+        String group = message.getStringProperty("JMSXGroupID");
+        if (group != null) {
+            resend.setStringProperty("JMSXGroupID", group);
+        }
+        MessageProducer producer = session.createProducer(session.createQueue(dead ? DLQ_NAME : QUEUE_NAME));
+        try {
+            producer.send(resend);
+        } finally {
+            producer.close();
+        }
+        if (dead) {
+            errors.error(log, "dead", "[MQ] {}辆小车的指令超过重投次数，转入死信队列", failed.size());
+        } else {
+            log.warn("[MQ] {}辆小车的指令未执行，其余已提交，重新发送未执行的部分", failed.size());
+        }
+    }
+
+    // 解析消息中的指令，空消息和非文本消息返回空列表
+    private static List<CarCommand> commandsOf(Message message) throws JMSException {
+        if (!(message instanceof TextMessage)) {
+            log.warn("[MQ] 忽略非文本消息: {}", message.getClass().getSimpleName());
+            return Collections.emptyList();
+        }
+        String text = ((TextMessage) message).getText();
+        if (text == null) {
+            log.warn("[MQ] 消息内容为空");
+            return Collections.emptyList();
+        }
+        List<CarCommand> commands = CarCommand.parse(text);
+        if (commands.isEmpty()) {
+            log.warn("[MQ] 忽略空信息");
+        }
+        return commands;
     }
 
     // 连接监控线程
@@ -100,7 +265,7 @@ public class CarMessageListener {
                 // 检查连接状态
                 if (reconnectFlag.get()&&attempts<5) {
                     attempts++;
-                    System.out.println("[MQ] 检测到重连标志，尝试重连...");
+                    log.info("[MQ] 检测到重连标志，尝试重连...");
                     reconnect();
                 }
                 else {
@@ -116,7 +281,7 @@ public class CarMessageListener {
     private synchronized void reconnect() {
         // 防止重入：如果已经在重连中则返回
             if (reconnectFlag.compareAndSet(true, true)) {
-                System.out.println("[MQ] 已在重连中，跳过本次请求");
+                log.debug("[MQ] 已在重连中，跳过本次请求");
                 return;
             }
         else {
@@ -133,11 +298,11 @@ public class CarMessageListener {
                 attempts++;
                 try {
                     establishConnection();
-                    System.out.println("[MQ] 重连成功（尝试次数：" + attempts + ")");
+                    log.info("[MQ] 重连成功（尝试次数：{}）", attempts);
                     reconnectFlag.set(false);  // 重置重连标志
                     return;
                 } catch (JMSException e) {
-                    System.err.println("[MQ] 重连失败（尝试 " + attempts + "）: " + e.getMessage());
+                    errors.warn(log, "reconnect", "[MQ] 重连失败（尝试 {}）: {}", attempts, e.getMessage());
                     TimeUnit.SECONDS.sleep(Math.min(30, attempts * 2)); // 指数退避
                 }
             }
@@ -150,41 +315,174 @@ public class CarMessageListener {
         }
     }
 
-    // 处理小车指令
-    void handleCommand(String carId) {
-        System.out.println("[MQ] 收到指令: " + carId);
-        Car car = new Car(carId);
-        if(car.initialize()) {
-            car.moveStep();
+    // 处理一条消息中的全部小车指令，逐条记录结果
+    Outcome handleCommands(List<CarCommand> commands) {
+        Outcome outcome = new Outcome(commands);
+        for (int i = 0; i < commands.size(); i++) {
+            int index = i;
+            handleCommand(commands.get(i), committed -> outcome.complete(index, committed));
         }
+        return outcome;
+    }
+
+    // 一条消息中各指令的执行结果
+    static final class Outcome {
+        private static final int PENDING = 0;
+        private static final int COMMITTED = 1;
+        private static final int FAILED = 2;
+
+        private final List<CarCommand> commands;
+        private final AtomicIntegerArray states;
+        private final AtomicInteger remaining;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Outcome(List<CarCommand> commands) {
+            this.commands = commands;
+            this.states = new AtomicIntegerArray(commands.size());
+            this.remaining = new AtomicInteger(commands.size());
+        }
+
+        void complete(int index, boolean committed) {
+            if (states.compareAndSet(index, PENDING, committed ? COMMITTED : FAILED)
+                    && remaining.decrementAndGet() == 0) {
+                done.complete(null);
+            }
+        }
+
+        // 已确定未执行的指令（仍在执行的不算）
+        List<CarCommand> failed() {
+            List<CarCommand> failed = new ArrayList<>();
+            for (int i = 0; i < commands.size(); i++) {
+                if (states.get(i) == FAILED) {
+                    failed.add(commands.get(i));
+                }
+            }
+            return failed;
+        }
+
+        int pending() {
+            return remaining.get();
+        }
+    }
+
+    // 处理单车指令
+    private void handleCommand(CarCommand command, CarDispatcher.Completion done) {
+        MDC.put("carId", command.carId);
+        try {
+            log.debug("[MQ] 收到指令 steps={}", command.steps);
+            Car car = registry.get(command.carId);
+            if(car == null) {
+                done.done(true);//找不到坐标的小车无法执行，确认掉避免反复重投
+                return;
+            }
+            inFlight.incrementAndGet();
+            car.moveStep(command.steps, committed -> {
+                if (!committed) {
+                    log.warn("[MQ] 指令未执行，等待重投: {}", command.carId);
+                }
+                release();
+                done.done(committed);
+            });
+        } catch (RejectedExecutionException e) {
+            errors.warn(log, "rejected", "[MQ] 执行队列已满，指令等待重投: {}", command.carId);//拒绝时已回调失败
+        } catch (RedisUnavailableException e) {
+            //加载小车时Redis不可用：不触发MQ重连，指令等待重投
+            errors.warn(log, "redis-unavailable", "[MQ] Redis不可用，指令等待重投: {}", command.carId);
+            done.done(false);
+        } catch (RuntimeException e) {
+            //一辆车加载失败不影响同一消息中的其他小车
+            errors.warn(log, "command-error", "[MQ] 指令处理失败，等待重投: {} {}", command.carId, e.getMessage());
+            done.done(false);
+        } finally {
+            MDC.remove("carId");
+        }
+    }
+
+    // 消息发送到移动提交的端到端延迟（依赖两端时钟）
+    private void recordCommandLatency(Message message) {
+        try {
+            long sent = message.getJMSTimestamp();
+            if (sent > 0) {
+                CarMetrics.COMMAND.record((System.currentTimeMillis() - sent) * 1_000_000L);
+            }
+        } catch (JMSException e) {
+            log.debug("[MQ] 读取消息时间戳失败: {}", e.getMessage());
+        }
+    }
+
+    private void commit(Session session) {
+        try {
+            session.commit();
+        } catch (JMSException e) {
+            errors.warn(log, "commit", "[MQ] 事务提交失败: {}", e.getMessage());
+        }
+    }
+
+    private void rollback(Session session) {
+        try {
+            session.rollback();
+        } catch (JMSException e) {
+            errors.warn(log, "rollback", "[MQ] 事务回滚失败: {}", e.getMessage());
+        }
+    }
+
+    // 超过高水位时阻塞消费线程，broker因预取额度用尽停止推送
+    private void awaitCapacity() throws InterruptedException {
+        if (inFlight.get() < HIGH_WATERMARK) {
+            return;
+        }
+        log.info("[MQ] 执行中指令超过高水位({})，暂停消费", HIGH_WATERMARK);
+        synchronized (flowLock) {
+            while (running.get() && inFlight.get() > LOW_WATERMARK) {
+                flowLock.wait(100);
+            }
+        }
+        log.info("[MQ] 恢复消费");
+    }
+
+    private void release() {
+        if (inFlight.decrementAndGet() <= LOW_WATERMARK) {
+            synchronized (flowLock) {
+                flowLock.notifyAll();
+            }
+        }
+    }
+
+    // 已派发未完成的指令数
+    public int inFlight() {
+        return inFlight.get();
     }
 
     // 关闭连接
     public void closeConnection() throws JMSException {
         running.set(false);
         closeResources();
-        System.out.println("[MQ] 连接已安全关闭");
+        log.info("[MQ] 连接已安全关闭");
     }
 
     // 资源关闭方法
     private void closeResources() {
-        try {
-            if (consumer != null) consumer.close();
-        } catch (Exception e) {
-            System.err.println("关闭消费者异常: " + e.getMessage());
+        for (MessageConsumer consumer : consumers) {
+            try {
+                consumer.close();
+            } catch (Exception e) {
+                log.warn("[MQ] 关闭消费者异常: {}", e.getMessage());
+            }
         }
-        try {
-            if (session != null) session.close();
-        } catch (Exception e) {
-            System.err.println("关闭会话异常: " + e.getMessage());
+        for (Session session : sessions) {
+            try {
+                session.close();
+            } catch (Exception e) {
+                log.warn("[MQ] 关闭会话异常: {}", e.getMessage());
+            }
         }
         try {
             if (mqConnection != null) mqConnection.close();
         } catch (Exception e) {
-            System.err.println("关闭连接异常: " + e.getMessage());
+            log.warn("[MQ] 关闭连接异常: {}", e.getMessage());
         }
-        consumer = null;
-        session = null;
+        consumers.clear();
+        sessions.clear();
         mqConnection = null;
     }
 }
\ No newline at end of file
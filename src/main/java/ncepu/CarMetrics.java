@@ -0,0 +1,161 @@
+package ncepu;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/**
+ * 小车服务监控指标
+ * 功能：统计移动各阶段的延迟直方图（p50/p99/p999）、移动/障碍/全亮/事务放弃等计数和队列深度，
+ * 注册为MXBean（ncepu:type=CarMetrics），可以用jconsole/JMX采集定位瓶颈
+ */
+public class CarMetrics implements CarMetricsMXBean {
+    private static final Logger log = LoggerFactory.getLogger(CarMetrics.class);
+    // 各阶段延迟
+    static final LatencyHistogram INITIALIZE = new LatencyHistogram();
+    static final LatencyHistogram CHECK_TASK = new LatencyHistogram();
+    static final LatencyHistogram NEXT_POSITION = new LatencyHistogram();
+    static final LatencyHistogram TRY_MOVE = new LatencyHistogram();
+    static final LatencyHistogram UPDATE_POSITION = new LatencyHistogram();
+    static final LatencyHistogram COMMIT_STEPS = new LatencyHistogram();  // 批量移动的读取+事务
+    static final LatencyHistogram SCRIPT = new LatencyHistogram();        // 脚本模式EVALSHA
+    static final LatencyHistogram MOVE = new LatencyHistogram();          // 一次advance整体
+    static final LatencyHistogram POOL_BORROW = new LatencyHistogram();   // 从连接池借连接（等待时间）
+    static final LatencyHistogram QUEUE_WAIT = new LatencyHistogram();    // 指令投递到开始执行
+    static final LatencyHistogram MQ_DELIVERY = new LatencyHistogram();   // 消息发送到收到（依赖两端时钟）
+    static final LatencyHistogram COMMAND = new LatencyHistogram();       // 消息发送到移动提交、消息确认（端到端）
+    static final LatencyHistogram FLEET_TICK = new LatencyHistogram();    // 节拍调度一拍
+    static final LatencyHistogram WRITE_BEHIND = new LatencyHistogram();  // 写回模式一次写回
+
+    // 计数
+    static final LongAdder MOVES = new LongAdder();
+    static final LongAdder OBSTACLES = new LongAdder();
+    static final LongAdder ROUTE_CLEARS = new LongAdder();
+    static final LongAdder TX_ABORTS = new LongAdder();
+    static final LongAdder MOVE_ERRORS = new LongAdder();
+    static final LongAdder MESSAGES = new LongAdder();
+    static final LongAdder REDIS_UNAVAILABLE = new LongAdder(); // 熔断/连接失败快速失败的次数
+
+    private static final CarMetrics INSTANCE = new CarMetrics();
+    private static volatile IntSupplier mqInFlight = () -> 0;
+
+    private final Map<String, LatencyHistogram> phases = new LinkedHashMap<>();
+
+    private CarMetrics() {
+        phases.put("initialize", INITIALIZE);
+        phases.put("checkTask", CHECK_TASK);
+        phases.put("getNextPosition", NEXT_POSITION);
+        phases.put("tryMove", TRY_MOVE);
+        phases.put("updatePosition", UPDATE_POSITION);
+        phases.put("commitSteps", COMMIT_STEPS);
+        phases.put("script", SCRIPT);
+        phases.put("move", MOVE);
+        phases.put("poolBorrow", POOL_BORROW);
+        phases.put("queueWait", QUEUE_WAIT);
+        phases.put("mqDelivery", MQ_DELIVERY);
+        phases.put("command", COMMAND);
+        phases.put("fleetTick", FLEET_TICK);
+        phases.put("writeBehind", WRITE_BEHIND);
+    }
+
+    // 注册MXBean，inFlight为MQ已派发未完成的指令数
+    public static void register(IntSupplier inFlight) {
+        mqInFlight = inFlight;
+        try {
+            ObjectName name = new ObjectName("ncepu:type=CarMetrics");
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, name);
+            }
+        } catch (Exception e) {
+            log.warn("[监控] 注册JMX失败: {}", e.getMessage());
+        }
+    }
+
+    public static CarMetrics get() {
+        return INSTANCE;
+    }
+
+    @Override
+    public long getMoves() {
+        return MOVES.sum();
+    }
+
+    @Override
+    public long getObstacles() {
+        return OBSTACLES.sum();
+    }
+
+    @Override
+    public long getRouteClears() {
+        return ROUTE_CLEARS.sum();
+    }
+
+    @Override
+    public long getTransactionAborts() {
+        return TX_ABORTS.sum();
+    }
+
+    @Override
+    public long getMoveErrors() {
+        return MOVE_ERRORS.sum();
+    }
+
+    @Override
+    public long getMessages() {
+        return MESSAGES.sum();
+    }
+
+    @Override
+    public long getRedisUnavailable() {
+        return REDIS_UNAVAILABLE.sum();
+    }
+
+    @Override
+    public String getRedisCircuitState() {
+        return JedisPoolUtil.circuitState();
+    }
+
+    @Override
+    public Map<String, Integer> getRedisPool() {
+        return JedisPoolUtil.poolStats();
+    }
+
+    @Override
+    public int getExecutorQueueDepth() {
+        return CarThreadPool.queueDepth();
+    }
+
+    @Override
+    public int getPendingCommands() {
+        return Car.pendingCommands();
+    }
+
+    @Override
+    public int getMqInFlight() {
+        return mqInFlight.getAsInt();
+    }
+
+    @Override
+    public Map<String, LatencySnapshot> getLatencies() {
+        Map<String, LatencySnapshot> snapshots = new LinkedHashMap<>();
+        phases.forEach((phase, histogram) -> snapshots.put(phase, histogram.snapshot()));
+        return snapshots;
+    }
+
+    @Override
+    public void reset() {
+        phases.values().forEach(LatencyHistogram::reset);
+        MOVES.reset();
+        OBSTACLES.reset();
+        ROUTE_CLEARS.reset();
+        TX_ABORTS.reset();
+        MOVE_ERRORS.reset();
+        MESSAGES.reset();
+        REDIS_UNAVAILABLE.reset();
+    }
+}
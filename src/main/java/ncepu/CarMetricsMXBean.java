@@ -0,0 +1,39 @@
+package ncepu;
+
+import java.util.Map;
+
+/**
+ * 小车服务监控指标（JMX：ncepu:type=CarMetrics）
+ */
+public interface CarMetricsMXBean {
+    long getMoves();
+
+    long getObstacles();
+
+    long getRouteClears();
+
+    long getTransactionAborts();
+
+    long getMoveErrors();
+
+    long getMessages();
+
+    long getRedisUnavailable();
+
+    // Redis连接熔断状态：CLOSED / OPEN / HALF_OPEN
+    String getRedisCircuitState();
+
+    // Redis连接池：active/idle/waiters/minIdle/maxIdle
+    Map<String, Integer> getRedisPool();
+
+    int getExecutorQueueDepth();
+
+    int getPendingCommands();
+
+    int getMqInFlight();
+
+    // 各阶段延迟（微秒），key为阶段名
+    Map<String, LatencySnapshot> getLatencies();
+
+    void reset();
+}
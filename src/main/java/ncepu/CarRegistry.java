@@ -0,0 +1,106 @@
+package ncepu;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 小车注册表
+ * 功能：按ID常驻复用Car实例，地图尺寸只读取一次并缓存，
+ * 配置变化（键空间通知或定时刷新）时推送给所有小车，长时间未收到指令的小车定时淘汰
+ */
+public class CarRegistry {
+    private static final Logger log = LoggerFactory.getLogger(CarRegistry.class);
+    private static final long IDLE_TIMEOUT = 10 * 60 * 1000; // 空闲淘汰时间(毫秒)
+    private static final long SWEEP_INTERVAL = 60;           // 淘汰检查间隔(秒)
+    private static final long CONFIG_REFRESH_INTERVAL = 30;  // 地图尺寸定时刷新间隔(秒)
+
+    private final ConcurrentMap<String, Car> cars = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "car-registry");
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile int mapWidth;
+    private volatile int mapLength;
+    private volatile boolean configLoaded = false;
+
+    public void start() {
+        scheduler.scheduleAtFixedRate(this::refreshConfigQuietly,
+                CONFIG_REFRESH_INTERVAL, CONFIG_REFRESH_INTERVAL, TimeUnit.SECONDS);
+        scheduler.scheduleAtFixedRate(this::evictIdle, SWEEP_INTERVAL, SWEEP_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    // 地图尺寸变化时立即刷新（需在watcher.start之前调用）
+    public void watchConfig(KeyspaceWatcher watcher) {
+        Runnable refresh = () -> scheduler.execute(this::refreshConfigQuietly);
+        watcher.watch("mapWidth", refresh);
+        watcher.watch("mapLength", refresh);
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+        cars.clear();
+    }
+
+    // 获取常驻小车，首次出现时检查坐标，找不到坐标返回null且不缓存
+    public Car get(String carId) {
+        Car car = cars.get(carId);
+        if (car == null) {
+            if (!configLoaded) {
+                refreshConfig();
+            }
+            Car created = new Car(carId);
+            if (!created.initialize(mapWidth, mapLength)) {
+                return null;
+            }
+            car = cars.putIfAbsent(carId, created);
+            if (car == null) {
+                car = created;
+            }
+        }
+        car.touch();
+        return car;
+    }
+
+    // 只查询已缓存的小车，不创建也不刷新使用时间
+    Car peek(String carId) {
+        return cars.get(carId);
+    }
+
+    public int size() {
+        return cars.size();
+    }
+
+    // 重新读取地图尺寸并推送给常驻小车
+    void refreshConfig() {
+        CarStore store = Car.store();
+        int width = store.readConfig("mapWidth");
+        int length = store.readConfig("mapLength");
+        if (!configLoaded || width != mapWidth || length != mapLength) {
+            mapWidth = width;
+            mapLength = length;
+            configLoaded = true;
+            cars.values().forEach(car -> car.applyMapSize(width, length));
+            log.info("[注册表] 地图尺寸: {}x{}", width, length);
+        }
+    }
+
+    private void refreshConfigQuietly() {
+        try {
+            refreshConfig();
+        } catch (Exception e) {
+            log.warn("[注册表] 刷新地图尺寸失败: {}", e.getMessage());
+        }
+    }
+
+    void evictIdle() {
+        long deadline = System.currentTimeMillis() - IDLE_TIMEOUT;
+        cars.values().removeIf(car -> car.getLastUsed() < deadline);
+    }
+}
@@ -0,0 +1,19 @@
+package ncepu;
+
+/**
+ * 小车状态存储
+ * 功能：Car通过它读取地图尺寸、检查坐标和执行移动。各实现保证相同的移动语义（与MoveScript一致）：
+ * 每步前检查剩余路径和终点附近3*3是否全亮，全亮删除任务队列；弹出下一格，是障碍则清空队列并上报obstacle_events；
+ * 否则更新位置、障碍物地图、路径记录并点亮周围3*3。
+ * RedisCarStore为默认实现（单机/集群，逐步、批量事务和脚本模式）；MemoryCarStore为进程内实现
+ */
+public interface CarStore {
+    // 全局整数配置（mapWidth / mapLength），不存在时为10
+    int readConfig(String key);
+
+    // 小车坐标是否存在
+    boolean hasPosition(Car car);
+
+    // 前进至多steps步，存储不可用时抛出异常（指令等待重投）
+    void move(Car car, int steps);
+}
@@ -1,31 +1,98 @@
 package ncepu;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import java.util.concurrent.*;
 
 /**
  * 线程池管理类（全局单例）
  * 功能：统一调度小车移动任务，控制并发量
+ * 模式：fixed（默认，有界线程池）/ virtual（每个任务一个虚拟线程，需Java 21运行时）
+ * 两种模式都用信号量把同时访问Redis的任务数限制在连接池上限以内
  */
 public class CarThreadPool {
-    private static final int CORE_POOL_SIZE = 10;
-    private static final int MAX_POOL_SIZE = 20;
+    private static final Logger log = LoggerFactory.getLogger(CarThreadPool.class);
+    private static final String MODE = System.getProperty("car.executor", "fixed");
+    private static final int CORE_POOL_SIZE = Integer.getInteger("car.executor.core", 10);
+    private static final int MAX_POOL_SIZE = Integer.getInteger("car.executor.max", 20);
     private static final long KEEP_ALIVE_TIME = 30L;
-    private static final BlockingQueue<Runnable> WORK_QUEUE = new LinkedBlockingQueue<>(100);
+    private static final BlockingQueue<Runnable> WORK_QUEUE =
+            new LinkedBlockingQueue<>(Integer.getInteger("car.executor.queue", 100));
+
+    // 同时持有Redis连接的任务数不超过连接池maxTotal
+    private static final Semaphore redisPermits = new Semaphore(JedisPoolUtil.MAX_TOTAL);
+
+    static final ExecutorService executor = createExecutor();
+
+    private static ExecutorService createExecutor() {
+        if ("virtual".equalsIgnoreCase(MODE)) {
+            ExecutorService virtual = virtualThreadExecutor();
+            if (virtual != null) {
+                log.info("[线程池] 使用虚拟线程模式");
+                return virtual;
+            }
+        }
+        return new ThreadPoolExecutor(
+                CORE_POOL_SIZE,
+                MAX_POOL_SIZE,
+                KEEP_ALIVE_TIME,
+                TimeUnit.SECONDS,
+                WORK_QUEUE,
+                new ThreadPoolExecutor.AbortPolicy()
+        );
+    }
 
-    static final ExecutorService executor = new ThreadPoolExecutor(
-            CORE_POOL_SIZE,
-            MAX_POOL_SIZE,
-            KEEP_ALIVE_TIME,
-            TimeUnit.SECONDS,
-            WORK_QUEUE,
-            new ThreadPoolExecutor.AbortPolicy()
-    );
+    // 编译目标为Java 17，通过反射调用Java 21的Executors.newVirtualThreadPerTaskExecutor
+    private static ExecutorService virtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+        } catch (ReflectiveOperationException e) {
+            log.warn("[线程池] 当前JDK不支持虚拟线程，退回固定线程池");
+            return null;
+        }
+    }
 
     public static void submitTask(Runnable task) {
-        executor.execute(task);
+        executor.execute(() -> {
+            redisPermits.acquireUninterruptibly();
+            try {
+                task.run();
+            } finally {
+                redisPermits.release();
+            }
+        });
+    }
+
+    // 能同时执行的移动任务数，用于确定MQ预取数量
+    public static int concurrency() {
+        return (executor instanceof ThreadPoolExecutor)
+                ? Math.min(MAX_POOL_SIZE, JedisPoolUtil.MAX_TOTAL) : JedisPoolUtil.MAX_TOTAL;
+    }
+
+    // 等待执行的任务数（线程池队列 + 等待Redis许可）
+    public static int queueDepth() {
+        int queued = (executor instanceof ThreadPoolExecutor)
+                ? ((ThreadPoolExecutor) executor).getQueue().size() : 0;
+        return queued + redisPermits.getQueueLength();
     }
 
     public static void shutdown() {
         executor.shutdown();
     }
-}
\ No newline at end of file
+
+    public static void shutdownNow() {
+        executor.shutdownNow();
+    }
+
+    // 等待已开始的移动任务结束，返回是否在超时前全部结束
+    public static boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    public static boolean isShutdown() {
+        return executor.isShutdown();
+    }
+}
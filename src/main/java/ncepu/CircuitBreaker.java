@@ -0,0 +1,98 @@
+package ncepu;
+
+import java.util.function.LongSupplier;
+
+/**
+ * 熔断器
+ * 功能：连续失败达到阈值后打开（CLOSED→OPEN），打开期间请求直接失败；
+ * 冷却时间到后半开（HALF_OPEN），只放行一次探测：探测成功关闭，失败重新打开并加倍冷却时间（不超过上限）。
+ * 所有方法只做状态切换，不阻塞
+ */
+class CircuitBreaker {
+    enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final int failureThreshold;
+    private final long baseOpenMillis;
+    private final long maxOpenMillis;
+    private final LongSupplier clock;
+
+    private volatile State state = State.CLOSED;
+    private volatile int failures = 0;//volatile：clearFailures的无锁快速路径
+    private long openMillis;
+    private long openedAt;
+    private boolean probing = false;
+
+    CircuitBreaker(int failureThreshold, long baseOpenMillis, long maxOpenMillis) {
+        this(failureThreshold, baseOpenMillis, maxOpenMillis, System::currentTimeMillis);
+    }
+
+    CircuitBreaker(int failureThreshold, long baseOpenMillis, long maxOpenMillis, LongSupplier clock) {
+        this.failureThreshold = failureThreshold;
+        this.baseOpenMillis = baseOpenMillis;
+        this.maxOpenMillis = maxOpenMillis;
+        this.clock = clock;
+        this.openMillis = baseOpenMillis;
+    }
+
+    // 关闭时放行；打开且冷却时间已到时转为半开并放行一次探测
+    synchronized boolean allowRequest() {
+        if (state == State.CLOSED) {
+            return true;
+        }
+        if (state == State.OPEN) {
+            if (clock.getAsLong() - openedAt < openMillis) {
+                return false;
+            }
+            state = State.HALF_OPEN;
+            probing = false;
+        }
+        if (probing) {
+            return false;
+        }
+        probing = true;
+        return true;
+    }
+
+    synchronized void recordSuccess() {
+        state = State.CLOSED;
+        failures = 0;
+        probing = false;
+        openMillis = baseOpenMillis;
+    }
+
+    // 关闭状态下的一次成功（如借连接成功），只清零连续失败次数，不影响打开/半开状态
+    void clearFailures() {
+        if (failures == 0) {
+            return;
+        }
+        synchronized (this) {
+            if (state == State.CLOSED) {
+                failures = 0;
+            }
+        }
+    }
+
+    synchronized void recordFailure() {
+        if (state == State.HALF_OPEN) {
+            openMillis = Math.min(openMillis * 2, maxOpenMillis);
+            open();
+        } else if (state == State.CLOSED && ++failures >= failureThreshold) {
+            open();
+        }
+    }
+
+    State state() {
+        return state;
+    }
+
+    boolean isClosed() {
+        return state == State.CLOSED;
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openedAt = clock.getAsLong();
+        failures = 0;
+        probing = false;
+    }
+}
@@ -0,0 +1,54 @@
+package ncepu;
+
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import redis.clients.jedis.Connection;
+import redis.clients.jedis.DefaultJedisClientConfig;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisCluster;
+import redis.clients.jedis.util.JedisClusterCRC16;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Redis集群连接器
+ * 功能：集群中没有"默认节点"，只实现按key借连接的JedisProvider。由JedisCluster维护槽位表和各节点的连接池，按key的槽位借出所在节点的连接（包装为Jedis，close归还）。
+ * 事务只能包含同一槽位的key：小车自己的key用hash tag（Car{ID}、Car{ID}TaskList、Car{ID}PathStream）落在同一槽位，
+ * 分块位图用区域hash tag（map:{x:y}、obstacle_map:{x:y}）让同一区域的两张位图落在同一槽位
+ */
+public class ClusterJedisProvider implements JedisProvider, AutoCloseable {
+    private static final int MAX_ATTEMPTS = 5;
+
+    private final JedisCluster cluster;
+
+    public ClusterJedisProvider(Set<HostAndPort> nodes) {
+        GenericObjectPoolConfig<Connection> config = new GenericObjectPoolConfig<>();
+        config.setMaxTotal(JedisPoolUtil.MAX_TOTAL);//每个节点一个连接池
+        cluster = new JedisCluster(nodes, DefaultJedisClientConfig.builder().build(), MAX_ATTEMPTS, config);
+    }
+
+    // 种子节点列表 "host:port,host:port"
+    public static ClusterJedisProvider fromConfig(String nodes) {
+        Set<HostAndPort> seeds = new HashSet<>();
+        for (String node : nodes.split(",")) {
+            seeds.add(HostAndPort.from(node.trim()));
+        }
+        return new ClusterJedisProvider(seeds);
+    }
+
+    @Override
+    public Jedis forKey(String key) {
+        return new Jedis(cluster.getConnectionFromSlot(JedisClusterCRC16.getSlot(key)));
+    }
+
+    @Override
+    public boolean isCluster() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+        cluster.close();
+    }
+}
@@ -0,0 +1,127 @@
+package ncepu;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 打包坐标
+ * 功能：把(x, y)打包进一个long（高32位x，低32位y），热路径上不再创建Position对象；
+ * 手写解析"x,y"，不经过String.split和正则，偏移量按long计算，大地图不会溢出
+ */
+final class Coords {
+    static final long NONE = Long.MIN_VALUE; // 没有坐标（任务队列为空等）
+
+    private Coords() {}
+
+    static long pack(int x, int y) {
+        return ((long) x << 32) | (y & 0xFFFFFFFFL);
+    }
+
+    static int x(long coord) {
+        return (int) (coord >> 32);
+    }
+
+    static int y(long coord) {
+        return (int) coord;
+    }
+
+    // 解析"x,y"，逗号之后的内容到第一个非数字字符为止（兼容"x,y|时间戳"）
+    static long parse(CharSequence str) {
+        int length = str.length();
+        int i = 0;
+        boolean negative = false;
+        if (i < length && str.charAt(i) == '-') {
+            negative = true;
+            i++;
+        }
+        int start = i;
+        long x = 0;
+        for (; i < length && str.charAt(i) != ','; i++) {
+            x = x * 10 + digit(str, i);
+            if (x > Integer.MAX_VALUE + 1L) {
+                throw new NumberFormatException("Position out of range: " + str);
+            }
+        }
+        if (i == start || i >= length) {
+            throw new NumberFormatException("Invalid position: " + str);
+        }
+        if (negative) x = -x;
+        i++;//跳过逗号
+
+        negative = false;
+        if (i < length && str.charAt(i) == '-') {
+            negative = true;
+            i++;
+        }
+        start = i;
+        long y = 0;
+        for (; i < length && str.charAt(i) >= '0' && str.charAt(i) <= '9'; i++) {
+            y = y * 10 + digit(str, i);
+            if (y > Integer.MAX_VALUE + 1L) {
+                throw new NumberFormatException("Position out of range: " + str);
+            }
+        }
+        if (i == start) {
+            throw new NumberFormatException("Invalid position: " + str);
+        }
+        if (negative) y = -y;
+        if (x != (int) x || y != (int) y) {
+            throw new NumberFormatException("Position out of range: " + str);
+        }
+        return pack((int) x, (int) y);
+    }
+
+    // 直接解析Redis返回的字节（ASCII），不先解码成String
+    static long parse(byte[] bytes) {
+        return parse(new Ascii(bytes));
+    }
+
+    static String format(long coord) {
+        return x(coord) + "," + y(coord);
+    }
+
+    // 位图偏移量 y * width + x
+    static long offset(long coord, int width) {
+        return (long) y(coord) * width + x(coord);
+    }
+
+    static boolean inside(int x, int y, int width, int length) {
+        return x >= 0 && x < width && y >= 0 && y < length;
+    }
+
+    private static int digit(CharSequence str, int i) {
+        char c = str.charAt(i);
+        if (c < '0' || c > '9') {
+            throw new NumberFormatException("Invalid position: " + str);
+        }
+        return c - '0';
+    }
+
+    // 字节数组的只读字符视图，只用于parse
+    private static final class Ascii implements CharSequence {
+        private final byte[] bytes;
+
+        Ascii(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int length() {
+            return bytes.length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (bytes[index] & 0xFF);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return toString().subSequence(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return new String(bytes, StandardCharsets.US_ASCII);
+        }
+    }
+}
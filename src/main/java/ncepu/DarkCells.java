@@ -0,0 +1,101 @@
+package ncepu;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.LongPredicate;
+
+/**
+ * 任务路径上的黑块计数
+ * 功能：记录路径上仍可能为黑块的格子（偏移量 -> 出现次数，按加入顺序）和终点附近3*3中的黑块。
+ * 点亮地图只会由暗变亮，确认点亮的格子直接移除、不再检查；anyDark找到第一个黑块即返回，
+ * 每个格子最多被确认点亮一次，逐步推进整条路径的校验摊还为每步O(1)。
+ * RouteState（Redis）和MemoryCarStore（进程内）共用，调用方负责同步
+ */
+final class DarkCells {
+    private final Map<Long, Integer> route = new LinkedHashMap<>(); // 路径上的黑块偏移量 -> 出现次数
+    private final Set<Long> tail = new HashSet<>();                 // 终点附近3*3中的黑块
+
+    // 路径尾部新增的格子
+    void add(long offset) {
+        route.merge(offset, 1, Integer::sum);
+    }
+
+    // 路径队首的格子被走过或弹出
+    void popped(long offset) {
+        route.computeIfPresent(offset, (k, n) -> n > 1 ? n - 1 : null);
+    }
+
+    // 终点变化时重新记录终点附近的格子
+    void tail(long[] offsets) {
+        tail.clear();
+        for (long offset : offsets) {
+            tail.add(offset);
+        }
+    }
+
+    void clearTail() {
+        tail.clear();
+    }
+
+    // 已确认点亮
+    void lit(long offset) {
+        route.remove(offset);
+        tail.remove(offset);
+    }
+
+    boolean isEmpty() {
+        return route.isEmpty() && tail.isEmpty();
+    }
+
+    // 尚未确认点亮的格子数（路径上重复的格子按次数计）
+    int count() {
+        int count = tail.size();
+        for (int n : route.values()) {
+            count += n;
+        }
+        return count;
+    }
+
+    // 按路径顺序的前n个待检查偏移量（路径在前、终点附近在后，去重），供一次批量读取
+    long[] head(int n) {
+        Set<Long> head = new LinkedHashSet<>();
+        for (Iterator<Long> it = route.keySet().iterator(); it.hasNext() && head.size() < n; ) {
+            head.add(it.next());
+        }
+        for (Iterator<Long> it = tail.iterator(); it.hasNext() && head.size() < n; ) {
+            head.add(it.next());
+        }
+        long[] offsets = new long[head.size()];
+        int i = 0;
+        for (long offset : head) {
+            offsets[i++] = offset;
+        }
+        return offsets;
+    }
+
+    // 逐个复查直到找到仍为黑块的格子，途中确认点亮的格子被移除
+    boolean anyDark(LongPredicate isLit) {
+        for (Iterator<Long> it = route.keySet().iterator(); it.hasNext(); ) {
+            if (!isLit.test(it.next())) {
+                return true;
+            }
+            it.remove();
+        }
+        for (Iterator<Long> it = tail.iterator(); it.hasNext(); ) {
+            if (!isLit.test(it.next())) {
+                return true;
+            }
+            it.remove();
+        }
+        return false;
+    }
+
+    void clear() {
+        route.clear();
+        tail.clear();
+    }
+}
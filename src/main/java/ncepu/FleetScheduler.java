@@ -0,0 +1,292 @@
+package ncepu;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisNoScriptException;
+import redis.clients.jedis.params.ScanParams;
+import redis.clients.jedis.resps.ScanResult;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 车队节拍调度器
+ * 功能：按固定节拍统一推进活跃小车集合（active_cars）中的小车，每辆车每拍走一步。
+ * 小车通过三种方式进入集合：协调端RPUSH任务队列时同时 SADD active_cars 小车ID；开启调度时MQ指令不再直接移动小车，
+ * 只把小车加入集合（见CarMessageListener），移动全部由调度器执行，同一辆车不会被两条路径同时移动；
+ * 另外每隔 -Dcar.scheduler.seedInterval 毫秒（默认10000）SCAN一次任务队列补入集合，兜底只RPUSH的协调端，
+ * 节拍本身不扫描键空间。任务队列走完或被删除后，由移动脚本在同一次原子执行中把小车移出集合。
+ * 每拍三次往返：SMEMBERS读取活跃小车 → 一个管道读取队首和位置并在内存中排定顺序
+ * → 一个管道按顺序为每辆车执行一次MoveScript。检查和提交在每辆车自己的脚本中原子完成（包括障碍物地图），
+ * 一辆车的任务队列被修改只影响这一辆车，不会让整拍作废
+ */
+public class FleetScheduler {
+    private static final Logger log = LoggerFactory.getLogger(FleetScheduler.class);
+    private static final LogLimiter errors = new LogLimiter(10_000);
+    static final String ACTIVE_KEY = "active_cars";
+    private static final String ROUTE_PATTERN = "Car*TaskList";
+    private static final int SCAN_COUNT = 1000;
+
+    private final CarRegistry registry; // 可为null，非null时通知常驻小车任务队列已变化
+    private final long tickInterval;    // 节拍间隔(毫秒)
+    private final long seedInterval = Long.getLong("car.scheduler.seedInterval", 10_000); // 补入间隔(毫秒)
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "fleet-scheduler");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public FleetScheduler(CarRegistry registry, long tickInterval) {
+        this.registry = registry;
+        this.tickInterval = tickInterval;
+    }
+
+    public void start() {
+        scheduler.scheduleWithFixedDelay(this::seedQuietly, 0, seedInterval, TimeUnit.MILLISECONDS);
+        scheduler.scheduleAtFixedRate(this::tickQuietly, tickInterval, tickInterval, TimeUnit.MILLISECONDS);
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    // 把小车加入活跃小车集合（MQ指令调用），下一拍开始推进
+    public static void activate(List<String> carIds) {
+        if (carIds.isEmpty()) {
+            return;
+        }
+        try (Jedis jedis = Car.connection()) {
+            jedis.sadd(ACTIVE_KEY, carIds.toArray(new String[0]));
+        }
+    }
+
+    private void seedQuietly() {
+        try (Jedis jedis = Car.connection()) {
+            log.debug("[调度] 扫描到任务队列 {} 个", seed(jedis));
+        } catch (Exception e) {
+            errors.error(log, "seed", "[调度] 扫描已有任务队列失败: {}", e.getMessage());
+        }
+    }
+
+    private void tickQuietly() {
+        try (Jedis jedis = Car.connection()) {
+            tick(jedis);
+        } catch (Exception e) {
+            errors.error(log, "tick", "[调度] 本拍执行失败: {}", e.getMessage());
+        }
+    }
+
+    // 把已有的任务队列补入活跃小车集合（兼容未SADD的协调端，定期执行），返回扫描到的小车数
+    static int seed(Jedis jedis) {
+        Set<String> carIds = new TreeSet<>();
+        ScanParams params = new ScanParams().match(ROUTE_PATTERN).count(SCAN_COUNT);
+        String cursor = ScanParams.SCAN_POINTER_START;
+        do {
+            ScanResult<String> result = jedis.scan(cursor, params);
+            for (String key : result.getResult()) {
+                carIds.add(key.substring(3, key.length() - "TaskList".length()));
+            }
+            cursor = result.getCursor();
+        } while (!ScanParams.SCAN_POINTER_START.equals(cursor));
+        if (!carIds.isEmpty()) {
+            jedis.sadd(ACTIVE_KEY, carIds.toArray(new String[0]));
+        }
+        return carIds.size();
+    }
+
+    // 推进一拍，返回移动的小车数
+    int tick(Jedis jedis) {
+        long start = System.nanoTime();
+        try {
+            return advanceFleet(jedis);
+        } finally {
+            CarMetrics.FLEET_TICK.recordSince(start);
+        }
+    }
+
+    private int advanceFleet(Jedis jedis) {
+        List<String> carIds = new ArrayList<>(new TreeSet<>(jedis.smembers(ACTIVE_KEY)));//按ID固定处理顺序
+        if (carIds.isEmpty()) {
+            return 0;
+        }
+        List<Plan> plans = readPlans(jedis, carIds);
+        if (plans.isEmpty()) {
+            return 0;
+        }
+        List<Plan> ordered = order(plans);
+        try {
+            runScripts(jedis, ordered);
+        } catch (JedisNoScriptException e) {
+            //脚本缓存被清空（重启/SCRIPT FLUSH）：同一SHA的脚本都没有执行，重新加载后重试
+            MoveScript.load(jedis);
+            runScripts(jedis, ordered);
+        }
+        return report(ordered);
+    }
+
+    // 第一个管道：地图尺寸、每辆车的队首和当前位置；队列已空的小车也执行脚本，由脚本移出集合
+    private static List<Plan> readPlans(Jedis jedis, List<String> carIds) {
+        Pipeline pipeline = jedis.pipelined();
+        Response<String> width = pipeline.get("mapWidth");
+        Response<String> length = pipeline.get("mapLength");
+        List<Response<String>> heads = new ArrayList<>(carIds.size());
+        List<Response<String>> positions = new ArrayList<>(carIds.size());
+        for (String carId : carIds) {
+            heads.add(pipeline.lindex(routeKey(carId), 0));
+            positions.add(pipeline.get(positionKey(carId)));
+        }
+        pipeline.sync();
+
+        int mapWidth = (width.get() != null) ? Integer.parseInt(width.get()) : 10;
+        int mapLength = (length.get() != null) ? Integer.parseInt(length.get()) : 10;
+        List<Plan> plans = new ArrayList<>(carIds.size());
+        for (int i = 0; i < carIds.size(); i++) {
+            String head = heads.get(i).get();
+            String position = positions.get(i).get();
+            if (head != null && position == null) {
+                log.warn("[调度] 未找到小车坐标: {}", carIds.get(i));
+                continue;
+            }
+            plans.add(new Plan(carIds.get(i),
+                    (position != null) ? Coords.parse(position) : Coords.NONE,
+                    (head != null) ? Coords.parse(head) : Coords.NONE,
+                    mapWidth, mapLength));
+        }
+        return plans;
+    }
+
+    // 目标格被本拍中尚未处理、且可能离开的小车占着时，先处理占位的小车；
+    // 互相占位（成环）的小车按ID顺序处理，结果与逐车顺序执行一致
+    private static List<Plan> order(List<Plan> plans) {
+        Map<Long, Plan> occupants = new HashMap<>();
+        for (Plan plan : plans) {
+            if (plan.position != Coords.NONE) {
+                occupants.put(plan.offset(plan.position), plan);
+            }
+        }
+        List<Plan> ordered = new ArrayList<>(plans.size());
+        Set<Plan> pending = new LinkedHashSet<>(plans);
+        boolean progress = true;
+        while (!pending.isEmpty() && progress) {
+            progress = false;
+            for (Plan plan : new ArrayList<>(pending)) {
+                Plan blocker = (plan.target != Coords.NONE) ? occupants.get(plan.offset(plan.target)) : null;
+                if (blocker != null && blocker != plan && pending.contains(blocker)) {
+                    continue;
+                }
+                ordered.add(plan);
+                pending.remove(plan);
+                progress = true;
+            }
+        }
+        ordered.addAll(pending);
+        return ordered;
+    }
+
+    // 第二个管道：按顺序为每辆车执行一步MoveScript（与Car.moveStep的单步语义一致），
+    // 前面小车的移动在Redis中已生效，后面的小车在脚本中读到的是最新的位图
+    private static void runScripts(Jedis jedis, List<Plan> plans) {
+        String sha = MoveScript.sha(jedis);
+        String tile = String.valueOf(Car.mapLayout().tileSize());
+        Pipeline pipeline = jedis.pipelined();
+        List<Response<Object>> replies = new ArrayList<>(plans.size());
+        for (Plan plan : plans) {
+            replies.add(pipeline.evalsha(sha,
+                    Arrays.asList(routeKey(plan.carId), positionKey(plan.carId), PathHistory.key(plan.carId),
+                            "obstacle_map", "map", "obstacle_events", ACTIVE_KEY),
+                    Arrays.asList(plan.carId, String.valueOf(plan.mapWidth), String.valueOf(plan.mapLength),
+                            String.valueOf(PathHistory.MAX_LENGTH), "1", tile)));
+        }
+        pipeline.sync();
+        for (int i = 0; i < plans.size(); i++) {
+            List<?> reply = (List<?>) replies.get(i).get();
+            Plan plan = plans.get(i);
+            plan.outcome = (Long) reply.get(0);
+            if ((Long) reply.get(1) > 0) {
+                plan.movedFrom = (reply.get(3) != null) ? Coords.parse((String) reply.get(3)) : Coords.NONE;
+                plan.movedTo = Coords.parse((String) reply.get(2));
+            }
+        }
+    }
+
+    // 脚本执行后输出日志，并让常驻小车下次移动前重新同步任务队列
+    private int report(List<Plan> plans) {
+        int moved = 0;
+        int obstacles = 0;
+        int cleared = 0;
+        for (Plan plan : plans) {
+            if (plan.outcome == MoveScript.NO_TASK) {
+                continue;//任务队列已空，脚本已移出活跃集合
+            }
+            MDC.put("carId", plan.carId);
+            if (plan.outcome == MoveScript.MOVED) {
+                moved++;
+                Car.journalMove(plan.carId, plan.movedFrom, plan.movedTo, plan.mapWidth, plan.mapLength);
+                if (log.isDebugEnabled()) {
+                    log.debug("移动到 {}", Coords.format(plan.movedTo));
+                }
+            } else if (plan.outcome == MoveScript.OBSTACLE) {
+                obstacles++;
+                log.info("检测到障碍，清空队列");
+            } else {
+                cleared++;
+                log.info("路径全亮，删除任务队列");
+            }
+            MDC.remove("carId");
+            Car car = (registry != null) ? registry.peek(plan.carId) : null;
+            if (car != null) {
+                car.routeChanged();
+            }
+        }
+        CarMetrics.MOVES.add(moved);
+        CarMetrics.OBSTACLES.add(obstacles);
+        CarMetrics.ROUTE_CLEARS.add(cleared);
+        log.debug("[调度] 推进{}辆小车：移动{}，遇障{}，路径全亮{}", plans.size(), moved, obstacles, cleared);
+        return moved;
+    }
+
+    private static String positionKey(String carId) {
+        return "Car" + carId;
+    }
+
+    private static String routeKey(String carId) {
+        return "Car" + carId + "TaskList";
+    }
+
+    // 一辆车在本拍中的输入和结果
+    private static final class Plan {
+        final String carId;
+        final long position; // 打包坐标，队列已空时可能为NONE
+        final long target;   // 队首，队列已空时为NONE
+        final int mapWidth;
+        final int mapLength;
+        long outcome;
+        long movedFrom;
+        long movedTo;
+
+        Plan(String carId, long position, long target, int mapWidth, int mapLength) {
+            this.carId = carId;
+            this.position = position;
+            this.target = target;
+            this.mapWidth = mapWidth;
+            this.mapLength = mapLength;
+        }
+
+        long offset(long coord) {
+            return Coords.offset(coord, mapWidth);
+        }
+    }
+}
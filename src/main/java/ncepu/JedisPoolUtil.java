@@ -1,20 +1,49 @@
 package ncepu;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import redis.clients.jedis.*;
 import redis.clients.jedis.exceptions.JedisConnectionException;
-import java.net.SocketException;
+import redis.clients.jedis.exceptions.JedisException;
 import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Redis连接管理
+ * 功能：连接池 + 熔断器。借连接失败或健康检查失败累计到阈值后熔断打开，打开期间getConnection直接抛出
+ * RedisUnavailableException，不占用工作线程；专用守护线程redis-health定期PING，冷却时间到后半开探测，
+ * 探测成功先在后台新建连接池并替换旧池，再关闭熔断。调用方只读volatile引用，不会被重建阻塞。
+ * 连接池大小：每个周期按峰值借出数和慢借用次数（PoolTuner）调整minIdle/maxIdle，空闲连接由redis-health线程预建，
+ * 启动时预建到minIdle，借连接的热路径上不建连
+ */
 public class JedisPoolUtil {
+    private static final Logger log = LoggerFactory.getLogger(JedisPoolUtil.class);
+    private static final LogLimiter errors = new LogLimiter(10_000);//健康检查/熔断日志10秒内只输出一条
     private static final String REDIS_HOST = "192.168.43.69";
     private static final int REDIS_PORT = 6379;
     private static final int HEALTH_CHECK_INTERVAL = 5; // 健康检查间隔(秒)
+    private static final int PROBE_INTERVAL = 1;        // 熔断打开后的探测间隔(秒)
+    private static final int TIMEOUT_MILLIS = 2000;     // 连接/读写超时
+    private static final Duration MAX_WAIT = Duration.ofSeconds(2); // 连接池耗尽时最多等待
+    static final int MAX_TOTAL = Integer.getInteger("car.redis.pool.max", 100); // 连接池最大连接数
+    private static final int MIN_IDLE = Integer.getInteger("car.redis.pool.minIdle",
+            Integer.getInteger("car.executor.core", 10)); // minIdle下限，默认每个核心移动线程一个连接
+    private static final int MAX_IDLE = Integer.getInteger("car.redis.pool.maxIdle", 20); // maxIdle下限
+    private static final int TUNE_INTERVAL = Integer.getInteger("car.redis.pool.tune", 10); // 调节周期(秒)
+    private static final long SLOW_BORROW_NANOS = TimeUnit.MILLISECONDS.toNanos(1); // 超过1毫秒视为没有空闲连接
 
     private static volatile JedisPool jedisPool;
-    private static final AtomicBoolean isHealthy = new AtomicBoolean(true);
-    private static final ScheduledExecutorService healthScheduler = Executors.newSingleThreadScheduledExecutor();
+    // 连续3次失败打开，冷却1秒起、每次探测失败加倍、最多30秒
+    private static final CircuitBreaker breaker = new CircuitBreaker(3, 1000, 30_000);
+    private static ScheduledExecutorService healthScheduler;
+    private static Jedis probe;//健康检查专用连接，只在redis-health线程上使用
+    private static final PoolTuner tuner = new PoolTuner(MIN_IDLE, MAX_IDLE, MAX_TOTAL);
+    private static final LongAccumulator peakActive = new LongAccumulator(Math::max, 0); // 本周期峰值借出数
+    private static final LongAdder slowBorrows = new LongAdder(); // 本周期慢借用次数
 
 
     private JedisPoolUtil() {}
@@ -22,140 +51,228 @@ public class JedisPoolUtil {
     // 初始化连接池
     public static synchronized void initialize() {
         if (jedisPool == null || jedisPool.isClosed()) {
-            JedisPoolConfig config = new JedisPoolConfig();
-            config.setMaxTotal(100);
-            config.setMaxIdle(20);
-            config.setMinIdle(5);
-            config.setTestWhileIdle(true);
-            config.setMinEvictableIdleTime(Duration.ofSeconds(60)); //去除空闲60s的连接
-            config.setTimeBetweenEvictionRuns(Duration.ofSeconds(30)); //30秒检测
-            // 添加连接有效性检测
-            config.setTestOnBorrow(false); // 关闭借出验证
-            config.setTestOnReturn(false); // 关闭归还验证
-            config.setTestWhileIdle(true); // 保持空闲验证
-
-            jedisPool = new JedisPool(config, REDIS_HOST, REDIS_PORT);
-            System.out.println("Redis连接池初始化完成");
-
-            // 启动健康检查
-            startScheduledHealthCheck();
+            jedisPool = createPool();
+            log.info("Redis连接池初始化完成");
+        }
+        if (healthScheduler == null) {
+            healthScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "redis-health");
+                thread.setDaemon(true);
+                return thread;
+            });
+            healthScheduler.schedule(JedisPoolUtil::performHealthCheck, HEALTH_CHECK_INTERVAL, TimeUnit.SECONDS);
+            healthScheduler.scheduleWithFixedDelay(JedisPoolUtil::tunePool, TUNE_INTERVAL, TUNE_INTERVAL, TimeUnit.SECONDS);
+            prefill();
         }
     }
 
-    // 启动定时健康检查
-    private static void startScheduledHealthCheck() {
-        // 每5秒执行一次健康检查
-        healthScheduler.scheduleAtFixedRate(
-                JedisPoolUtil::performHealthCheck,
-                0, // 立即启动
-                HEALTH_CHECK_INTERVAL,
-                TimeUnit.SECONDS
-        );
-
-        // 注册JVM关闭钩子
-        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            healthScheduler.shutdown();
+    // 在redis-health线程上把空闲连接补到minIdle
+    private static void prefill() {
+        ScheduledExecutorService scheduler = healthScheduler;
+        if (scheduler == null) {
+            return;
+        }
+        scheduler.execute(() -> {
+            JedisPool pool = jedisPool;
+            if (pool == null || !breaker.isClosed()) {
+                return;
+            }
             try {
-                if (!healthScheduler.awaitTermination(5, TimeUnit.SECONDS)) {
-                    healthScheduler.shutdownNow();
-                }
-            } catch (InterruptedException e) {
-                healthScheduler.shutdownNow();
-                Thread.currentThread().interrupt();
+                pool.preparePool();
+            } catch (Exception e) {
+                errors.warn(log, "prefill", "[连接池] 预建连接失败: {}", e.getMessage());
+            }
+        });
+    }
+
+    // 按上个周期的需求调整minIdle/maxIdle，需求上升时立即预建
+    private static void tunePool() {
+        JedisPool pool = jedisPool;
+        if (pool == null || pool.isClosed()) {
+            return;
+        }
+        int peak = (int) Math.max(peakActive.getThenReset(), pool.getNumActive());
+        tuner.update(peak, slowBorrows.sumThenReset());
+        int minIdle = tuner.minIdle();
+        int maxIdle = tuner.maxIdle();
+        if (minIdle != pool.getMinIdle() || maxIdle != pool.getMaxIdle()) {
+            boolean grow = minIdle > pool.getMinIdle();
+            //扩大时先改maxIdle、缩小时先改minIdle，保证任何时刻minIdle <= maxIdle
+            if (grow) {
+                pool.setMaxIdle(maxIdle);
+                pool.setMinIdle(minIdle);
+            } else {
+                pool.setMinIdle(minIdle);
+                pool.setMaxIdle(maxIdle);
             }
-        }));
+            log.info("[连接池] 峰值借出 {}，调整 minIdle={} maxIdle={}", peak, minIdle, maxIdle);
+            if (grow) {
+                prefill();
+            }
+        }
+    }
+
+    private static JedisPool createPool() {
+        JedisPoolConfig config = new JedisPoolConfig();
+        config.setMaxTotal(MAX_TOTAL);
+        config.setMaxIdle(tuner.maxIdle());
+        config.setMinIdle(tuner.minIdle());
+        config.setMaxWait(MAX_WAIT);
+        // 只回收超过minIdle的空闲连接（空闲60s），minIdle以内的保留，避免每30秒建连/回收一轮
+        config.setMinEvictableIdleTime(Duration.ofMillis(-1));
+        config.setSoftMinEvictableIdleTime(Duration.ofSeconds(60));
+        config.setTimeBetweenEvictionRuns(Duration.ofSeconds(30)); //30秒检测
+        // 添加连接有效性检测
+        config.setTestOnBorrow(false); // 关闭借出验证
+        config.setTestOnReturn(false); // 关闭归还验证
+        config.setTestWhileIdle(true); // 保持空闲验证
+        return new JedisPool(config, REDIS_HOST, REDIS_PORT, TIMEOUT_MILLIS);
     }
 
-    // 执行健康检查
+    // 执行健康检查（redis-health线程），按熔断状态决定下一次检查的时间
     private static void performHealthCheck() {
-        // 添加超时保护
-        final Duration timeout = Duration.ofSeconds(3);
-        final Future<Boolean> checkFuture = CompletableFuture.supplyAsync(() -> {
-            try (Jedis jedis = jedisPool.getResource()) {
-                return "PONG".equals(jedis.ping());
-            } catch (Exception e) {
-                return false;
+        try {
+            if (breaker.allowRequest()) {
+                CircuitBreaker.State before = breaker.state();
+                if (ping()) {
+                    if (before == CircuitBreaker.State.HALF_OPEN) {
+                        rebuildPool();
+                        log.info("[健康检查] Redis已恢复，熔断关闭");
+                    }
+                    breaker.recordSuccess();
+                } else {
+                    breaker.recordFailure();
+                    errors.warn(log, "health", "[健康检查] 连接异常，熔断状态: {}", breaker.state());
+                }
             }
-        });
+        } catch (Exception e) {
+            errors.error(log, "health-failed", "[健康检查] 异常: {}", e.getMessage());
+        } finally {
+            ScheduledExecutorService scheduler = healthScheduler;
+            if (scheduler != null && !scheduler.isShutdown()) {
+                int delay = breaker.isClosed() ? HEALTH_CHECK_INTERVAL : PROBE_INTERVAL;
+                try {
+                    scheduler.schedule(JedisPoolUtil::performHealthCheck, delay, TimeUnit.SECONDS);
+                } catch (RejectedExecutionException ignored) {
+                    //shutdown与重新调度并发
+                }
+            }
+        }
+    }
 
+    // 用专用连接PING，超时由连接的读写超时限定
+    private static boolean ping() {
         try {
-            isHealthy.set(checkFuture.get(timeout.toMillis(), TimeUnit.MILLISECONDS));
-        } catch (TimeoutException e) {
-            checkFuture.cancel(true);
-            isHealthy.set(false);
-            System.err.println("[健康检查] 操作超时");
+            if (probe == null) {
+                probe = new Jedis(REDIS_HOST, REDIS_PORT, TIMEOUT_MILLIS);
+            }
+            return "PONG".equals(probe.ping());
         } catch (Exception e) {
-            isHealthy.set(false);
+            if (probe != null) {
+                probe.close();
+                probe = null;
+            }
+            return false;
         }
+    }
 
-        if (!isHealthy.get()) {
-            System.err.println("[健康检查] 连接异常，触发重连");
-            reconnect();
+    // 新建连接池替换旧池，旧池中的连接在恢复前大多已失效；借出中的连接归还时随旧池销毁
+    private static void rebuildPool() {
+        JedisPool old;
+        synchronized (JedisPoolUtil.class) {
+            old = jedisPool;
+            jedisPool = createPool();
+        }
+        if (old != null) {
+            old.close();
         }
+        log.info("Redis连接池已重建");
+        prefill();
     }
 
-    // 获取Redis连接
+    // 获取Redis连接：熔断打开时直接抛出RedisUnavailableException，不返回null
     public static Jedis getConnection() {
-        if(isConnectionHealthy()) {
+        JedisPool pool = jedisPool;
+        if (pool == null) {
             initialize(); // 确保连接池已初始化
-            return jedisPool.getResource();
+            pool = jedisPool;
+        }
+        if (!breaker.isClosed()) {
+            CarMetrics.REDIS_UNAVAILABLE.increment();
+            throw new RedisUnavailableException("Redis熔断中: " + breaker.state());
         }
-        return null;
-    }
-
-    private static int retryCount = 0;
-    private static synchronized void reconnect() {
-
         try {
-            System.out.println("尝试重建Redis连接池...");
-            if (jedisPool != null && !jedisPool.isClosed()) {
-                jedisPool.close();
+            long start = System.nanoTime();
+            Jedis jedis = pool.getResource();
+            if (System.nanoTime() - start > SLOW_BORROW_NANOS) {
+                slowBorrows.increment();
             }
-
-            // 延迟重试（指数退避）
-            long delay = (long) (Math.pow(2, retryCount) * 1000); // 2^retryCount秒
-            Thread.sleep(Math.min(delay, 30000)); // 最多等待30秒
-
-            initialize();
-            retryCount = Math.min(retryCount + 1, 5); // 最大重试5次
-        } catch (Exception e) {
-            System.err.println("重建失败: " + e.getMessage());
-            retryCount++;
-        } finally {
-            if (isHealthy.get()) retryCount = 0; // 重置计数器
+            peakActive.accumulate(pool.getNumActive());
+            breaker.clearFailures();
+            return jedis;
+        } catch (JedisConnectionException e) {
+            breaker.recordFailure();
+            CarMetrics.REDIS_UNAVAILABLE.increment();
+            throw new RedisUnavailableException("Redis连接失败: " + e.getMessage(), e);
+        } catch (JedisException e) {
+            JedisPool current = jedisPool;
+            if (current != pool && current != null) {
+                return current.getResource();//旧池刚被重建替换关闭
+            }
+            throw e;
         }
     }
 
-
-
-
-
-
-
+    // 独立连接（不走连接池），用于订阅等长期占用连接的场景
+    public static Jedis createDedicatedConnection() {
+        return new Jedis(REDIS_HOST, REDIS_PORT);
+    }
 
     // 获取连接状态
     public static boolean isConnectionHealthy() {
-        return isHealthy.get();
+        return breaker.isClosed();
+    }
+
+    // 熔断状态：CLOSED / OPEN / HALF_OPEN
+    public static String circuitState() {
+        return breaker.state().name();
+    }
+
+    // 连接池状态：借出/空闲/等待中的连接数和当前minIdle/maxIdle，连接池未初始化时为空
+    public static Map<String, Integer> poolStats() {
+        Map<String, Integer> stats = new LinkedHashMap<>();
+        JedisPool pool = jedisPool;
+        if (pool != null && !pool.isClosed()) {
+            stats.put("active", pool.getNumActive());
+            stats.put("idle", pool.getNumIdle());
+            stats.put("waiters", pool.getNumWaiters());
+            stats.put("minIdle", pool.getMinIdle());
+            stats.put("maxIdle", pool.getMaxIdle());
+        }
+        return stats;
     }
 
     // 设置状态值
     public static void setCarStatus(int status) {
         try (Jedis jedis = getConnection()) {
             jedis.set("IsCarOpen", String.valueOf(status));
-            System.out.println("更新状态: IsCarOpen=" + status);
+            log.info("更新状态: IsCarOpen={}", status);
         } catch (Exception e) {
-            System.err.println("设置状态失败: " + e.getMessage());
+            log.error("设置状态失败: {}", e.getMessage());
         }
     }
 
     // 关闭连接池
     public static void shutdown() {
         synchronized (JedisPoolUtil.class) {
+            if (healthScheduler != null) {
+                healthScheduler.shutdownNow();
+                healthScheduler = null;
+            }
             if (jedisPool != null && !jedisPool.isClosed()) {
-                healthScheduler.shutdown();
                 jedisPool.close();
-                System.out.println("Redis连接池已安全关闭");
+                log.info("Redis连接池已安全关闭");
             }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,19 @@
+package ncepu;
+
+import redis.clients.jedis.Jedis;
+
+/**
+ * Redis连接器（按key借连接）
+ * 功能：集群部署时按key的槽位借出所在节点的连接，命令和事务中的key必须落在该槽位；
+ * 单机部署见StandaloneJedisProvider，任意key都从同一个连接池借连接，另外提供不指定key的get()
+ */
+@FunctionalInterface
+public interface JedisProvider {
+
+    // key所在节点的连接
+    Jedis forKey(String key);
+
+    default boolean isCluster() {
+        return false;
+    }
+}
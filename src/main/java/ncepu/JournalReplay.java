@@ -0,0 +1,133 @@
+package ncepu;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 移动日志回放工具
+ * 功能：顺序读取MoveJournal目录下的全部段。
+ * stats：输出记录数、小车数、时间范围和读取速率；
+ * redis：按日志重建 Car<ID> 位置、map 和 obstacle_map（分块布局由 -Dcar.map.tile 指定），管道批量写入。
+ * 位置取每辆车最后一条记录的终点；障碍物地图只改动日志涉及的格子（离开过的格子清零、最终位置置1），
+ * 结果与不同车之间记录的先后无关。静态障碍、任务队列和路径记录不在日志中，不会重建
+ *
+ * 运行：java -cp Car.jar ncepu.JournalReplay <stats|redis> <日志目录> [host] [port]
+ */
+public class JournalReplay {
+    private static final int BATCH = 10_000; // 每批管道命令数
+
+    private JournalReplay() {}
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || !("stats".equals(args[0]) || "redis".equals(args[0]))) {
+            System.err.println("用法: JournalReplay <stats|redis> <日志目录> [host] [port]");
+            System.exit(2);
+        }
+        long start = System.nanoTime();
+        State state = load(Path.of(args[1]));
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("记录 %d 条（%.0f 条/秒）, 小车 %d 辆, 点亮 %d 格, 时间 %tF %<tT.%<tL ~ %tF %<tT.%<tL%n",
+                state.records, state.records / Math.max(seconds, 1e-9), state.positions.size(), state.lit.size(),
+                state.first, state.last);
+        if ("redis".equals(args[0])) {
+            String host = (args.length > 2) ? args[2] : "localhost";
+            int port = (args.length > 3) ? Integer.parseInt(args[3]) : 6379;
+            try (Jedis jedis = new Jedis(host, port)) {
+                rebuild(state, jedis, MapLayout.fromConfig());
+            }
+            System.out.printf("已写入 %s:%d%n", host, port);
+        }
+    }
+
+    // 读取日志并合并为最终状态
+    static State load(Path dir) throws IOException {
+        State state = new State();
+        MoveJournal.read(dir, state::apply);
+        return state;
+    }
+
+    // 把合并后的状态写入Redis
+    static void rebuild(State state, Jedis jedis, MapLayout layout) {
+        Set<Long> occupied = new HashSet<>();
+        for (long position : state.positions.values()) {
+            occupied.add(Coords.offset(position, state.mapWidth));
+        }
+        Pipeline pipeline = jedis.pipelined();
+        int pending = 0;
+        for (long offset : state.vacated) {
+            if (!occupied.contains(offset)) {
+                pipeline.setbit(layout.key("obstacle_map", offset, state.mapWidth), layout.bit(offset, state.mapWidth), false);
+                pending = syncEvery(pipeline, pending);
+            }
+        }
+        for (Map.Entry<String, Long> car : state.positions.entrySet()) {
+            long offset = Coords.offset(car.getValue(), state.mapWidth);
+            pipeline.set("Car" + Car.keyTag(car.getKey()), Coords.format(car.getValue()));
+            pipeline.setbit(layout.key("obstacle_map", offset, state.mapWidth), layout.bit(offset, state.mapWidth), true);
+            pending = syncEvery(pipeline, pending);
+        }
+        for (long offset : state.lit) {
+            pipeline.setbit(layout.key("map", offset, state.mapWidth), layout.bit(offset, state.mapWidth), true);
+            pending = syncEvery(pipeline, pending);
+        }
+        pipeline.sync();
+    }
+
+    private static int syncEvery(Pipeline pipeline, int pending) {
+        if (++pending < BATCH) {
+            return pending;
+        }
+        pipeline.sync();
+        return 0;
+    }
+
+    // 每辆车按记录顺序到达的格子和出发位置（FleetSimulator按日志重放路径时使用）
+    public static Map<String, List<Long>> routes(Path dir) throws IOException {
+        Map<String, List<Long>> routes = new LinkedHashMap<>();
+        MoveJournal.read(dir, record -> {
+            List<Long> cells = routes.computeIfAbsent(record.carId, id -> new ArrayList<>());
+            if (cells.isEmpty()) {
+                cells.add((record.from != Coords.NONE) ? record.from : record.to);
+            }
+            cells.add(record.to);
+        });
+        return routes;
+    }
+
+    /**
+     * 日志合并后的最终状态
+     */
+    static final class State {
+        final Map<String, Long> positions = new LinkedHashMap<>();
+        final Set<Long> vacated = new HashSet<>(); // 小车离开过的格子
+        final Set<Long> lit = new HashSet<>();
+        int mapWidth;
+        long records;
+        long first;
+        long last;
+
+        void apply(MoveJournal.Record record) {
+            if (records++ == 0) {
+                first = record.timestamp;
+            }
+            last = record.timestamp;
+            mapWidth = record.mapWidth;
+            if (record.from != Coords.NONE) {
+                vacated.add(Coords.offset(record.from, record.mapWidth));
+            }
+            positions.put(record.carId, record.to);
+            for (long offset : record.litOffsets()) {
+                lit.add(offset);
+            }
+        }
+    }
+}
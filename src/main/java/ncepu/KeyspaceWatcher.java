@@ -0,0 +1,133 @@
+package ncepu;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPubSub;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * Redis键空间通知监听器
+ * 功能：通过一条独立连接订阅指定key的变更事件（__keyspace@*__:key），
+ * 回调本地缓存失效；连接断开期间的事件会丢失，所以断开和重新订阅时对所有key都触发一次回调
+ */
+public class KeyspaceWatcher {
+    private static final Logger log = LoggerFactory.getLogger(KeyspaceWatcher.class);
+    private static final LogLimiter errors = new LogLimiter(60_000);//Redis不可用时每秒重试，中断日志1分钟内只输出一条
+    private static final long RETRY_INTERVAL = 1000; // 重新订阅间隔(毫秒)
+
+    private final Supplier<Jedis> connector; // 独立连接，不占用连接池
+    private final Map<String, List<Runnable>> handlers = new ConcurrentHashMap<>();
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private volatile boolean active = false; // 订阅生效期间为true
+    private volatile JedisPubSub pubSub;
+    private Thread thread;
+
+    public KeyspaceWatcher(Supplier<Jedis> connector) {
+        this.connector = connector;
+    }
+
+    // 在start之前注册
+    public void watch(String key, Runnable onChange) {
+        handlers.computeIfAbsent(key, k -> new CopyOnWriteArrayList<>()).add(onChange);
+    }
+
+    public void start() {
+        if (running.compareAndSet(false, true)) {
+            thread = new Thread(this::run, "keyspace-watcher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    public void stop() {
+        running.set(false);
+        JedisPubSub current = pubSub;
+        if (current != null && current.isSubscribed()) {
+            current.punsubscribe();
+        }
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    // 订阅是否生效，未生效时本地缓存不可信
+    public boolean isActive() {
+        return active;
+    }
+
+    private void run() {
+        String[] patterns = handlers.keySet().stream()
+                .map(key -> "__keyspace@*__:" + key)
+                .toArray(String[]::new);
+        while (running.get()) {
+            try (Jedis jedis = connector.get()) {
+                enableNotifications(jedis);
+                pubSub = new JedisPubSub() {
+                    @Override
+                    public void onPSubscribe(String pattern, int subscribedChannels) {
+                        if (subscribedChannels == patterns.length) {
+                            active = true;
+                            fire(null);
+                        }
+                    }
+
+                    @Override
+                    public void onPMessage(String pattern, String channel, String message) {
+                        fire(channel.substring(channel.indexOf(':') + 1));
+                    }
+                };
+                jedis.psubscribe(pubSub, patterns);//阻塞直到取消订阅或连接断开
+            } catch (Exception e) {
+                errors.warn(log, "subscribe", "[键空间通知] 订阅中断: {}", e.getMessage());
+            } finally {
+                active = false;
+                fire(null);
+            }
+            try {
+                TimeUnit.MILLISECONDS.sleep(RETRY_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    // key为null时通知全部
+    private void fire(String key) {
+        if (key == null) {
+            handlers.values().forEach(list -> list.forEach(Runnable::run));
+            return;
+        }
+        List<Runnable> list = handlers.get(key);
+        if (list != null) {
+            list.forEach(Runnable::run);
+        }
+    }
+
+    // 打开键空间事件（K）中的字符串（$，SETBIT）和通用命令（g，DEL等）
+    private void enableNotifications(Jedis jedis) {
+        try {
+            List<String> config = jedis.configGet("notify-keyspace-events");
+            String flags = config.size() > 1 ? config.get(1) : "";
+            StringBuilder merged = new StringBuilder(flags);
+            if (flags.indexOf('K') < 0) merged.append('K');
+            if (flags.indexOf('A') < 0) {
+                if (flags.indexOf('$') < 0) merged.append('$');
+                if (flags.indexOf('g') < 0) merged.append('g');
+            }
+            if (!merged.toString().equals(flags)) {
+                jedis.configSet("notify-keyspace-events", merged.toString());
+            }
+        } catch (Exception e) {
+            log.warn("[键空间通知] 无法开启notify-keyspace-events: {}", e.getMessage());
+        }
+    }
+}
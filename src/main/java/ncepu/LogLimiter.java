@@ -0,0 +1,56 @@
+package ncepu;
+
+import org.slf4j.Logger;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 重复日志限流
+ * 功能：同一类日志（按key区分，如重连失败、移动异常）在一个时间窗口内只输出一条，
+ * 窗口内被省略的条数附在下一条输出之后，避免重连风暴刷屏
+ */
+final class LogLimiter {
+    private final long interval; // 时间窗口(毫秒)
+    private final ConcurrentMap<String, Window> windows = new ConcurrentHashMap<>();
+
+    LogLimiter(long interval) {
+        this.interval = interval;
+    }
+
+    void warn(Logger log, String key, String format, Object... args) {
+        long dropped = acquire(key);
+        if (dropped >= 0 && log.isWarnEnabled()) {
+            log.warn(withDropped(format, dropped), args);
+        }
+    }
+
+    void error(Logger log, String key, String format, Object... args) {
+        long dropped = acquire(key);
+        if (dropped >= 0 && log.isErrorEnabled()) {
+            log.error(withDropped(format, dropped), args);
+        }
+    }
+
+    // 返回-1表示本次应省略，否则返回上个窗口内省略的条数
+    long acquire(String key) {
+        Window window = windows.computeIfAbsent(key, k -> new Window());
+        long now = System.currentTimeMillis();
+        long start = window.start.get();
+        if (now - start >= interval && window.start.compareAndSet(start, now)) {
+            return window.dropped.getAndSet(0);
+        }
+        window.dropped.incrementAndGet();
+        return -1;
+    }
+
+    private String withDropped(String format, long dropped) {
+        return (dropped > 0) ? format + " (" + interval / 1000 + "秒内省略" + dropped + "条相同日志)" : format;
+    }
+
+    private static final class Window {
+        final AtomicLong start = new AtomicLong(Long.MIN_VALUE / 2);
+        final AtomicLong dropped = new AtomicLong();
+    }
+}
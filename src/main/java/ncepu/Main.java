@@ -1,48 +1,174 @@
 package ncepu;
 
-
+import org.apache.log4j.LogManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Jedis;
 
 import javax.jms.JMSException;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 
 public class Main {
+    private static final Logger log = LoggerFactory.getLogger(Main.class);
+
     public static void main(String[] args) {
         try {
-            // 初始化Redis连接池
-            JedisPoolUtil.initialize();
+            // -Dcar.redis.cluster=host:port,... 使用Redis集群，否则使用单机连接池
+            String clusterNodes = System.getProperty("car.redis.cluster");
+            ClusterJedisProvider cluster = null;
+            if (clusterNodes != null) {
+                cluster = ClusterJedisProvider.fromConfig(clusterNodes);
+                Car.setJedisProvider(cluster);
+                log.info("Redis集群模式: {}", clusterNodes);
+            } else {
+                // 初始化Redis连接池
+                JedisPoolUtil.initialize();
+                // 初始化小车连接器
+                Car.setJedisProvider(JedisPoolUtil::getConnection);
+            }
             // 设置初始状态
-            JedisPoolUtil.setCarStatus(1);
-            // 初始化小车连接器
-            Car.setJedisProvider(JedisPoolUtil::getConnection);
+            setCarStatus(cluster, 1);
+            // -Dcar.script=true 开启Lua脚本移动模式（脚本跨多个槽位，集群时不可用）
+            boolean script = Boolean.getBoolean("car.script");
+            if (script && cluster != null) {
+                log.warn("集群模式不支持Lua脚本移动，忽略 car.script");
+                script = false;
+            }
+            Car.setScriptMode(script);
+            // 常驻小车注册表
+            CarRegistry registry = new CarRegistry();
+            registry.start();
+            // -Dcar.map.tile=N 开启位图分块存储（N*N每块）；集群时必须分块（默认256），块坐标作为hash tag
+            MapLayout layout = (cluster != null)
+                    ? MapLayout.clustered(Integer.getInteger("car.map.tile", 256))
+                    : MapLayout.fromConfig();
+            Car.setMapLayout(layout);
+            log.info("位图存储布局: {}", layout);
+            // -Dcar.writeBehind=true 写回模式：状态以内存为准，每隔 -Dcar.writeBehind.interval 毫秒（默认100）批量写回Redis
+            // 只适用于单个协调端；移动不再经过Redis，位图镜像和节拍调度不可用
+            WriteBehindCarStore writeBehind = null;
+            if (Boolean.getBoolean("car.writeBehind") && cluster != null) {
+                log.warn("集群模式不支持写回模式，忽略 car.writeBehind");
+            } else if (Boolean.getBoolean("car.writeBehind")) {
+                writeBehind = WriteBehindCarStore.load(JedisPoolUtil::getConnection, layout,
+                        Long.getLong("car.writeBehind.interval", 100));
+                writeBehind.start();
+                Car.setStore(writeBehind);
+            }
+            // -Dcar.journal=目录 把每一步提交的移动追加到本地内存映射日志，JournalReplay可据此重建位置和位图
+            MoveJournal journal = null;
+            if (System.getProperty("car.journal") != null) {
+                journal = MoveJournal.fromConfig(System.getProperty("car.journal"));
+                Car.setJournal(journal);
+            }
+            // -Dcar.mirror=true 开启点亮地图本地镜像（镜像整张位图，分块存储时不可用）
+            KeyspaceWatcher watcher = null;
+            if (Boolean.getBoolean("car.mirror") && writeBehind != null) {
+                log.warn("写回模式下位图已在内存中，忽略 car.mirror");
+            } else if (Boolean.getBoolean("car.mirror") && layout.isTiled()) {
+                log.warn("位图分块存储时不支持本地镜像，忽略 car.mirror");
+            } else if (Boolean.getBoolean("car.mirror")) {
+                watcher = new KeyspaceWatcher(JedisPoolUtil::createDedicatedConnection);
+                Car.setBitmapMirror(new BitmapMirror("map", true, watcher, 100));
+                registry.watchConfig(watcher);
+                watcher.start();
+            }
+            // -Dcar.scheduler=true 开启节拍调度，每拍（-Dcar.scheduler.tick，默认200毫秒）统一推进所有小车
+            // 调度器每辆车执行一次移动脚本（脚本跨多个槽位），集群时不可用
+            FleetScheduler fleetScheduler = null;
+            if (Boolean.getBoolean("car.scheduler") && (cluster != null || writeBehind != null)) {
+                log.warn("集群模式和写回模式不支持节拍调度，忽略 car.scheduler");
+            } else if (Boolean.getBoolean("car.scheduler")) {
+                fleetScheduler = new FleetScheduler(registry, Long.getLong("car.scheduler.tick", 200));
+                fleetScheduler.start();
+            }
             // 初始化消息监听器
-            CarMessageListener listener = new CarMessageListener();
+            // 开启节拍调度时MQ指令只激活小车，移动全部由调度器执行
+            CarMessageListener listener = new CarMessageListener(registry, CarMessageListener.BROKER_URL,
+                    fleetScheduler != null);
+            // 监控指标（JMX：ncepu:type=CarMetrics）
+            CarMetrics.register(listener::inFlight);
             listener.initConnection();
             listener.startListening();
-            System.out.println("==activeMQ连接成功==");
+            log.info("==activeMQ连接成功==");
             // 注册关闭钩子
+            KeyspaceWatcher finalWatcher = watcher;
+            FleetScheduler finalScheduler = fleetScheduler;
+            ClusterJedisProvider finalCluster = cluster;
+            WriteBehindCarStore finalWriteBehind = writeBehind;
+            MoveJournal finalJournal = journal;
             Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-                shutdownProcedure(listener);
+                if (finalWatcher != null) finalWatcher.stop();
+                if (finalScheduler != null) finalScheduler.shutdown();
+                shutdownProcedure(listener, finalCluster, finalWriteBehind, finalJournal);
+                registry.shutdown();
             }));
-            System.out.println("====系统启动成功====");
-        } catch (JMSException e) {
-            System.err.println("启动失败: " + e.getMessage());
-            JedisPoolUtil.setCarStatus(0);
+            log.info("====系统启动成功====");
+        } catch (JMSException | IOException e) {
+            log.error("启动失败: {}", e.getMessage());
+            if (System.getProperty("car.redis.cluster") == null) {
+                JedisPoolUtil.setCarStatus(0);
+            }
             System.exit(1);
         }
     }
 
-    private static void shutdownProcedure(CarMessageListener listener) {
+    // 集群时向IsCarOpen所在节点写入
+    private static void setCarStatus(ClusterJedisProvider cluster, int status) {
+        if (cluster == null) {
+            JedisPoolUtil.setCarStatus(status);
+            return;
+        }
+        try (Jedis jedis = cluster.forKey("IsCarOpen")) {
+            jedis.set("IsCarOpen", String.valueOf(status));
+            log.info("更新状态: IsCarOpen={}", status);
+        } catch (Exception e) {
+            log.error("设置状态失败: {}", e.getMessage());
+        }
+    }
+
+    private static void shutdownProcedure(CarMessageListener listener, ClusterJedisProvider cluster,
+                                          WriteBehindCarStore writeBehind, MoveJournal journal) {
         try {
             // 关闭MQ监听
             if (listener != null) listener.closeConnection();
-            // 关闭小车资源
+            // 关闭小车资源，等待执行中的移动结束后再写回和关闭日志
             Car.cleanup();
+            try {
+                if (!CarThreadPool.awaitTermination(5, TimeUnit.SECONDS)) {
+                    log.warn("移动任务未在5秒内结束");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            // 写回模式：停止移动后把剩余变化写回Redis
+            if (writeBehind != null) {
+                try {
+                    writeBehind.close();
+                } catch (Exception e) {
+                    log.error("写回失败: {}", e.getMessage());
+                }
+            }
+            // 停止移动后刷盘关闭移动日志
+            if (journal != null) {
+                Car.setJournal(null);
+                journal.close();
+            }
             // 更新状态
-            JedisPoolUtil.setCarStatus(0);
+            setCarStatus(cluster, 0);
             // 关闭连接池
-            JedisPoolUtil.shutdown();
-            System.out.println("====系统关闭成功====");
+            if (cluster != null) {
+                cluster.close();
+            } else {
+                JedisPoolUtil.shutdown();
+            }
+            log.info("====系统关闭成功====");
         } catch (JMSException e) {
-            System.err.println("==关闭异常: " + e.getMessage()+"==");
+            log.error("==关闭异常: {}==", e.getMessage());
+        } finally {
+            // 异步队列和文件缓冲中的日志（包括以上关闭日志）在退出前写出
+            LogManager.shutdown();
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,156 @@
+package ncepu;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.params.ScanParams;
+import redis.clients.jedis.resps.ScanResult;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 位图存储布局（map / obstacle_map）
+ * 功能：默认整张地图一个位图，按 y * mapWidth + x 寻址；-Dcar.map.tile=N 时按N*N分块，
+ * 每块一个key（如 map:3:7，块坐标为 x/N、y/N），块内按 (y%N) * N + (x%N) 寻址。
+ * 分块后单个key不超过N*N位，热点分散到多个key，Redis只为写过的块分配内存；
+ * 调用方仍以全局偏移量标识格子，只在读写Redis时换算成(块key, 块内偏移)。
+ * 集群部署时块坐标写成hash tag（map:{3:7}），同一区域的map和obstacle_map块落在同一槽位，可以在一个事务中更新
+ */
+public final class MapLayout {
+    static final MapLayout SINGLE = new MapLayout(0, false);
+
+    private final int tileSize;     // 0表示不分块
+    private final boolean hashTags; // 块坐标是否写成hash tag
+
+    private MapLayout(int tileSize, boolean hashTags) {
+        this.tileSize = tileSize;
+        this.hashTags = hashTags;
+    }
+
+    public static MapLayout single() {
+        return SINGLE;
+    }
+
+    public static MapLayout tiled(int tileSize) {
+        if (tileSize <= 0) {
+            throw new IllegalArgumentException("tile size must be positive: " + tileSize);
+        }
+        return new MapLayout(tileSize, false);
+    }
+
+    // 集群部署：分块并按区域加hash tag
+    public static MapLayout clustered(int tileSize) {
+        return new MapLayout(tiled(tileSize).tileSize, true);
+    }
+
+    // 所有服务实例和协调端必须使用相同的分块大小
+    public static MapLayout fromConfig() {
+        int tileSize = Integer.getInteger("car.map.tile", 0);
+        return (tileSize > 0) ? tiled(tileSize) : SINGLE;
+    }
+
+    public boolean isTiled() {
+        return tileSize > 0;
+    }
+
+    int tileSize() {
+        return tileSize;
+    }
+
+    // 全局偏移量所在的key
+    String key(String base, long offset, int width) {
+        if (tileSize == 0) {
+            return base;
+        }
+        String tile = (offset % width / tileSize) + ":" + (offset / width / tileSize);
+        return hashTags ? base + ":{" + tile + "}" : base + ":" + tile;
+    }
+
+    // 全局偏移量在所在key中的偏移量
+    long bit(long offset, int width) {
+        if (tileSize == 0) {
+            return offset;
+        }
+        return offset / width % tileSize * tileSize + offset % width % tileSize;
+    }
+
+    void setBit(Transaction tx, String base, long offset, int width, boolean value) {
+        tx.setbit(key(base, offset, width), bit(offset, width), value);
+    }
+
+    boolean getBit(Jedis jedis, String base, long offset, int width) {
+        return jedis.getbit(key(base, offset, width), bit(offset, width));
+    }
+
+    // 按所在key分组，值为offsets中的下标（保持首次出现的顺序）
+    Map<String, List<Integer>> group(String base, long[] offsets, int width) {
+        if (tileSize == 0) {
+            List<Integer> all = new ArrayList<>(offsets.length);
+            for (int i = 0; i < offsets.length; i++) {
+                all.add(i);
+            }
+            return Collections.singletonMap(base, all);
+        }
+        Map<String, List<Integer>> tiles = new LinkedHashMap<>();
+        for (int i = 0; i < offsets.length; i++) {
+            tiles.computeIfAbsent(key(base, offsets[i], width), k -> new ArrayList<>()).add(i);
+        }
+        return tiles;
+    }
+
+    // 全部落在同一个key时的BITFIELD参数
+    String[] getArgs(long[] offsets, int width) {
+        String[] args = new String[offsets.length * 3];
+        for (int i = 0; i < offsets.length; i++) {
+            args[i * 3] = "GET";
+            args[i * 3 + 1] = "u1";
+            args[i * 3 + 2] = String.valueOf(bit(offsets[i], width));
+        }
+        return args;
+    }
+
+    // 一个key上的BITFIELD参数：每个下标一个 GET u1 <块内偏移>
+    String[] getArgs(long[] offsets, List<Integer> indices, int width) {
+        String[] args = new String[indices.size() * 3];
+        int i = 0;
+        for (int index : indices) {
+            args[i++] = "GET";
+            args[i++] = "u1";
+            args[i++] = String.valueOf(bit(offsets[index], width));
+        }
+        return args;
+    }
+
+    // 位图中为1的位数（分块时SCAN全部块累加；集群时只统计jedis所在节点上的块）
+    public long bitCount(Jedis jedis, String base) {
+        if (tileSize == 0) {
+            return jedis.bitcount(base);
+        }
+        Set<String> keys = new HashSet<>();//SCAN可能重复返回同一个key
+        ScanParams params = new ScanParams().match(base + ":*").count(1000);
+        String cursor = ScanParams.SCAN_POINTER_START;
+        do {
+            ScanResult<String> result = jedis.scan(cursor, params);
+            keys.addAll(result.getResult());
+            cursor = result.getCursor();
+        } while (!ScanParams.SCAN_POINTER_START.equals(cursor));
+        long count = 0;
+        for (String key : keys) {
+            count += jedis.bitcount(key);
+        }
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        if (tileSize == 0) {
+            return "single";
+        }
+        return tileSize + "x" + tileSize + (hashTags ? " (hash tags)" : "");
+    }
+}
@@ -0,0 +1,470 @@
+package ncepu;
+
+import redis.clients.jedis.StreamEntryID;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 进程内状态存储
+ * 功能：点亮地图和障碍物地图为long数组位图（按 y * mapWidth + x 寻址，CAS读写），任务队列和路径记录为
+ * 打包坐标的环形数组；每辆车的位置/队列/路径由按ID分段的锁保护，不同车的移动互不阻塞。
+ * 进入目标格用一次test-and-set占位，两辆车同时进入同一格时只有一辆成功，另一辆按障碍处理。
+ * 移动语义与MoveScript逐条对应，用于单机部署和大规模模拟；
+ * 开启变化跟踪时记录自上次写回以来变化的位和小车状态，供WriteBehindCarStore合并写回Redis
+ */
+public class MemoryCarStore implements CarStore {
+    private static final int STRIPES = 64;
+
+    final int mapWidth;
+    final int mapLength;
+    final Bits map;
+    final Bits obstacles;
+    final boolean trackChanges;
+    final ConcurrentMap<String, CarState> cars = new ConcurrentHashMap<>();
+    private final ReentrantLock[] locks = new ReentrantLock[STRIPES];
+    private final Set<String> obstacleEvents = ConcurrentHashMap.newKeySet();
+
+    public MemoryCarStore(int mapWidth, int mapLength) {
+        this(mapWidth, mapLength, false);
+    }
+
+    MemoryCarStore(int mapWidth, int mapLength, boolean trackChanges) {
+        if (mapWidth <= 0 || mapLength <= 0) {
+            throw new IllegalArgumentException("map size must be positive: " + mapWidth + "x" + mapLength);
+        }
+        this.mapWidth = mapWidth;
+        this.mapLength = mapLength;
+        this.trackChanges = trackChanges;
+        this.map = new Bits((long) mapWidth * mapLength, trackChanges);
+        this.obstacles = new Bits((long) mapWidth * mapLength, trackChanges);
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    @Override
+    public int readConfig(String key) {
+        if ("mapWidth".equals(key)) {
+            return mapWidth;
+        }
+        if ("mapLength".equals(key)) {
+            return mapLength;
+        }
+        return 10;
+    }
+
+    @Override
+    public boolean hasPosition(Car car) {
+        return position(car.getCarId()) != Coords.NONE;
+    }
+
+    // 与MoveScript相同的逐步推进，结束时按返回码记录指标和日志
+    @Override
+    public void move(Car car, int steps) {
+        String carId = car.getCarId();
+        long code = MoveScript.MOVED;
+        int moved = 0;
+        long last = Coords.NONE;
+        ReentrantLock lock = lock(carId);
+        lock.lock();
+        try {
+            CarState state = cars.computeIfAbsent(carId, id -> new CarState());
+            while (moved < steps) {
+                if (state.route.isEmpty()) {
+                    if (moved == 0) {
+                        code = MoveScript.NO_TASK;
+                    }
+                    break;
+                }
+                if (!hasDark(car, state)) {
+                    code = MoveScript.ROUTE_CLEARED;
+                    break;
+                }
+                long target = state.route.get(0);
+                state.popRoute(car.offset(target));
+                consume(state, target);
+                long targetOffset = car.offset(target);
+                if (obstacles.testAndSet(targetOffset)) {
+                    code = MoveScript.OBSTACLE;
+                    last = target;
+                    break;
+                }
+                if (state.position != Coords.NONE) {
+                    obstacles.clear(car.offset(state.position));
+                }
+                Car.journalMove(carId, state.position, target, mapWidth, mapLength);
+                state.appendPath(target);
+                state.position = target;
+                state.positionDirty = true;
+                for (long offset : car.exploredOffsets(target)) {
+                    map.set(offset);
+                }
+                last = target;
+                moved++;
+            }
+            if (code == MoveScript.OBSTACLE || code == MoveScript.ROUTE_CLEARED) {
+                for (int i = 0; i < state.route.size(); i++) {
+                    consume(state, state.route.get(i));
+                }
+                state.clearRoute();
+                if (code == MoveScript.OBSTACLE) {
+                    obstacleEvents.add(carId);
+                    state.obstacleEvent = true;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        Car.reportMove(code, moved, (last != Coords.NONE) ? Coords.format(last) : null);
+    }
+
+    // 跟踪变化时记录从任务队列头部走过或删除的格子，写回时据此确认Redis中的队列没有被替换
+    private void consume(CarState state, long cell) {
+        if (trackChanges) {
+            state.consumed.addLast(cell);
+        }
+    }
+
+    // 剩余路径上的格子和终点附近3*3中是否还有黑块；新追加的任务先计入黑块，只复查尚未确认点亮的格子
+    private boolean hasDark(Car car, CarState state) {
+        LongQueue route = state.route;
+        if (state.tracked < route.size()) {
+            for (int i = state.tracked; i < route.size(); i++) {
+                state.dark.add(car.offset(route.get(i)));
+            }
+            state.dark.tail(car.exploredOffsets(route.get(route.size() - 1)));
+            state.tracked = route.size();
+        }
+        return state.dark.anyDark(map::get);
+    }
+
+    // 设置小车位置（同时移动障碍物地图上的标记）
+    public void setPosition(String carId, long coord) {
+        ReentrantLock lock = lock(carId);
+        lock.lock();
+        try {
+            CarState state = cars.computeIfAbsent(carId, id -> new CarState());
+            if (state.position != Coords.NONE) {
+                obstacles.clear(Coords.offset(state.position, mapWidth));
+            }
+            state.position = coord;
+            state.positionDirty = true;
+            obstacles.set(Coords.offset(coord, mapWidth));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 小车位置，不存在时为Coords.NONE
+    public long position(String carId) {
+        ReentrantLock lock = lock(carId);
+        lock.lock();
+        try {
+            CarState state = cars.get(carId);
+            return (state != null) ? state.position : Coords.NONE;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 向任务队列尾部追加（对应RPUSH）；写回模式下任务队列以Redis为准，不使用此方法
+    public void pushRoute(String carId, long... cells) {
+        ReentrantLock lock = lock(carId);
+        lock.lock();
+        try {
+            CarState state = cars.computeIfAbsent(carId, id -> new CarState());
+            for (long cell : cells) {
+                state.route.addLast(cell);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int routeLength(String carId) {
+        ReentrantLock lock = lock(carId);
+        lock.lock();
+        try {
+            CarState state = cars.get(carId);
+            return (state != null) ? state.route.size() : 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 最近count条路径，按时间从新到旧（与PathHistory.latest一致）
+    public List<PathHistory.Entry> latestPath(String carId, int count) {
+        ReentrantLock lock = lock(carId);
+        lock.lock();
+        try {
+            CarState state = cars.get(carId);
+            if (state == null) {
+                return Collections.emptyList();
+            }
+            int n = Math.min(count, state.path.size());
+            List<PathHistory.Entry> entries = new ArrayList<>(n);
+            for (int i = state.path.size() - 1; entries.size() < n; i--) {
+                long coord = state.path.get(i);
+                entries.add(new PathHistory.Entry(state.pathTimes.get(i), Coords.x(coord), Coords.y(coord)));
+            }
+            return entries;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void setObstacle(long offset, boolean value) {
+        if (value) {
+            obstacles.set(offset);
+        } else {
+            obstacles.clear(offset);
+        }
+    }
+
+    public boolean isObstacle(long offset) {
+        return obstacles.get(offset);
+    }
+
+    public boolean isExplored(long offset) {
+        return map.get(offset);
+    }
+
+    // 点亮的格子数
+    public long exploredCount() {
+        return map.cardinality();
+    }
+
+    // 上报过障碍的小车（对应obstacle_events集合）
+    public Set<String> obstacleEvents() {
+        return Collections.unmodifiableSet(obstacleEvents);
+    }
+
+    ReentrantLock lock(String carId) {
+        return locks[(carId.hashCode() & 0x7fffffff) % STRIPES];
+    }
+
+    // 一辆车的状态，只在持有对应分段锁时访问
+    static final class CarState {
+        long position = Coords.NONE;
+        final LongQueue route = new LongQueue();
+        final LongQueue path = new LongQueue();
+        final LongQueue pathTimes = new LongQueue();
+        final DarkCells dark = new DarkCells(); // 任务队列前tracked个格子中仍可能为黑块的格子
+        int tracked = 0;
+        // 自上次写回以来的变化
+        boolean positionDirty = false;
+        LongQueue consumed = new LongQueue(); // 从任务队列头部走过或删除的格子
+        int unflushedPath = 0;     // 路径记录末尾尚未写回的条数
+        StreamEntryID lastPathId = new StreamEntryID(); // 已分配的最后一个路径消息ID（写回模式）
+        boolean obstacleEvent = false;
+
+        // 弹出队首（offset为其偏移量），任务只从队尾追加，已计入黑块的总是队首的tracked个
+        void popRoute(long offset) {
+            route.pollFirst();
+            if (tracked > 0) {
+                tracked--;
+                dark.popped(offset);
+            }
+        }
+
+        // 删除或替换任务队列时调用
+        void clearRoute() {
+            route.clear();
+            dark.clear();
+            tracked = 0;
+        }
+
+        // 按移动时间分配下一个路径消息ID，保持递增
+        StreamEntryID nextPathId(long time) {
+            long last = lastPathId.getTime();
+            lastPathId = (time > last) ? new StreamEntryID(time, 0)
+                    : new StreamEntryID(last, lastPathId.getSequence() + 1);
+            return lastPathId;
+        }
+
+        // 追加路径记录，超过PathHistory.MAX_LENGTH时丢弃最旧的
+        void appendPath(long coord) {
+            path.addLast(coord);
+            pathTimes.addLast(System.currentTimeMillis());
+            if (path.size() > PathHistory.MAX_LENGTH) {
+                path.pollFirst();
+                pathTimes.pollFirst();
+            }
+            unflushedPath = Math.min(unflushedPath + 1, path.size());
+        }
+    }
+
+    // long环形队列，满时容量翻倍
+    static final class LongQueue {
+        private long[] items = new long[16];
+        private int head = 0;
+        private int size = 0;
+
+        int size() {
+            return size;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        long get(int index) {
+            return items[(head + index) & (items.length - 1)];
+        }
+
+        void addLast(long value) {
+            if (size == items.length) {
+                long[] grown = new long[items.length * 2];
+                for (int i = 0; i < size; i++) {
+                    grown[i] = get(i);
+                }
+                items = grown;
+                head = 0;
+            }
+            items[(head + size) & (items.length - 1)] = value;
+            size++;
+        }
+
+        long pollFirst() {
+            long value = items[head];
+            head = (head + 1) & (items.length - 1);
+            size--;
+            return value;
+        }
+
+        void clear() {
+            head = 0;
+            size = 0;
+        }
+    }
+
+    // 线程安全位图，每个long存64位；跟踪变化时changed记录每个字中变化过的位，summary记录哪些字有变化
+    static final class Bits {
+        private final AtomicLongArray words;
+        private final AtomicLongArray changed;
+        private final AtomicLongArray summary;
+        private final long size;
+
+        Bits(long size, boolean trackChanges) {
+            if ((size + 63) / 64 > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("bitmap too large: " + size);
+            }
+            this.size = size;
+            int length = (int) ((size + 63) / 64);
+            words = new AtomicLongArray(length);
+            changed = trackChanges ? new AtomicLongArray(length) : null;
+            summary = trackChanges ? new AtomicLongArray((length + 63) / 64) : null;
+        }
+
+        // 越界时读为0（与GETBIT读取字符串以外的位一致）
+        boolean get(long offset) {
+            if (offset < 0 || offset >= size) {
+                return false;
+            }
+            return (words.get((int) (offset >>> 6)) & (1L << offset)) != 0;
+        }
+
+        void set(long offset) {
+            testAndSet(offset);
+        }
+
+        // 置1，返回原来是否已经为1；越界时不写入，返回false（与get一致）
+        boolean testAndSet(long offset) {
+            if (offset < 0 || offset >= size) {
+                return false;
+            }
+            int index = (int) (offset >>> 6);
+            long mask = 1L << offset;
+            long word;
+            do {
+                word = words.get(index);
+                if ((word & mask) != 0) {
+                    return true;
+                }
+            } while (!words.compareAndSet(index, word, word | mask));
+            markChanged(index, mask);
+            return false;
+        }
+
+        void clear(long offset) {
+            if (offset < 0 || offset >= size) {
+                return;
+            }
+            int index = (int) (offset >>> 6);
+            long mask = 1L << offset;
+            long word;
+            do {
+                word = words.get(index);
+                if ((word & mask) == 0) {
+                    return;
+                }
+            } while (!words.compareAndSet(index, word, word & ~mask));
+            markChanged(index, mask);
+        }
+
+        // 加载初始数据，不记为变化
+        void load(long offset) {
+            int index = (int) (offset >>> 6);
+            long mask = 1L << offset;
+            long word;
+            do {
+                word = words.get(index);
+            } while ((word & mask) == 0 && !words.compareAndSet(index, word, word | mask));
+        }
+
+        // 先记位再记字，drain先清字再清位，中间发生的变化最迟在下一次drain时取到
+        void markChanged(long offset) {
+            markChanged((int) (offset >>> 6), 1L << offset);
+        }
+
+        private void markChanged(int index, long mask) {
+            if (changed == null) {
+                return;
+            }
+            if ((changed.get(index) & mask) == 0) {
+                changed.getAndAccumulate(index, mask, (a, b) -> a | b);
+            }
+            long summaryMask = 1L << index;
+            if ((summary.get(index >>> 6) & summaryMask) == 0) {
+                summary.getAndAccumulate(index >>> 6, summaryMask, (a, b) -> a | b);
+            }
+        }
+
+        // 取出并清空变化过的位，按偏移量升序；只返回偏移量，写回时读取当前值（同一位多次变化只写最终值）
+        long[] drainChanges() {
+            LongQueue offsets = new LongQueue();
+            for (int s = 0; s < summary.length(); s++) {
+                long dirtyWords = summary.getAndSet(s, 0);
+                while (dirtyWords != 0) {
+                    int index = s * 64 + Long.numberOfTrailingZeros(dirtyWords);
+                    dirtyWords &= dirtyWords - 1;
+                    long bits = changed.getAndSet(index, 0);
+                    while (bits != 0) {
+                        offsets.addLast((long) index * 64 + Long.numberOfTrailingZeros(bits));
+                        bits &= bits - 1;
+                    }
+                }
+            }
+            long[] result = new long[offsets.size()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = offsets.get(i);
+            }
+            return result;
+        }
+
+        long cardinality() {
+            long count = 0;
+            for (int i = 0; i < words.length(); i++) {
+                count += Long.bitCount(words.get(i));
+            }
+            return count;
+        }
+    }
+}
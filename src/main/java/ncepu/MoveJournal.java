@@ -0,0 +1,301 @@
+package ncepu;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * 本地移动日志
+ * 功能：每一步提交成功的移动追加一条二进制记录（时间、小车ID、起点、终点、点亮的格子），
+ * 写入内存映射的段文件 moves-000001.journal、moves-000002.journal ...（每段 -Dcar.journal.segment 字节，默认64MB），
+ * 写满后滚动到下一段。追加只是一次内存拷贝，不经过系统调用；后台线程每隔 -Dcar.journal.sync 毫秒（默认1000）force刷盘。
+ * 进程崩溃时已写入映射区的记录由操作系统落盘，机器掉电时最多丢失一个刷盘周期。
+ * 记录最后写入长度字段并带CRC32，打开时从最后一段开头扫描，停在第一条长度为0或校验失败的记录处，从那里继续追加。
+ * 记录在Redis事务提交之后写入，同一辆车的记录按移动顺序排列，不同车之间的先后不保证与提交顺序一致
+ */
+public class MoveJournal implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(MoveJournal.class);
+    private static final LogLimiter errors = new LogLimiter(10_000);//写入失败10秒内只输出一条
+    static final String PREFIX = "moves-";
+    static final String SUFFIX = ".journal";
+    // 记录格式：int 长度 | int CRC32（长度之后的全部字节）| long 时间 | long 起点 | long 终点
+    //          | int 地图宽 | short 点亮掩码 | short ID字节数 | ID(UTF-8)
+    static final int HEADER = 40;
+    private static final int MIN_SEGMENT = 4096;
+
+    private final Path dir;
+    private final int segmentSize;
+    private final ScheduledExecutorService syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "move-journal");
+        t.setDaemon(true);
+        return t;
+    });
+    private final CRC32 crc = new CRC32();
+    private volatile MappedByteBuffer buffer;//当前段
+    private int segment;//当前段序号
+    private boolean closed;
+
+    MoveJournal(Path dir, int segmentSize) throws IOException {
+        if (segmentSize < MIN_SEGMENT) {
+            throw new IllegalArgumentException("segment size must be at least " + MIN_SEGMENT + ": " + segmentSize);
+        }
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(dir);
+        List<Path> segments = segments(dir);
+        if (segments.isEmpty()) {
+            roll(1);
+        } else {
+            recover(segments.get(segments.size() - 1));
+        }
+    }
+
+    // 打开目录下的日志（不存在时创建），syncMillis<=0时不定期刷盘
+    public static MoveJournal open(Path dir, int segmentSize, long syncMillis) throws IOException {
+        MoveJournal journal = new MoveJournal(dir, segmentSize);
+        if (syncMillis > 0) {
+            journal.syncer.scheduleWithFixedDelay(journal::syncQuietly, syncMillis, syncMillis, TimeUnit.MILLISECONDS);
+        }
+        log.info("[日志] 移动日志 {}，当前段 {}，写入位置 {}", dir, journal.segment, journal.buffer.position());
+        return journal;
+    }
+
+    public static MoveJournal fromConfig(String dir) throws IOException {
+        return open(Path.of(dir), Integer.getInteger("car.journal.segment", 64 << 20),
+                Long.getLong("car.journal.sync", 1000));
+    }
+
+    // 记录一步移动；写入失败只记录日志，不影响已经提交的移动
+    public void append(String carId, long from, long to, int mapWidth, int mapLength) {
+        byte[] id = carId.getBytes(StandardCharsets.UTF_8);
+        int length = HEADER + id.length;
+        int mask = litMask(to, mapWidth, mapLength);
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            try {
+                MappedByteBuffer current = buffer;
+                if (current.remaining() < length) {
+                    current = roll(segment + 1);
+                }
+                int start = current.position();
+                current.position(start + 8);
+                current.putLong(now).putLong(from).putLong(to).putInt(mapWidth)
+                        .putShort((short) mask).putShort((short) id.length).put(id);
+                crc.reset();
+                crc.update(current.duplicate().position(start + 8).limit(start + length));
+                current.putInt(start + 4, (int) crc.getValue());
+                current.putInt(start, length);//最后写长度，写到一半的记录长度为0
+            } catch (IOException | RuntimeException e) {
+                errors.error(log, "append", "[日志] 写入移动日志失败: {}", e.getMessage());
+            }
+        }
+    }
+
+    // 刷盘：把当前段的修改写回文件
+    public synchronized void sync() {
+        if (!closed) {
+            buffer.force();
+        }
+    }
+
+    @Override
+    public void close() {
+        syncer.shutdown();
+        try {
+            syncer.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            if (!closed) {
+                buffer.force();
+                closed = true;
+            }
+        }
+    }
+
+    private void syncQuietly() {
+        try {
+            sync();
+        } catch (RuntimeException e) {
+            errors.error(log, "sync", "[日志] 刷盘失败: {}", e.getMessage());
+        }
+    }
+
+    // 刷完当前段后创建并映射下一段
+    private MappedByteBuffer roll(int next) throws IOException {
+        if (buffer != null) {
+            buffer.force();
+        }
+        buffer = map(dir.resolve(segmentName(next)), segmentSize);
+        segment = next;
+        return buffer;
+    }
+
+    // 扫描最后一段找到写入位置；遇到写了一半的记录时清零其后的内容，避免之后被当作有效记录读出
+    private void recover(Path file) throws IOException {
+        MappedByteBuffer mapped = map(file, (int) Math.max(Files.size(file), segmentSize));
+        int end = scan(mapped, null);
+        if (end + 4 <= mapped.limit() && mapped.getInt(end) != 0) {
+            log.warn("[日志] {} 在位置 {} 有未写完的记录，已截断", file.getFileName(), end);
+            for (int i = end; i < mapped.limit(); i++) {
+                mapped.put(i, (byte) 0);
+            }
+            mapped.force();
+        }
+        mapped.position(end);
+        buffer = mapped;
+        segment = segmentNumber(file);
+    }
+
+    private static MappedByteBuffer map(Path file, int size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    // 按顺序读出目录下全部段中的记录
+    public static void read(Path dir, Consumer<Record> action) throws IOException {
+        for (Path file : segments(dir)) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                scan(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), action);
+            }
+        }
+    }
+
+    // 从段开头逐条校验，返回第一条无效记录的位置（action不为null时回调每条有效记录）
+    private static int scan(ByteBuffer segment, Consumer<Record> action) {
+        CRC32 checksum = new CRC32();
+        int position = 0;
+        while (position + HEADER <= segment.limit()) {
+            int length = segment.getInt(position);
+            if (length < HEADER || length > segment.limit() - position) {
+                break;
+            }
+            checksum.reset();
+            checksum.update(segment.duplicate().position(position + 8).limit(position + length));
+            if ((int) checksum.getValue() != segment.getInt(position + 4)) {
+                break;
+            }
+            if (action != null) {
+                action.accept(Record.decode(segment, position, length));
+            }
+            position += length;
+        }
+        return position;
+    }
+
+    static List<Path> segments(Path dir) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        if (!Files.isDirectory(dir)) {
+            return segments;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, PREFIX + "[0-9]*" + SUFFIX)) {
+            for (Path file : files) {
+                segments.add(file);
+            }
+        }
+        Collections.sort(segments);//序号定长补零，按文件名排序即按序号排序
+        return segments;
+    }
+
+    static String segmentName(int number) {
+        return String.format("%s%06d%s", PREFIX, number, SUFFIX);
+    }
+
+    private static int segmentNumber(Path file) {
+        String name = file.getFileName().toString();
+        return Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    // 终点3*3中位于地图内的格子，第(dx+1)*3+(dy+1)位，顺序与Car.exploredOffsets一致
+    static int litMask(long center, int mapWidth, int mapLength) {
+        int mask = 0;
+        int cx = Coords.x(center);
+        int cy = Coords.y(center);
+        for (int dx = -1; dx <= 1; dx++) {
+            for (int dy = -1; dy <= 1; dy++) {
+                if (Coords.inside(cx + dx, cy + dy, mapWidth, mapLength)) {
+                    mask |= 1 << ((dx + 1) * 3 + (dy + 1));
+                }
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * 一条移动记录
+     */
+    public static final class Record {
+        public final long timestamp;
+        public final String carId;
+        public final long from; // 移动前没有位置时为Coords.NONE
+        public final long to;
+        public final int mapWidth;
+        public final int litMask;
+
+        Record(long timestamp, String carId, long from, long to, int mapWidth, int litMask) {
+            this.timestamp = timestamp;
+            this.carId = carId;
+            this.from = from;
+            this.to = to;
+            this.mapWidth = mapWidth;
+            this.litMask = litMask;
+        }
+
+        private static Record decode(ByteBuffer segment, int position, int length) {
+            long timestamp = segment.getLong(position + 8);
+            long from = segment.getLong(position + 16);
+            long to = segment.getLong(position + 24);
+            int mapWidth = segment.getInt(position + 32);
+            int litMask = segment.getShort(position + 36) & 0xffff;
+            int idLength = segment.getShort(position + 38) & 0xffff;
+            byte[] id = new byte[Math.min(idLength, length - HEADER)];
+            segment.get(position + HEADER, id);
+            return new Record(timestamp, new String(id, StandardCharsets.UTF_8), from, to, mapWidth, litMask);
+        }
+
+        // 这一步点亮的格子（全局偏移量）
+        public long[] litOffsets() {
+            long[] offsets = new long[Integer.bitCount(litMask)];
+            int count = 0;
+            int cx = Coords.x(to);
+            int cy = Coords.y(to);
+            for (int dx = -1; dx <= 1; dx++) {
+                for (int dy = -1; dy <= 1; dy++) {
+                    if ((litMask & (1 << ((dx + 1) * 3 + (dy + 1)))) != 0) {
+                        offsets[count++] = Coords.offset(Coords.pack(cx + dx, cy + dy), mapWidth);
+                    }
+                }
+            }
+            return offsets;
+        }
+
+        @Override
+        public String toString() {
+            return carId + " " + (from == Coords.NONE ? "-" : Coords.format(from)) + " -> " + Coords.format(to)
+                    + "|" + timestamp;
+        }
+    }
+}
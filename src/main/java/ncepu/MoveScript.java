@@ -0,0 +1,167 @@
+package ncepu;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisNoScriptException;
+
+import java.util.List;
+
+/**
+ * 小车移动Lua脚本
+ * 功能：在Redis端一次完成 检查路径→弹出任务→障碍检测→位置/路径/障碍/点亮更新，
+ * 整个过程只需一次网络往返，并且脚本执行期间不会被其他小车的命令打断
+ */
+class MoveScript {
+    // 脚本返回码
+    static final long MOVED = 0;         // 移动成功
+    static final long NO_TASK = 1;       // 任务队列为空
+    static final long ROUTE_CLEARED = 2; // 路径全亮，已删除任务队列
+    static final long OBSTACLE = 3;      // 遇到障碍，已清空队列并上报
+
+    // KEYS: 任务队列, 小车位置, 路径记录, 障碍物地图, 探索地图, 障碍事件[, 活跃小车集合]
+    // 传入活跃小车集合（FleetScheduler）时，结束后任务队列为空则把小车移出集合
+    // ARGV: 小车ID, 地图宽, 地图长, 路径历史保留条数, 最多前进步数, 位图分块大小(0为不分块)
+    // 分块时位图实际读写的是 KEYS[4]/KEYS[5] 加 ":块x:块y" 后缀的key（与MapLayout一致），
+    // 这些key在脚本内拼出，只适用于单机Redis
+    // 返回: {返回码, 实际前进步数, 最后到达/遇障的坐标, 出发时的位置, 依次到达的格子}
+    // 任务队列只读取一次，按下标逐步推进，结束时一次LTRIM弹出走过的格子；
+    // 剩余路径上的黑块和终点附近3*3的黑块在开始时统计一次，之后随弹出和点亮增量更新，每步O(1)
+    // 走过至少一格后队列走完时返回MOVED
+    // XADD自动生成的ID与时间有关，按效果复制（Redis 5起默认，旧版本需显式开启）
+    static final String SOURCE = String.join("\n",
+            "redis.replicate_commands()",
+            "local route, pos, path, obstacles, map, events, active = KEYS[1], KEYS[2], KEYS[3], KEYS[4], KEYS[5], KEYS[6], KEYS[7]",
+            "local carId = ARGV[1]",
+            "local width = tonumber(ARGV[2])",
+            "local length = tonumber(ARGV[3])",
+            "local maxlen = ARGV[4]",
+            "local steps = tonumber(ARGV[5] or '1')",
+            "local tile = tonumber(ARGV[6] or '0')",
+            "local function addr(base, x, y)",
+            "  if tile == 0 then return base, y * width + x end",
+            "  return base .. ':' .. math.floor(x / tile) .. ':' .. math.floor(y / tile), (y % tile) * tile + (x % tile)",
+            "end",
+            "local function parse(s)",
+            "  local x, y = string.match(s, '^(-?%d+),(-?%d+)')",
+            "  return tonumber(x), tonumber(y)",
+            "end",
+            "local function inside(x, y)",
+            "  return x >= 0 and x < width and y >= 0 and y < length",
+            "end",
+            "local function lit(x, y)",
+            "  local key, bit = addr(map, x, y)",
+            "  return redis.call('GETBIT', key, bit) == 1",
+            "end",
+            "local task = redis.call('LRANGE', route, 0, -1)",
+            "local head, moved, last = 1, 0, false",
+            // 剩余路径上的黑块（按 y * width + x 计数，同一格可出现多次）和终点附近3*3的黑块
+            "local darkCells, darkCount, darkTail, tailCount = {}, 0, {}, 0",
+            "for i = 1, #task do",
+            "  local x, y = parse(task[i])",
+            "  if not lit(x, y) then",
+            "    local k = y * width + x",
+            "    darkCells[k] = (darkCells[k] or 0) + 1",
+            "    darkCount = darkCount + 1",
+            "  end",
+            "end",
+            "if #task > 0 then",
+            "  local lx, ly = parse(task[#task])",
+            "  for dx = -1, 1 do for dy = -1, 1 do",
+            "    local x, y = lx + dx, ly + dy",
+            "    if inside(x, y) and not lit(x, y) then",
+            "      darkTail[y * width + x] = true",
+            "      tailCount = tailCount + 1",
+            "    end",
+            "  end end",
+            "end",
+            "local visited = {}",
+            "local code = " + MOVED,
+            "local current = redis.call('GET', pos)",
+            "local cx, cy",
+            "if current then cx, cy = parse(current) end",
+            "while moved < steps do",
+            "  if head > #task then",
+            "    if moved == 0 then code = " + NO_TASK + " end",
+            "    break",
+            "  end",
+            // 剩余路径是否全亮（路径上的格子 + 终点附近3*3）
+            "  if darkCount == 0 and tailCount == 0 then code = " + ROUTE_CLEARED + " break end",
+            // 弹出下一个坐标（不再属于剩余路径）并检测障碍
+            "  local target = task[head]",
+            "  head = head + 1",
+            "  local tx, ty = parse(target)",
+            "  local tk = ty * width + tx",
+            "  if darkCells[tk] then",
+            "    darkCells[tk] = (darkCells[tk] > 1) and darkCells[tk] - 1 or nil",
+            "    darkCount = darkCount - 1",
+            "  end",
+            "  local tkey, tbit = addr(obstacles, tx, ty)",
+            "  if redis.call('GETBIT', tkey, tbit) == 1 then",
+            "    code = " + OBSTACLE,
+            "    last = target",
+            "    break",
+            "  end",
+            // 更新位置、路径、障碍物地图和探索地图
+            "  local next = tx .. ',' .. ty",
+            "  if cx then",
+            "    local ckey, cbit = addr(obstacles, cx, cy)",
+            "    redis.call('SETBIT', ckey, cbit, 0)",
+            "  end",
+            "  redis.call('XADD', path, 'MAXLEN', '~', maxlen, '*', 'p', next)",
+            "  redis.call('SET', pos, next)",
+            "  redis.call('SETBIT', tkey, tbit, 1)",
+            "  for dx = -1, 1 do for dy = -1, 1 do",
+            "    local x, y = tx + dx, ty + dy",
+            "    if inside(x, y) then",
+            "      local key, bit = addr(map, x, y)",
+            "      redis.call('SETBIT', key, bit, 1)",
+            "      local k = y * width + x",
+            "      if darkCells[k] then darkCount = darkCount - darkCells[k] darkCells[k] = nil end",
+            "      if darkTail[k] then darkTail[k] = nil tailCount = tailCount - 1 end",
+            "    end",
+            "  end end",
+            "  cx, cy, last = tx, ty, next",
+            "  visited[#visited + 1] = next",
+            "  moved = moved + 1",
+            "end",
+            "if code == " + MOVED + " or code == " + NO_TASK + " then",
+            "  if head > 1 then redis.call('LTRIM', route, head - 1, -1) end",
+            "else",
+            "  if code == " + OBSTACLE + " then redis.call('SADD', events, carId) end",
+            "  redis.call('DEL', route)",
+            "end",
+            "if active and redis.call('EXISTS', route) == 0 then redis.call('SREM', active, carId) end",
+            "return {code, moved, last, current, visited}");
+
+    private static volatile String sha;
+
+    private MoveScript() {}
+
+    // 通过EVALSHA执行脚本，服务器未缓存脚本时（重启/SCRIPT FLUSH）重新加载后重试一次
+    static List<Object> run(Jedis jedis, List<String> keys, List<String> args) {
+        String current = sha;
+        if (current == null) {
+            current = load(jedis);
+        }
+        try {
+            return cast(jedis.evalsha(current, keys, args));
+        } catch (JedisNoScriptException e) {
+            return cast(jedis.evalsha(load(jedis), keys, args));
+        }
+    }
+
+    // 已缓存的脚本SHA，未加载时先加载（管道中执行EVALSHA前调用）
+    static String sha(Jedis jedis) {
+        String current = sha;
+        return (current != null) ? current : load(jedis);
+    }
+
+    static String load(Jedis jedis) {
+        sha = jedis.scriptLoad(SOURCE);
+        return sha;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Object> cast(Object reply) {
+        return (List<Object>) reply;
+    }
+}
@@ -0,0 +1,76 @@
+package ncepu;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.StreamEntryID;
+import redis.clients.jedis.commands.StreamPipelineCommands;
+import redis.clients.jedis.params.XAddParams;
+import redis.clients.jedis.resps.StreamEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 小车路径历史
+ * 功能：每走一格向Car<ID>PathStream追加一条Stream记录，只存坐标一个字段，写入时间就是消息ID中的毫秒数；
+ * XADD时按MAXLEN ~近似裁剪（-Dcar.path.maxLength，默认10000条），内存有界，按时间段读取用XRANGE；
+ * 集群部署时key为Car{ID}PathStream，与小车的其他key在同一槽位
+ */
+public class PathHistory {
+    static final String FIELD = "p";
+    static final long MAX_LENGTH = Long.getLong("car.path.maxLength", 10000);
+
+    private PathHistory() {}
+
+    static String key(String carId) {
+        return "Car" + Car.keyTag(carId) + "PathStream";
+    }
+
+    // 在事务或管道中追加一条记录
+    static void append(StreamPipelineCommands tx, String key, long coord) {
+        tx.xadd(key, XAddParams.xAddParams().maxLen(MAX_LENGTH).approximateTrimming(),
+                Collections.singletonMap(FIELD, Coords.format(coord)));
+    }
+
+    // 指定消息ID追加（写回模式按移动时间写入），ID须大于Stream中最后一条
+    static void append(StreamPipelineCommands tx, String key, long coord, StreamEntryID id) {
+        tx.xadd(key, XAddParams.xAddParams().id(id).maxLen(MAX_LENGTH).approximateTrimming(),
+                Collections.singletonMap(FIELD, Coords.format(coord)));
+    }
+
+    // 时间段[from, to]内的路径（毫秒时间戳，闭区间）
+    public static List<Entry> range(Jedis jedis, String carId, long from, long to) {
+        return toEntries(jedis.xrange(key(carId), String.valueOf(from), String.valueOf(to)));
+    }
+
+    // 最近count条路径，按时间从新到旧
+    public static List<Entry> latest(Jedis jedis, String carId, int count) {
+        return toEntries(jedis.xrevrange(key(carId), "+", "-", count));
+    }
+
+    private static List<Entry> toEntries(List<StreamEntry> records) {
+        List<Entry> entries = new ArrayList<>(records.size());
+        for (StreamEntry record : records) {
+            long coord = Coords.parse(record.getFields().get(FIELD));
+            entries.add(new Entry(record.getID().getTime(), Coords.x(coord), Coords.y(coord)));
+        }
+        return entries;
+    }
+
+    public static class Entry {
+        public final long timestamp;
+        public final int x;
+        public final int y;
+
+        Entry(long timestamp, int x, int y) {
+            this.timestamp = timestamp;
+            this.x = x;
+            this.y = y;
+        }
+
+        @Override
+        public String toString() {
+            return x + "," + y + "|" + timestamp;
+        }
+    }
+}
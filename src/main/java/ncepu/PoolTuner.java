@@ -0,0 +1,39 @@
+package ncepu;
+
+/**
+ * 连接池空闲连接调节
+ * 功能：按统计周期内的峰值借出数和慢借用次数估计连接需求，据此调整minIdle/maxIdle。
+ * 需求上升立即跟上（空闲连接预先建好，借连接时不再现场建连），需求下降每周期只回落差值的1/4，
+ * 避免两次突发之间反复建连/回收；结果限制在配置的上下限和maxTotal以内
+ */
+final class PoolTuner {
+    private final int minIdleFloor;
+    private final int maxIdleFloor;
+    private final int maxTotal;
+    private double demand;
+
+    PoolTuner(int minIdleFloor, int maxIdleFloor, int maxTotal) {
+        this.minIdleFloor = Math.min(minIdleFloor, maxTotal);
+        this.maxIdleFloor = Math.min(maxIdleFloor, maxTotal);
+        this.maxTotal = maxTotal;
+        this.demand = this.minIdleFloor;
+    }
+
+    // peakActive：周期内峰值借出数；slowBorrows：周期内没有空闲连接、需要现场建连或等待归还的借用次数
+    void update(int peakActive, long slowBorrows) {
+        double target = peakActive + (slowBorrows > 0 ? Math.max(1, peakActive / 4) : 0);
+        demand = (target >= demand) ? target : demand - (demand - target) / 4;
+    }
+
+    int minIdle() {
+        return clamp((int) Math.ceil(demand), minIdleFloor, maxTotal);
+    }
+
+    int maxIdle() {
+        return clamp((int) Math.ceil(demand * 1.5), Math.max(maxIdleFloor, minIdle()), maxTotal);
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(value, max));
+    }
+}
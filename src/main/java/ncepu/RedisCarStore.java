@@ -0,0 +1,37 @@
+package ncepu;
+
+import redis.clients.jedis.Jedis;
+
+/**
+ * Redis状态存储（默认）
+ * 功能：通过Car的连接器借连接（集群时借小车key所在节点的连接），移动过程仍由Car中的
+ * 逐步/批量事务/脚本实现完成，这里只负责连接的借用和归还
+ */
+final class RedisCarStore implements CarStore {
+    static final RedisCarStore INSTANCE = new RedisCarStore();
+
+    private RedisCarStore() {}
+
+    @Override
+    public int readConfig(String key) {
+        try (Jedis jedis = Car.connection(key)) {
+            return Car.getIntegerConfig(jedis, key);
+        }
+    }
+
+    @Override
+    public boolean hasPosition(Car car) {
+        try (Jedis jedis = Car.connection(car.positionKey())) {
+            return jedis.exists(car.positionKey());
+        }
+    }
+
+    @Override
+    public void move(Car car, int steps) {
+        long start = System.nanoTime();
+        try (Jedis jedis = Car.connection(car.positionKey())) {
+            CarMetrics.POOL_BORROW.recordSince(start);
+            car.move(jedis, steps);
+        }
+    }
+}
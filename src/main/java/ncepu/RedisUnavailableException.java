@@ -0,0 +1,20 @@
+package ncepu;
+
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+/**
+ * Redis不可用
+ * 功能：熔断打开期间借连接直接抛出，不再等待超时；继承JedisConnectionException，
+ * 原有按连接异常处理的调用方不需要修改
+ */
+public class RedisUnavailableException extends JedisConnectionException {
+    private static final long serialVersionUID = 1L;
+
+    public RedisUnavailableException(String message) {
+        super(message);
+    }
+
+    public RedisUnavailableException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
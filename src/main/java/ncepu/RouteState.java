@@ -0,0 +1,133 @@
+package ncepu;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 路径校验状态（每辆小车一份）
+ * 功能：在本地镜像任务队列并记录其中仍为黑块的格子，每步只读取新增的任务，并按路径顺序复查一小段未确认的格子，遇到黑块即停止。
+ * 点亮地图只会由暗变亮，确认点亮过的格子不需要再检查，整条路径的校验因此不再是O(N²)；
+ * 开启位图镜像后其他小车点亮的格子随变更通知同步到本地，复查黑块时不再访问Redis
+ */
+class RouteState {
+    static final int CHECK_BATCH = 16; // 每次BITFIELD复查的格子数
+    private final ArrayDeque<String> cells = new ArrayDeque<>();   // 本地镜像的任务队列
+    private final DarkCells dark = new DarkCells();              // 路径上和终点附近仍为黑块的格子
+    private boolean synced = false;
+
+    // 与Redis中的任务队列对齐并刷新黑块，返回路径上是否还有黑块
+    // 已同步时一次往返读取长度和本地队首/队尾位置上的任务：队列变短或这两格与本地不同说明被外部删除/替换，
+    // 整体重建；变长且前缀一致则只读取新增的尾部
+    synchronized boolean sync(Jedis jedis, Car car) {
+        if (!synced || cells.isEmpty()) {
+            reset();
+            append(car, jedis.lrange(car.routeKey(), 0, -1));
+        } else {
+            Pipeline pipeline = jedis.pipelined();
+            Response<Long> length = pipeline.llen(car.routeKey());
+            Response<String> first = pipeline.lindex(car.routeKey(), 0);
+            Response<String> last = pipeline.lindex(car.routeKey(), cells.size() - 1);
+            pipeline.sync();
+            if (length.get() < cells.size()
+                    || !cells.peekFirst().equals(first.get()) || !cells.peekLast().equals(last.get())) {
+                reset();
+                append(car, jedis.lrange(car.routeKey(), 0, -1));
+            } else if (length.get() > cells.size()) {
+                append(car, jedis.lrange(car.routeKey(), cells.size(), -1));
+            }
+        }
+        synced = true;
+
+        // 按路径顺序每次读取一小段，找到黑块即停止；确认点亮的格子移除，每个格子最多读取到点亮为止
+        while (!dark.isEmpty()) {
+            long[] offsets = dark.head(CHECK_BATCH);
+            boolean[] bits = Car.getMapBits(jedis, car.mapKey(), offsets, car.mapWidth);
+            boolean found = false;
+            for (int i = 0; i < bits.length; i++) {
+                if (bits[i]) {
+                    dark.lit(offsets[i]);
+                } else {
+                    found = true;
+                }
+            }
+            if (found) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // 本地队列的前n个任务
+    synchronized List<String> head(int n) {
+        List<String> head = new ArrayList<>(Math.min(n, cells.size()));
+        for (String cell : cells) {
+            if (head.size() >= n) {
+                break;
+            }
+            head.add(cell);
+        }
+        return head;
+    }
+
+    // 小车弹出任务后调用，弹出的不是本地队首说明队列被外部改过，下次重新同步
+    synchronized void popped(String cell, Car car) {
+        if (cell == null || !cell.equals(cells.peekFirst())) {
+            synced = false;
+            return;
+        }
+        cells.pollFirst();
+        dark.popped(car.offset(Coords.parse(cell)));
+        if (cells.isEmpty()) {
+            dark.clearTail();
+        }
+    }
+
+    // 小车自己点亮的格子
+    synchronized void lit(long[] offsets) {
+        for (long offset : offsets) {
+            dark.lit(offset);
+        }
+    }
+
+    // 下次sync时整体重建
+    synchronized void invalidate() {
+        synced = false;
+    }
+
+    // 任务队列被删除（全亮或遇到障碍）
+    synchronized void cleared() {
+        reset();
+        synced = true;
+    }
+
+    synchronized boolean hasDark() {
+        return !dark.isEmpty();
+    }
+
+    // 尚未确认点亮的格子数
+    synchronized int unlitCount() {
+        return dark.count();
+    }
+
+    // 新增任务先记为待检查，由sync中的一次BITFIELD确认
+    private void append(Car car, List<String> added) {
+        if (added.isEmpty()) {
+            return;
+        }
+        for (String cell : added) {
+            cells.addLast(cell);
+            dark.add(car.offset(Coords.parse(cell)));
+        }
+        dark.tail(car.exploredOffsets(Coords.parse(cells.peekLast())));
+    }
+
+    private void reset() {
+        cells.clear();
+        dark.clear();
+    }
+}
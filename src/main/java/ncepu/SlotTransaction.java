@@ -0,0 +1,176 @@
+package ncepu;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.util.JedisClusterCRC16;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 按槽位拆分的事务
+ * 功能：单机部署时就是调用方连接上的一个MULTI，整个移动原子提交。
+ * 集群部署时一次移动不是原子的：小车自己的key（同一hash tag，WATCH也在调用方连接上）在一个MULTI中提交，
+ * 其他槽位（位图分块、obstacle_events）只允许SETBIT/SADD，先记下来，在小车的事务之后按槽位写入。
+ * 写入顺序保证重试幂等，中途失败时宁可留下多余的障碍标记也不提前清除：
+ * 1. 小车的事务同时写入待补写标记 Car{ID}Pending（占位、点亮、上报和清除旧位置的全部命令）
+ * 2. 置1的位和SADD（占新位置、点亮、上报），全部幂等
+ * 3. 删除待补写标记
+ * 4. 清除旧位置的障碍标记（置0的位）；失败时该格保持占用，只记录日志，不会让其他小车驶入有车的格子
+ * 第2步失败或进程在第3步前退出时，标记留在Redis中，小车下次移动前由recover重放第2、4步
+ */
+class SlotTransaction implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(SlotTransaction.class);
+    private static final LogLimiter errors = new LogLimiter(10_000);
+
+    private final Transaction home;
+    private final JedisProvider cluster; // 单机部署时为null
+    private final String homeKey;
+    private final int homeSlot;
+    private final List<String> deferred = new ArrayList<>(); // 其他槽位的命令，格式见op()
+    private boolean finished = false;
+
+    SlotTransaction(Jedis jedis, String homeKey, JedisProvider provider) {
+        this.home = jedis.multi();
+        this.cluster = (provider != null && provider.isCluster()) ? provider : null;
+        this.homeKey = homeKey;
+        this.homeSlot = (cluster != null) ? JedisClusterCRC16.getSlot(homeKey) : 0;
+    }
+
+    // 小车所在槽位的事务，其他槽位只能通过setbit/sadd写入
+    Transaction on(String key) {
+        if (!isHome(key)) {
+            throw new IllegalArgumentException("跨槽位只支持SETBIT/SADD: " + key);
+        }
+        return home;
+    }
+
+    void setbit(String key, long offset, boolean value) {
+        if (isHome(key)) {
+            home.setbit(key, offset, value);
+        } else {
+            deferred.add(op("SETBIT", key, offset + " " + (value ? 1 : 0)));
+        }
+    }
+
+    void set(String key, String value) {
+        on(key).set(key, value);
+    }
+
+    void del(String key) {
+        on(key).del(key);
+    }
+
+    void sadd(String key, String member) {
+        if (isHome(key)) {
+            home.sadd(key, member);
+        } else {
+            deferred.add(op("SADD", key, member));
+        }
+    }
+
+    void ltrim(String key, long start, long stop) {
+        on(key).ltrim(key, start, stop);
+    }
+
+    // 返回调用方连接上事务的结果，被WATCH放弃时返回null（其他槽位一并丢弃）；
+    // 小车的事务提交后其他槽位写入失败不抛出，留给下次移动前重放
+    List<Object> exec() {
+        finished = true;
+        if (!deferred.isEmpty()) {
+            home.set(pendingKey(homeKey), String.join("\n", deferred));
+        }
+        List<Object> results = home.exec();
+        if (results != null && !deferred.isEmpty()) {
+            try {
+                apply(cluster, homeKey, deferred);
+            } catch (RuntimeException e) {
+                errors.warn(log, "deferred", "[集群] 跨槽位写入失败，下次移动前重放: {}", e.getMessage());
+            }
+        }
+        return results;
+    }
+
+    // 重放上次移动未完成的跨槽位写入（集群时每次移动前调用，没有标记时只需一次GET）
+    static void recover(Jedis jedis, String homeKey, JedisProvider provider) {
+        String pending = jedis.get(pendingKey(homeKey));
+        if (pending == null) {
+            return;
+        }
+        log.info("[集群] 重放上次移动未完成的跨槽位写入");
+        apply(provider, homeKey, List.of(pending.split("\n")));
+    }
+
+    // 未提交（中途异常）时放弃事务，连接归还前不能停留在MULTI状态
+    @Override
+    public void close() {
+        if (!finished) {
+            try {
+                home.discard();
+            } catch (RuntimeException ignored) {
+                //连接已断开，归还时会被连接池丢弃
+            }
+        }
+    }
+
+    private boolean isHome(String key) {
+        return cluster == null || JedisClusterCRC16.getSlot(key) == homeSlot;
+    }
+
+    // 先写入置1的位和SADD，删除标记后再清除旧位置
+    private static void apply(JedisProvider provider, String homeKey, List<String> ops) {
+        List<String[]> claims = new ArrayList<>();
+        List<String[]> clears = new ArrayList<>();
+        for (String op : ops) {
+            String[] parts = op.split(" ", 3);
+            boolean clear = "SETBIT".equals(parts[0]) && parts[2].endsWith(" 0");
+            (clear ? clears : claims).add(parts);
+        }
+        write(provider, claims);
+        try (Jedis jedis = provider.forKey(homeKey)) {
+            jedis.del(pendingKey(homeKey));
+        }
+        try {
+            write(provider, clears);
+        } catch (RuntimeException e) {
+            errors.warn(log, "clear", "[集群] 旧位置障碍标记未清除，该格保持占用: {}", e.getMessage());
+        }
+    }
+
+    // 按槽位分组，每个节点一个管道
+    private static void write(JedisProvider provider, List<String[]> ops) {
+        Map<Integer, List<String[]>> slots = new LinkedHashMap<>();
+        for (String[] op : ops) {
+            slots.computeIfAbsent(JedisClusterCRC16.getSlot(op[1]), s -> new ArrayList<>()).add(op);
+        }
+        for (List<String[]> slotOps : slots.values()) {
+            try (Jedis node = provider.forKey(slotOps.get(0)[1])) {
+                Pipeline pipeline = node.pipelined();
+                for (String[] op : slotOps) {
+                    if ("SETBIT".equals(op[0])) {
+                        String[] args = op[2].split(" ");
+                        pipeline.setbit(op[1], Long.parseLong(args[0]), "1".equals(args[1]));
+                    } else {
+                        pipeline.sadd(op[1], op[2]);
+                    }
+                }
+                pipeline.sync();
+            }
+        }
+    }
+
+    // "命令 key 参数"，key和位偏移量中不含空格
+    private static String op(String command, String key, String args) {
+        return command + " " + key + " " + args;
+    }
+
+    // 与小车位置key同一hash tag（Car{ID} -> Car{ID}Pending）
+    static String pendingKey(String homeKey) {
+        return homeKey + "Pending";
+    }
+}
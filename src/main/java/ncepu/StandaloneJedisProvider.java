@@ -0,0 +1,18 @@
+package ncepu;
+
+import redis.clients.jedis.Jedis;
+
+import java.util.function.Supplier;
+
+/**
+ * 单机Redis连接器
+ * 功能：get()与forKey()相同，都从连接池借连接；集群连接器没有"默认节点"，不实现此接口
+ */
+@FunctionalInterface
+public interface StandaloneJedisProvider extends JedisProvider, Supplier<Jedis> {
+
+    @Override
+    default Jedis forKey(String key) {
+        return get();
+    }
+}
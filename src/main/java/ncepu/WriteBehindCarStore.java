@@ -0,0 +1,488 @@
+package ncepu;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.StreamEntryID;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.resps.StreamEntry;
+import redis.clients.jedis.util.SafeEncoder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongConsumer;
+import java.util.function.Supplier;
+
+/**
+ * 写回模式状态存储（单协调端部署）
+ * 功能：位置、点亮地图、障碍物地图和路径记录以内存为准（MemoryCarStore），移动不访问Redis；
+ * 后台线程car-write-behind每隔一个周期把变化合并写回原来的key，在一个事务中完成（全部写入或全部不写入）：
+ * 位图每个key一条BITFIELD（同一格多次变化只写最终值），位置SET、路径XADD、障碍上报SADD；
+ * 走过/删除的任务由脚本核对队列头部仍是这些格子后才LTRIM，期间被协调端替换的队列不受影响。
+ * 任务队列以Redis为准：写回后按长度和首尾两格同步外部追加（读取新增尾部）或替换（整体重新读取）的任务。
+ * 启动时加载地图尺寸和两张位图，小车首次使用时加载位置和任务队列（Redis中还没有位置时每次使用都重新读取）；
+ * 关闭时停止后台线程后再写回一次。
+ * 写入失败时变化保留到下一周期，持久化延迟为一个周期加一次写入耗时。
+ * 路径记录的时间为移动时间：XADD指定消息ID（移动毫秒数-序号），同一毫秒或时钟回拨时沿用上一条的毫秒数递增序号，
+ * 小车首次加载时读取Stream最后一条的ID作为起点（写回模式下只有本协调端写入路径）
+ */
+public class WriteBehindCarStore extends MemoryCarStore implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(WriteBehindCarStore.class);
+    private static final LogLimiter errors = new LogLimiter(10_000);//写回失败10秒内只输出一条
+    private static final int BITFIELD_BATCH = 512; // 每条BITFIELD最多写入的位数
+    // KEYS: 任务队列；ARGV: 写回周期内从头部走过或删除的格子
+    // 队列头部与ARGV逐格相同时弹出这些格子并返回1，否则（队列已被替换）不修改并返回0
+    static final String TRIM_SCRIPT = String.join("\n",
+            "local head = redis.call('LRANGE', KEYS[1], 0, #ARGV - 1)",
+            "if #head < #ARGV then return 0 end",
+            "for i = 1, #ARGV do",
+            "  local x, y = string.match(head[i], '^(-?%d+),(-?%d+)')",
+            "  if not x or tonumber(x) .. ',' .. tonumber(y) ~= ARGV[i] then return 0 end",
+            "end",
+            "redis.call('LTRIM', KEYS[1], #ARGV, -1)",
+            "return 1");
+    private static volatile String trimSha;
+
+    private final Supplier<Jedis> connections;
+    private final MapLayout layout;
+    private final long interval;
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "car-write-behind");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private WriteBehindCarStore(Supplier<Jedis> connections, MapLayout layout, long interval, int width, int length) {
+        super(width, length, true);
+        this.connections = connections;
+        this.layout = layout;
+        this.interval = interval;
+    }
+
+    // 从Redis加载地图尺寸和位图，interval为写回周期(毫秒)
+    public static WriteBehindCarStore load(Supplier<Jedis> connections, MapLayout layout, long interval) {
+        try (Jedis jedis = connections.get()) {
+            WriteBehindCarStore store = new WriteBehindCarStore(connections, layout, interval,
+                    Car.getIntegerConfig(jedis, "mapWidth"), Car.getIntegerConfig(jedis, "mapLength"));
+            store.loadBits(jedis, "map", store.map);
+            store.loadBits(jedis, "obstacle_map", store.obstacles);
+            log.info("[写回] 已加载 {}x{} 地图，点亮 {} 格，写回周期 {} 毫秒",
+                    store.mapWidth, store.mapLength, store.exploredCount(), interval);
+            return store;
+        }
+    }
+
+    public void start() {
+        flusher.scheduleWithFixedDelay(this::flushQuietly, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    // 停止后台写回并同步写回剩余变化
+    @Override
+    public void close() {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        log.info("[写回] 已写回全部变化");
+    }
+
+    @Override
+    public boolean hasPosition(Car car) {
+        loadCar(car);
+        return super.hasPosition(car);
+    }
+
+    @Override
+    public void move(Car car, int steps) {
+        loadCar(car);
+        super.move(car, steps);
+    }
+
+    // 首次使用时从Redis读取位置和任务队列（在锁外读取，已加载则丢弃）；
+    // 位置不存在时不缓存，之后每次使用都重新读取，直到协调端写入位置
+    private void loadCar(Car car) {
+        String carId = car.getCarId();
+        boolean loaded = cars.containsKey(carId);
+        if (loaded && position(carId) != Coords.NONE) {
+            return;
+        }
+        String position;
+        List<String> route = null;
+        List<StreamEntry> lastPath = null;
+        try (Jedis jedis = connections.get()) {
+            position = jedis.get(car.positionKey());
+            if (!loaded) {
+                route = jedis.lrange(car.routeKey(), 0, -1);
+                lastPath = jedis.xrevrange(PathHistory.key(carId), "+", "-", 1);
+            }
+        }
+        ReentrantLock lock = lock(carId);
+        lock.lock();
+        try {
+            CarState state = cars.get(carId);
+            if (state == null) {
+                state = new CarState();
+                if (route != null) {
+                    for (String cell : route) {
+                        state.route.addLast(Coords.parse(cell));
+                    }
+                }
+                if (lastPath != null && !lastPath.isEmpty()) {
+                    state.lastPathId = lastPath.get(0).getID();
+                }
+                cars.put(carId, state);
+            }
+            if (state.position == Coords.NONE && position != null) {
+                state.position = Coords.parse(position);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (Exception e) {
+            errors.error(log, "flush", "[写回] 写回Redis失败，变化保留到下一周期: {}", e.getMessage());
+        }
+    }
+
+    // 写回自上次以来的全部变化，再同步任务队列；事务未提交时把取出的变化放回
+    public synchronized void flush() {
+        long start = System.nanoTime();
+        long[] obstacleChanges = obstacles.drainChanges();
+        long[] mapChanges = map.drainChanges();
+        List<Pending> pending = drainCars();
+        List<Response<Object>> trims = new ArrayList<>(pending.size());
+        List<Response<Long>> lengths = new ArrayList<>(pending.size());
+        boolean written = false;
+        try (Jedis jedis = connections.get()) {
+            String sha = trimSha(jedis);
+            Transaction tx = jedis.multi();
+            writeBits(tx, "obstacle_map", obstacles, obstacleChanges);
+            writeBits(tx, "map", map, mapChanges);
+            for (Pending car : pending) {
+                trims.add(car.write(tx, sha));
+                lengths.add(tx.llen(car.routeKey));
+            }
+            tx.exec();
+            written = true;
+            syncRoutes(jedis, pending, trimResults(jedis, pending, trims), lengths);
+        } catch (RuntimeException e) {
+            if (!written) {
+                for (long offset : obstacleChanges) {
+                    obstacles.markChanged(offset);
+                }
+                for (long offset : mapChanges) {
+                    map.markChanged(offset);
+                }
+                restore(pending);
+            }
+            throw e;
+        } finally {
+            CarMetrics.WRITE_BEHIND.recordSince(start);
+        }
+    }
+
+    // 弹出脚本只加载一次，之后EVALSHA
+    private static String trimSha(Jedis jedis) {
+        String current = trimSha;
+        if (current == null) {
+            current = jedis.scriptLoad(TRIM_SCRIPT);
+            trimSha = current;
+        }
+        return current;
+    }
+
+    // 各车的弹出结果（没有走过的格子时为null）；脚本缓存被清空（重启/SCRIPT FLUSH）时事务中的EVALSHA失败，
+    // 事务的其他写入已生效，重新加载后单独补执行（脚本先核对队列头部，补执行不会多弹出）
+    private static List<Object> trimResults(Jedis jedis, List<Pending> pending, List<Response<Object>> trims) {
+        List<Object> results = new ArrayList<>(trims.size());
+        for (int i = 0; i < trims.size(); i++) {
+            Response<Object> trim = trims.get(i);
+            if (trim == null) {
+                results.add(null);
+                continue;
+            }
+            try {
+                results.add(trim.get());
+            } catch (JedisDataException e) {
+                if (e.getMessage() == null || !e.getMessage().startsWith("NOSCRIPT")) {
+                    throw e;
+                }
+                trimSha = jedis.scriptLoad(TRIM_SCRIPT);
+                Pending car = pending.get(i);
+                results.add(jedis.evalsha(trimSha, Collections.singletonList(car.routeKey), car.consumedCells()));
+            }
+        }
+        return results;
+    }
+
+    // 按布局分组，每个key一条或几条 BITFIELD SET u1
+    private void writeBits(Transaction tx, String base, Bits bits, long[] offsets) {
+        Map<String, List<String>> args = new LinkedHashMap<>();
+        for (long offset : offsets) {
+            List<String> keyArgs = args.computeIfAbsent(layout.key(base, offset, mapWidth), k -> new ArrayList<>());
+            keyArgs.add("SET");
+            keyArgs.add("u1");
+            keyArgs.add(String.valueOf(layout.bit(offset, mapWidth)));
+            keyArgs.add(bits.get(offset) ? "1" : "0");
+        }
+        for (Map.Entry<String, List<String>> entry : args.entrySet()) {
+            List<String> keyArgs = entry.getValue();
+            for (int from = 0; from < keyArgs.size(); from += BITFIELD_BATCH * 4) {
+                List<String> batch = keyArgs.subList(from, Math.min(keyArgs.size(), from + BITFIELD_BATCH * 4));
+                tx.bitfield(entry.getKey(), batch.toArray(new String[0]));
+            }
+        }
+    }
+
+    // 取出每辆车自上次写回以来的变化并清零
+    private List<Pending> drainCars() {
+        List<Pending> pending = new ArrayList<>();
+        for (Map.Entry<String, CarState> entry : cars.entrySet()) {
+            String carId = entry.getKey();
+            CarState state = entry.getValue();
+            ReentrantLock lock = lock(carId);
+            lock.lock();
+            try {
+                Pending car = new Pending(carId, state);
+                state.positionDirty = false;
+                state.consumed = new LongQueue();
+                state.unflushedPath = 0;
+                state.obstacleEvent = false;
+                pending.add(car);
+            } finally {
+                lock.unlock();
+            }
+        }
+        return pending;
+    }
+
+    // 写入失败：把取出的变化合并回去
+    private void restore(List<Pending> pending) {
+        for (Pending car : pending) {
+            ReentrantLock lock = lock(car.carId);
+            lock.lock();
+            try {
+                CarState state = car.state;
+                state.positionDirty |= car.position != Coords.NONE;
+                for (int i = 0; i < state.consumed.size(); i++) {
+                    car.consumed.addLast(state.consumed.get(i));
+                }
+                state.consumed = car.consumed;//取出的格子在前
+                state.unflushedPath = Math.min(state.unflushedPath + car.path.length, state.path.size());
+                state.obstacleEvent |= car.obstacleEvent;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // Redis中的任务队列 = 写回后新走过的格子 + 本地剩余任务 + 外部新追加的任务；
+    // 长度不短于本地时一次往返核对本地队首/队尾位置上的格子，一致且更长则读取新增的尾部；
+    // 更短、核对失败或头部没有弹出走过的格子，说明被外部删除或替换，整体重新读取
+    private void syncRoutes(Jedis jedis, List<Pending> pending, List<Object> trims,
+                            List<Response<Long>> lengths) {
+        Pipeline pipeline = jedis.pipelined();
+        Map<Pending, Response<List<String>>> tails = new LinkedHashMap<>();
+        Map<Pending, long[]> expectedEnds = new LinkedHashMap<>();
+        Map<Pending, List<Response<String>>> actualEnds = new LinkedHashMap<>();
+        List<Pending> replaced = new ArrayList<>();
+        for (int i = 0; i < pending.size(); i++) {
+            Pending car = pending.get(i);
+            long length = lengths.get(i).get();
+            long expected;
+            long first;
+            long last;
+            ReentrantLock lock = lock(car.carId);
+            lock.lock();
+            try {
+                LongQueue consumed = car.state.consumed;
+                LongQueue route = car.state.route;
+                expected = consumed.size() + route.size();
+                first = !consumed.isEmpty() ? consumed.get(0) : !route.isEmpty() ? route.get(0) : Coords.NONE;
+                last = !route.isEmpty() ? route.get(route.size() - 1)
+                        : !consumed.isEmpty() ? consumed.get(consumed.size() - 1) : Coords.NONE;
+            } finally {
+                lock.unlock();
+            }
+            boolean trimmed = trims.get(i) == null || Long.valueOf(1).equals(trims.get(i));
+            if (!trimmed || length < expected) {
+                replaced.add(car);
+                continue;
+            }
+            if (expected > 0) {
+                expectedEnds.put(car, new long[]{first, last});
+                actualEnds.put(car, List.of(pipeline.lindex(car.routeKey, 0),
+                        pipeline.lindex(car.routeKey, expected - 1)));
+            }
+            if (length > expected) {
+                tails.put(car, pipeline.lrange(car.routeKey, expected, -1));
+            }
+        }
+        pipeline.sync();
+        for (Map.Entry<Pending, long[]> ends : expectedEnds.entrySet()) {
+            List<Response<String>> actual = actualEnds.get(ends.getKey());
+            long[] expected = ends.getValue();
+            if (!sameCell(actual.get(0).get(), expected[0]) || !sameCell(actual.get(1).get(), expected[1])) {
+                tails.remove(ends.getKey());
+                replaced.add(ends.getKey());
+            }
+        }
+        Map<Pending, Response<List<String>>> routes = new LinkedHashMap<>();
+        if (!replaced.isEmpty()) {
+            pipeline = jedis.pipelined();
+            for (Pending car : replaced) {
+                routes.put(car, pipeline.lrange(car.routeKey, 0, -1));
+            }
+            pipeline.sync();
+        }
+        for (Map.Entry<Pending, Response<List<String>>> fetch : routes.entrySet()) {
+            apply(fetch.getKey(), fetch.getValue().get(), true);
+        }
+        for (Map.Entry<Pending, Response<List<String>>> fetch : tails.entrySet()) {
+            apply(fetch.getKey(), fetch.getValue().get(), false);
+        }
+    }
+
+    private static boolean sameCell(String cell, long expected) {
+        try {
+            return cell != null && Coords.parse(cell) == expected;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    // 追加读取到的任务，replace时先丢弃本地队列
+    private void apply(Pending car, List<String> cells, boolean replace) {
+        ReentrantLock lock = lock(car.carId);
+        lock.lock();
+        try {
+            if (replace) {
+                car.state.clearRoute();
+                car.state.consumed = new LongQueue();
+            }
+            for (String cell : cells) {
+                car.state.route.addLast(Coords.parse(cell));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 启动时加载位图：整张时一次GET，分块时逐块GET；Redis位图按字节从高位到低位编号
+    private void loadBits(Jedis jedis, String base, Bits bits) {
+        if (!layout.isTiled()) {
+            byte[] data = jedis.get(SafeEncoder.encode(base));
+            forEachBit(data, bit -> {
+                if (bit < (long) mapWidth * mapLength) {
+                    bits.load(bit);
+                }
+            });
+            return;
+        }
+        int tile = layout.tileSize();
+        for (int ty = 0; ty * tile < mapLength; ty++) {
+            for (int tx = 0; tx * tile < mapWidth; tx++) {
+                int originX = tx * tile;
+                int originY = ty * tile;
+                byte[] data = jedis.get(SafeEncoder.encode(
+                        layout.key(base, Coords.offset(Coords.pack(originX, originY), mapWidth), mapWidth)));
+                forEachBit(data, bit -> {
+                    int x = originX + (int) (bit % tile);
+                    int y = originY + (int) (bit / tile);
+                    if (Coords.inside(x, y, mapWidth, mapLength)) {
+                        bits.load(Coords.offset(Coords.pack(x, y), mapWidth));
+                    }
+                });
+            }
+        }
+    }
+
+    private static void forEachBit(byte[] data, LongConsumer action) {
+        if (data == null) {
+            return;
+        }
+        for (int i = 0; i < data.length; i++) {
+            int value = data[i] & 0xff;
+            while (value != 0) {
+                int high = Integer.numberOfLeadingZeros(value) - 24;//字节内从高位开始的序号
+                action.accept((long) i * 8 + high);
+                value &= ~(0x80 >>> high);
+            }
+        }
+    }
+
+    // 一辆车待写回的变化
+    private static final class Pending {
+        final String carId;
+        final CarState state;
+        final String positionKey;
+        final String routeKey;
+        final String pathKey;
+        final long position;   // 未变化时为NONE
+        final LongQueue consumed;
+        final long[] path;
+        final StreamEntryID[] pathIds; // 按移动时间分配的消息ID
+        final boolean obstacleEvent;
+
+        // 在小车的分段锁内调用
+        Pending(String carId, CarState state) {
+            this.carId = carId;
+            this.state = state;
+            this.positionKey = "Car" + Car.keyTag(carId);
+            this.routeKey = positionKey + "TaskList";
+            this.pathKey = PathHistory.key(carId);
+            this.position = state.positionDirty ? state.position : Coords.NONE;
+            this.consumed = state.consumed;
+            this.path = new long[state.unflushedPath];
+            this.pathIds = new StreamEntryID[path.length];
+            for (int i = 0; i < path.length; i++) {
+                int index = state.path.size() - path.length + i;
+                path[i] = state.path.get(index);
+                pathIds[i] = state.nextPathId(state.pathTimes.get(index));
+            }
+            this.obstacleEvent = state.obstacleEvent;
+        }
+
+        // 返回核对并弹出任务队列头部的结果，没有走过的格子时为null
+        Response<Object> write(Transaction tx, String trimSha) {
+            if (position != Coords.NONE) {
+                tx.set(positionKey, Coords.format(position));
+            }
+            for (int i = 0; i < path.length; i++) {
+                PathHistory.append(tx, pathKey, path[i], pathIds[i]);
+            }
+            if (obstacleEvent) {
+                tx.sadd("obstacle_events", carId);
+            }
+            if (consumed.isEmpty()) {
+                return null;
+            }
+            return tx.evalsha(trimSha, Collections.singletonList(routeKey), consumedCells());
+        }
+
+        List<String> consumedCells() {
+            List<String> cells = new ArrayList<>(consumed.size());
+            for (int i = 0; i < consumed.size(); i++) {
+                cells.add(Coords.format(consumed.get(i)));
+            }
+            return cells;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package ncepu;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.util.JedisClusterCRC16;
+import redis.embedded.RedisServer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 在三个节点的嵌入式Redis集群上验证hash tag key布局和按槽位拆分的事务
+ */
+class CarClusterTest {
+    private static final int[] PORTS = {7101, 7102, 7103};
+    private static final List<RedisServer> servers = new ArrayList<>();
+    private static ClusterJedisProvider provider;
+    private static JedisProvider previous;
+
+    @BeforeAll
+    static void startCluster() throws IOException {
+        Path dir = Files.createTempDirectory("car-cluster");
+        for (int port : PORTS) {
+            RedisServer server = RedisServer.newRedisServer()
+                    .port(port)
+                    .setting("cluster-enabled yes")
+                    .setting("cluster-config-file nodes-" + port + ".conf")
+                    .setting("dir " + dir)
+                    .build();
+            server.start();
+            servers.add(server);
+        }
+        // 16384个槽位平均分给三个节点，再让节点互相认识
+        int perNode = 16384 / PORTS.length + 1;
+        for (int i = 0; i < PORTS.length; i++) {
+            try (Jedis node = new Jedis("127.0.0.1", PORTS[i])) {
+                node.clusterAddSlots(IntStream.range(i * perNode, Math.min(16384, (i + 1) * perNode)).toArray());
+                if (i > 0) {
+                    node.clusterMeet("127.0.0.1", PORTS[0]);
+                }
+            }
+        }
+        await().atMost(Duration.ofSeconds(20)).until(() -> {
+            for (int port : PORTS) {
+                try (Jedis node = new Jedis("127.0.0.1", port)) {
+                    if (!node.clusterInfo().contains("cluster_state:ok")) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        });
+        provider = new ClusterJedisProvider(Collections.singleton(new HostAndPort("127.0.0.1", PORTS[0])));
+        previous = Car.replaceJedisProvider(provider);
+        Car.setMapLayout(MapLayout.clustered(4));
+    }
+
+    @AfterAll
+    static void stopCluster() throws IOException {
+        Car.setMapLayout(MapLayout.single());
+        Car.replaceJedisProvider(previous);
+        if (provider != null) provider.close();
+        for (RedisServer server : servers) {
+            server.stop();
+        }
+    }
+
+    @BeforeEach
+    void setUp() {
+        for (int port : PORTS) {
+            try (Jedis node = new Jedis("127.0.0.1", port)) {
+                node.flushAll();
+            }
+        }
+        set("mapWidth", "10");
+        set("mapLength", "10");
+        set("Car{001}", "3,0");
+        setbit("obstacle_map:{0:0}", 3, true);
+    }
+
+    @Test
+    void keysOfOneCarShareASlot() {
+        int slot = JedisClusterCRC16.getSlot("Car{001}");
+        assertEquals(slot, JedisClusterCRC16.getSlot(new Car("001").routeKey()));
+        assertEquals(slot, JedisClusterCRC16.getSlot(PathHistory.key("001")));
+        assertEquals(JedisClusterCRC16.getSlot("map:{1:0}"), JedisClusterCRC16.getSlot("obstacle_map:{1:0}"));
+    }
+
+    @Test
+    void advance_AcrossNodes() {
+        try (Jedis jedis = provider.forKey("Car{001}TaskList")) {
+            jedis.rpush("Car{001}TaskList", "4,0", "5,0", "5,1", "5,2");
+        }
+        Car car = new Car("001");
+        assertTrue(car.initialize());
+
+        assertEquals(1, car.advance(1));//单步：检查、弹出、障碍检测、位置更新
+        assertEquals("4,0", get("Car{001}"));
+        assertFalse(getbit("obstacle_map:{0:0}", 3));
+        assertTrue(getbit("obstacle_map:{1:0}", 0));
+        assertTrue(getbit("map:{0:0}", 3));//(3,0)被(4,0)点亮
+
+        assertEquals(3, car.advance(3));//批量：按槽位拆分的事务
+        assertEquals("5,2", get("Car{001}"));
+        assertTrue(getbit("obstacle_map:{1:0}", 2 * 4 + 1));
+        assertFalse(getbit("obstacle_map:{1:0}", 0));
+        assertTrue(getbit("map:{1:0}", 3 * 4 + 2));//(6,3)被(5,2)点亮
+        try (Jedis jedis = provider.forKey(PathHistory.key("001"))) {
+            assertEquals(4, jedis.xlen(PathHistory.key("001")));
+        }
+        assertFalse(exists(SlotTransaction.pendingKey("Car{001}")));
+    }
+
+    @Test
+    void advance_ReplaysUnfinishedCrossSlotWrites() {
+        //模拟小车的事务已提交、其他槽位未写入时进程退出
+        set("Car{001}", "4,0");
+        set(SlotTransaction.pendingKey("Car{001}"), String.join("\n",
+                "SETBIT obstacle_map:{1:0} 0 1", "SETBIT map:{0:0} 3 1", "SADD obstacle_events 009",
+                "SETBIT obstacle_map:{0:0} 3 0"));
+        try (Jedis jedis = provider.forKey("Car{001}TaskList")) {
+            jedis.rpush("Car{001}TaskList", "5,0");
+        }
+        Car car = new Car("001");
+        assertTrue(car.initialize());
+
+        assertEquals(1, car.advance(1));//先重放，再移动
+
+        assertEquals("5,0", get("Car{001}"));
+        assertFalse(exists(SlotTransaction.pendingKey("Car{001}")));
+        assertFalse(getbit("obstacle_map:{0:0}", 3));
+        assertFalse(getbit("obstacle_map:{1:0}", 0));
+        assertTrue(getbit("obstacle_map:{1:0}", 1));
+        assertTrue(getbit("map:{0:0}", 3));
+        try (Jedis jedis = provider.forKey("obstacle_events")) {
+            assertTrue(jedis.sismember("obstacle_events", "009"));
+        }
+    }
+
+    @Test
+    void advance_ObstacleReportedOnItsOwnSlot() {
+        try (Jedis jedis = provider.forKey("Car{001}TaskList")) {
+            jedis.rpush("Car{001}TaskList", "4,0", "5,0");
+        }
+        setbit("obstacle_map:{1:0}", 0, true);//(4,0)有其他小车
+        Car car = new Car("001");
+        assertTrue(car.initialize());
+
+        car.advance(1);
+
+        assertEquals("3,0", get("Car{001}"));
+        assertFalse(exists("Car{001}TaskList"));
+        try (Jedis jedis = provider.forKey("obstacle_events")) {
+            assertTrue(jedis.sismember("obstacle_events", "001"));
+        }
+    }
+
+    private static void set(String key, String value) {
+        try (Jedis jedis = provider.forKey(key)) {
+            jedis.set(key, value);
+        }
+    }
+
+    private static String get(String key) {
+        try (Jedis jedis = provider.forKey(key)) {
+            return jedis.get(key);
+        }
+    }
+
+    private static boolean exists(String key) {
+        try (Jedis jedis = provider.forKey(key)) {
+            return jedis.exists(key);
+        }
+    }
+
+    private static void setbit(String key, long offset, boolean value) {
+        try (Jedis jedis = provider.forKey(key)) {
+            jedis.setbit(key, offset, value);
+        }
+    }
+
+    private static boolean getbit(String key, long offset) {
+        try (Jedis jedis = provider.forKey(key)) {
+            return jedis.getbit(key, offset);
+        }
+    }
+}
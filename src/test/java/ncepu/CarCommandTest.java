@@ -0,0 +1,31 @@
+package ncepu;
+
+import com.google.gson.JsonParseException;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CarCommandTest {
+    @Test
+    void parseCommands() {
+        List<CarCommand> single = CarCommand.parse("\"001\"");
+        assertEquals(1, single.size());
+        assertEquals("001", single.get(0).carId);
+        assertEquals(1, single.get(0).steps);
+
+        List<CarCommand> batch = CarCommand.parse("[\"001\", {\"carId\": \"002\", \"steps\": 3}]");
+        assertEquals(2, batch.size());
+        assertEquals("002", batch.get(1).carId);
+        assertEquals(3, batch.get(1).steps);
+
+        assertThrows(JsonParseException.class, () -> CarCommand.parse("[{\"steps\": 2}]"));
+    }
+
+    @Test
+    void legacyFormatIsStillAccepted() {
+        assertEquals("007", CarCommand.parse("  '007' ").get(0).carId);
+        assertTrue(CarCommand.parse("\"\"").isEmpty());
+    }
+}
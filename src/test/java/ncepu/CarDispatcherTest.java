@@ -0,0 +1,103 @@
+package ncepu;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.*;
+
+class CarDispatcherTest {
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void sameCarRunsSeriallyAndCoalescesPendingCommands() throws InterruptedException {
+        CarDispatcher dispatcher = new CarDispatcher(executor);
+        CountDownLatch firstStarted = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        List<Integer> batches = new CopyOnWriteArrayList<>();
+
+        dispatcher.submit("001", steps -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            batches.add(steps);
+            firstStarted.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            running.decrementAndGet();
+            return steps;
+        });
+        assertTrue(firstStarted.await(5, TimeUnit.SECONDS));
+
+        // 第一轮执行期间再投递3条，合并为一次前进3步
+        for (int i = 0; i < 3; i++) {
+            dispatcher.submit("001", steps -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                batches.add(steps);
+                running.decrementAndGet();
+                return steps;
+            });
+        }
+        assertEquals(3, dispatcher.depth("001"));
+        release.countDown();
+
+        await().atMost(Duration.ofSeconds(5)).until(() -> batches.size() == 2);
+        assertEquals(List.of(1, 3), batches);
+        assertEquals(1, maxRunning.get());
+        await().atMost(Duration.ofSeconds(5)).until(() -> dispatcher.totalDepth() == 0);
+    }
+
+    @Test
+    void differentCarsRunInParallel() throws InterruptedException {
+        CarDispatcher dispatcher = new CarDispatcher(executor);
+        CountDownLatch bothRunning = new CountDownLatch(2);
+
+        for (String carId : List.of("001", "002")) {
+            dispatcher.submit(carId, steps -> {
+                bothRunning.countDown();
+                try {
+                    bothRunning.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return steps;
+            });
+        }
+        assertTrue(bothRunning.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void completionsReportCommittedPrefix() {
+        CarDispatcher dispatcher = new CarDispatcher(Runnable::run);
+        List<Boolean> results = new CopyOnWriteArrayList<>();
+        dispatcher.submit("001", steps -> 0, results::add);
+        dispatcher.submit("001", steps -> steps, results::add);
+        assertEquals(List.of(false, true), results);
+
+        // 线程池拒绝时回调失败
+        CarDispatcher rejecting = new CarDispatcher(task -> {
+            throw new java.util.concurrent.RejectedExecutionException("full");
+        });
+        assertThrows(java.util.concurrent.RejectedExecutionException.class,
+                () -> rejecting.submit("002", steps -> steps, results::add));
+        assertEquals(List.of(false, true, false), results);
+        assertEquals(0, rejecting.depth("002"));
+    }
+}
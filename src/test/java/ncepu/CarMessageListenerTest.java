@@ -0,0 +1,137 @@
+package ncepu;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.command.ActiveMQQueue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.jms.Connection;
+import javax.jms.Session;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 进程内broker上验证消息的提交与重投
+ */
+class CarMessageListenerTest {
+    private static final String BROKER_URL = "vm://listener-test?create=false";
+    private BrokerService broker;
+    private CarMessageListener listener;
+    private MemoryCarStore memory;
+    private final AtomicInteger moves = new AtomicInteger();
+
+    @BeforeEach
+    void setUp() throws Exception {
+        broker = new BrokerService();
+        broker.setBrokerName("listener-test");
+        broker.setPersistent(false);
+        broker.setUseJmx(false);
+        broker.start();
+        broker.waitUntilStarted();
+
+        memory = new MemoryCarStore(10, 10);
+        memory.setPosition("001", Coords.pack(0, 0));
+        memory.pushRoute("001", Coords.pack(1, 0), Coords.pack(2, 0));
+        // 小车001第一次移动时Redis不可用
+        Car.setStore(new CarStore() {
+            @Override
+            public int readConfig(String key) {
+                return memory.readConfig(key);
+            }
+
+            @Override
+            public boolean hasPosition(Car car) {
+                return memory.hasPosition(car);
+            }
+
+            @Override
+            public void move(Car car, int steps) {
+                if ("001".equals(car.getCarId()) && moves.incrementAndGet() == 1) {
+                    throw new RedisUnavailableException("熔断打开");
+                }
+                memory.move(car, steps);
+            }
+        });
+        listener = new CarMessageListener(new CarRegistry(), BROKER_URL);
+        listener.initConnection();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        listener.closeConnection();
+        Car.setStore(null);
+        broker.stop();
+        broker.waitUntilStopped();
+    }
+
+    @Test
+    void failedCommand_IsRedeliveredAndCommitted() throws Exception {
+        try (CarCommandPublisher publisher = new CarCommandPublisher(BROKER_URL)) {
+            publisher.send("001");
+        }
+
+        await().atMost(Duration.ofSeconds(10)).until(() -> memory.position("001") == Coords.pack(1, 0));
+        assertEquals(2, moves.get());
+        await().atMost(Duration.ofSeconds(5)).until(() -> queueSize() == 0);
+        assertEquals(1, memory.routeLength("001"));
+    }
+
+    @Test
+    void batch_IsSplitByGroupAndDelivered() throws Exception {
+        memory.setPosition("002", Coords.pack(5, 5));
+        memory.pushRoute("002", Coords.pack(5, 6), Coords.pack(5, 7));
+        Map<String, Integer> steps = new LinkedHashMap<>();
+        steps.put("001", 1);
+        steps.put("002", 2);
+        try (CarCommandPublisher publisher = new CarCommandPublisher(BROKER_URL)) {
+            publisher.sendBatch(steps);
+        }
+
+        await().atMost(Duration.ofSeconds(10)).until(() -> memory.position("001") == Coords.pack(1, 0)
+                && memory.position("002") == Coords.pack(5, 7));
+        await().atMost(Duration.ofSeconds(5)).until(() -> queueSize() == 0);
+    }
+
+    @Test
+    void partlyFailedBatch_ResendsOnlyFailedCars() throws Exception {
+        memory.setPosition("002", Coords.pack(5, 5));
+        memory.pushRoute("002", Coords.pack(5, 6), Coords.pack(5, 7), Coords.pack(5, 8));
+        sendRaw("[\"001\",\"002\"]");
+
+        await().atMost(Duration.ofSeconds(10)).until(() -> memory.position("001") == Coords.pack(1, 0));
+        await().atMost(Duration.ofSeconds(5)).until(() -> queueSize() == 0);
+        assertEquals(Coords.pack(5, 6), memory.position("002"));//已移动的小车不随重发再次移动
+        assertEquals(2, memory.routeLength("002"));
+    }
+
+    @Test
+    void malformedMessage_IsDiscarded() throws Exception {
+        sendRaw("[]");//空批量
+
+        await().atMost(Duration.ofSeconds(5)).until(() -> queueSize() == 0);
+        assertEquals(0, moves.get());
+    }
+
+    private void sendRaw(String text) throws Exception {
+        Connection connection = new ActiveMQConnectionFactory(BROKER_URL).createConnection();
+        try {
+            Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            session.createProducer(session.createQueue(CarMessageListener.QUEUE_NAME))
+                    .send(session.createTextMessage(text));
+        } finally {
+            connection.close();
+        }
+    }
+
+    private long queueSize() throws Exception {
+        return broker.getDestination(new ActiveMQQueue(CarMessageListener.QUEUE_NAME))
+                .getDestinationStatistics().getMessages().getCount();
+    }
+}
@@ -0,0 +1,425 @@
+package ncepu;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.StreamEntryID;
+import redis.embedded.RedisServer;
+
+import java.io.IOException;
+import java.time.Duration;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 使用嵌入式Redis验证小车在真实命令下的行为
+ */
+class CarRedisTest {
+    private static final int PORT = 6391;
+    private static RedisServer server;
+    private Jedis jedis;
+
+    @BeforeAll
+    static void startServer() throws IOException {
+        server = new RedisServer(PORT);
+        server.start();
+    }
+
+    @AfterAll
+    static void stopServer() throws IOException {
+        if (server != null) server.stop();
+    }
+
+    @BeforeEach
+    void setUp() {
+        jedis = new Jedis("localhost", PORT);
+        jedis.flushAll();
+        jedis.set("mapWidth", "10");
+        jedis.set("mapLength", "10");
+        jedis.set(CarTestUtils.CAR_KEY, "0,0");
+    }
+
+    private Car newCar() {
+        Car car = new Car(CarTestUtils.CAR_ID);
+        car.mapWidth = 10;
+        car.mapLength = 10;
+        return car;
+    }
+
+    @Test
+    void scriptMove_UpdatesPositionPathAndMaps() {
+        jedis.rpush(CarTestUtils.TASK_KEY, "1,0", "2,0");
+        jedis.setbit(CarTestUtils.OBSTACLE_KEY, 0, true);
+
+        newCar().moveByScript(jedis, 1);
+
+        assertEquals("1,0", jedis.get(CarTestUtils.CAR_KEY));
+        assertEquals(1, jedis.llen(CarTestUtils.TASK_KEY));
+        assertEquals("1,0", jedis.xrange(CarTestUtils.PATH_KEY, "-", "+").get(0).getFields().get("p"));
+        assertFalse(jedis.getbit(CarTestUtils.OBSTACLE_KEY, 0));
+        assertTrue(jedis.getbit(CarTestUtils.OBSTACLE_KEY, 1));
+        // 点亮(1,0)周围的3*3（越界部分不点亮）
+        for (int x = 0; x <= 2; x++) {
+            for (int y = 0; y <= 1; y++) {
+                assertTrue(jedis.getbit(CarTestUtils.MAP_KEY, y * 10 + x));
+            }
+        }
+        assertEquals(6, jedis.bitcount(CarTestUtils.MAP_KEY));
+    }
+
+    @Test
+    void scriptMove_ObstacleClearsRouteAndReports() {
+        jedis.rpush(CarTestUtils.TASK_KEY, "1,0", "2,0");
+        jedis.setbit(CarTestUtils.OBSTACLE_KEY, 1, true);
+
+        newCar().moveByScript(jedis, 1);
+
+        assertEquals("0,0", jedis.get(CarTestUtils.CAR_KEY));
+        assertFalse(jedis.exists(CarTestUtils.TASK_KEY));
+        assertTrue(jedis.sismember("obstacle_events", CarTestUtils.CAR_ID));
+    }
+
+    @Test
+    void scriptMove_LitRouteIsCleared() {
+        jedis.rpush(CarTestUtils.TASK_KEY, "1,1");
+        for (int x = 0; x <= 2; x++) {
+            for (int y = 0; y <= 2; y++) {
+                jedis.setbit(CarTestUtils.MAP_KEY, y * 10 + x, true);
+            }
+        }
+
+        newCar().moveByScript(jedis, 1);
+
+        assertEquals("0,0", jedis.get(CarTestUtils.CAR_KEY));
+        assertFalse(jedis.exists(CarTestUtils.TASK_KEY));
+        assertFalse(jedis.exists(CarTestUtils.PATH_KEY));
+    }
+
+    @Test
+    void checkTask_ReadsRouteAndEndpointNeighbourhood() {
+        Car car = newCar();
+        jedis.rpush(CarTestUtils.TASK_KEY, "1,0", "1,1");
+        for (int x = 0; x <= 2; x++) {
+            for (int y = 0; y <= 2; y++) {
+                jedis.setbit(CarTestUtils.MAP_KEY, y * 10 + x, true);
+            }
+        }
+        jedis.setbit(CarTestUtils.MAP_KEY, 22, false);//终点附近留一个黑块
+
+        assertTrue(car.CheckTask(jedis));
+        assertTrue(jedis.exists(CarTestUtils.TASK_KEY));
+
+        jedis.setbit(CarTestUtils.MAP_KEY, 22, true);
+        assertFalse(car.CheckTask(jedis));
+        assertFalse(jedis.exists(CarTestUtils.TASK_KEY));
+    }
+
+    @Test
+    void routeState_OnlyTracksDarkCellsIncrementally() {
+        Car car = newCar();
+        jedis.rpush(CarTestUtils.TASK_KEY, "1,0", "2,0", "3,0");
+        RouteState state = new RouteState();
+
+        assertTrue(state.sync(jedis, car));
+        int initial = state.unlitCount();
+
+        // 其他小车点亮了第一个格子，下次同步时只复查黑块
+        jedis.setbit(CarTestUtils.MAP_KEY, 1, true);
+        assertTrue(state.sync(jedis, car));
+        assertEquals(initial - 1, state.unlitCount());
+
+        // 弹出队首后继续追加任务，只读取新增尾部
+        state.popped(jedis.lpop(CarTestUtils.TASK_KEY), car);
+        jedis.rpush(CarTestUtils.TASK_KEY, "4,0");
+        assertTrue(state.sync(jedis, car));
+
+        // 队列被外部替换：长度变短触发整体重建
+        jedis.del(CarTestUtils.TASK_KEY);
+        jedis.rpush(CarTestUtils.TASK_KEY, "1,0");
+        for (int x = 0; x <= 2; x++) {
+            for (int y = 0; y <= 1; y++) {
+                jedis.setbit(CarTestUtils.MAP_KEY, y * 10 + x, true);
+            }
+        }
+        assertFalse(state.sync(jedis, car));
+        assertEquals(0, state.unlitCount());
+    }
+
+    @Test
+    void routeState_StopsAtFirstDarkCell() {
+        Car car = newCar();
+        for (int y = 2; y <= 3; y++) {
+            for (int x = 0; x < 10; x++) {
+                jedis.rpush(CarTestUtils.TASK_KEY, x + "," + y);
+            }
+        }
+        RouteState state = new RouteState();
+        assertTrue(state.sync(jedis, car));
+        int initial = state.unlitCount();
+
+        // 除队首外全部点亮：只复查第一段，后面已点亮的格子留到前面的黑块点亮后再读取
+        for (int offset = 21; offset < 40; offset++) {
+            jedis.setbit(CarTestUtils.MAP_KEY, offset, true);
+        }
+        assertTrue(state.sync(jedis, car));
+        //第一段中15格确认点亮，其中(8,2)、(9,2)同时在终点附近
+        assertEquals(initial - (RouteState.CHECK_BATCH - 1) - 2, state.unlitCount());
+    }
+
+    @Test
+    void routeState_LongerReplacementRebuilds() {
+        Car car = newCar();
+        jedis.rpush(CarTestUtils.TASK_KEY, "1,0", "2,0");
+        RouteState state = new RouteState();
+        assertTrue(state.sync(jedis, car));
+
+        // 队列被替换成更长的已全亮路径：前缀不同，不能当作追加处理
+        jedis.del(CarTestUtils.TASK_KEY);
+        jedis.rpush(CarTestUtils.TASK_KEY, "0,5", "1,5", "2,5");
+        for (int x = 0; x <= 3; x++) {
+            for (int y = 4; y <= 6; y++) {
+                jedis.setbit(CarTestUtils.MAP_KEY, y * 10 + x, true);
+            }
+        }
+        assertFalse(state.sync(jedis, car));
+        assertEquals(0, state.unlitCount());
+
+        // 批量移动在WATCH之后同步（一次流水线往返）
+        jedis.rpush(CarTestUtils.TASK_KEY, "3,5");
+        car.moveSteps(jedis, 1);
+        car.moveSteps(jedis, 1);
+        assertEquals("1,5", jedis.get(CarTestUtils.CAR_KEY));
+    }
+
+    @Test
+    void bitmapMirror_ServesReadsLocallyUntilInvalidated() {
+        KeyspaceWatcher watcher = new KeyspaceWatcher(() -> new Jedis("localhost", PORT));
+        BitmapMirror obstacles = new BitmapMirror(CarTestUtils.OBSTACLE_KEY, false, watcher, 0);
+        BitmapMirror map = new BitmapMirror(CarTestUtils.MAP_KEY, true, watcher, 0);
+        jedis.setbit(CarTestUtils.OBSTACLE_KEY, 12, true);
+        jedis.setbit(CarTestUtils.MAP_KEY, 3, true);
+        watcher.start();
+        try {
+            await().atMost(Duration.ofSeconds(5)).until(watcher::isActive);
+            obstacles.refreshIfStale(jedis);
+            map.refreshIfStale(jedis);
+            assertEquals(Boolean.TRUE, obstacles.get(12));
+            assertEquals(Boolean.FALSE, obstacles.get(13));
+
+            // 其他实例修改位图后本地镜像失效，障碍物地图回退到Redis
+            jedis.setbit(CarTestUtils.OBSTACLE_KEY, 12, false);
+            jedis.setbit(CarTestUtils.MAP_KEY, 4, true);
+            await().atMost(Duration.ofSeconds(5)).until(obstacles::isStale);
+            await().atMost(Duration.ofSeconds(5)).until(map::isStale);
+            assertNull(obstacles.get(12));
+            assertEquals(Boolean.TRUE, map.get(3));//已点亮的位失效后仍然可信
+            assertNull(map.get(4));
+
+            obstacles.refreshIfStale(jedis);
+            map.refreshIfStale(jedis);
+            assertEquals(Boolean.FALSE, obstacles.get(12));
+            assertEquals(Boolean.TRUE, map.get(4));
+        } finally {
+            watcher.stop();
+        }
+    }
+
+    @Test
+    void moveSteps_FinishedRouteIsNotCountedAsCleared() {
+        jedis.setbit(CarTestUtils.OBSTACLE_KEY, 0, true);
+        jedis.rpush(CarTestUtils.TASK_KEY, "1,0", "2,0");
+        long clears = CarMetrics.ROUTE_CLEARS.sum();
+
+        newCar().moveSteps(jedis, 5);//步数多于任务数
+
+        assertEquals("2,0", jedis.get(CarTestUtils.CAR_KEY));
+        assertFalse(jedis.exists(CarTestUtils.TASK_KEY));
+        assertEquals(clears, CarMetrics.ROUTE_CLEARS.sum());
+    }
+
+    @Test
+    void moveSteps_CommitsSeveralCellsAndStopsAtObstacle() {
+        jedis.setbit(CarTestUtils.OBSTACLE_KEY, 0, true);
+        jedis.rpush(CarTestUtils.TASK_KEY, "1,0", "2,0", "3,0", "4,0", "5,0");
+        jedis.setbit(CarTestUtils.OBSTACLE_KEY, 4, true);//(4,0)有其他小车
+
+        newCar().moveSteps(jedis, 10);
+
+        assertEquals("3,0", jedis.get(CarTestUtils.CAR_KEY));
+        assertEquals(3, jedis.xlen(CarTestUtils.PATH_KEY));
+        assertFalse(jedis.exists(CarTestUtils.TASK_KEY));
+        assertTrue(jedis.sismember("obstacle_events", CarTestUtils.CAR_ID));
+        assertFalse(jedis.getbit(CarTestUtils.OBSTACLE_KEY, 0));
+        assertFalse(jedis.getbit(CarTestUtils.OBSTACLE_KEY, 1));
+        assertTrue(jedis.getbit(CarTestUtils.OBSTACLE_KEY, 3));
+        assertTrue(jedis.getbit(CarTestUtils.MAP_KEY, 14));//(4,1)被(3,0)点亮
+    }
+
+    @Test
+    void memoryStore_MatchesRedisMoveSemantics() {
+        //同一场景：走两步后遇到(3,0)上的其他小车
+        jedis.setbit(CarTestUtils.OBSTACLE_KEY, 0, true);
+        jedis.setbit(CarTestUtils.OBSTACLE_KEY, 3, true);
+        jedis.rpush(CarTestUtils.TASK_KEY, "1,0", "2,0", "3,0", "4,0");
+        newCar().moveSteps(jedis, 10);
+
+        MemoryCarStore memory = new MemoryCarStore(10, 10);
+        memory.setPosition(CarTestUtils.CAR_ID, Coords.pack(0, 0));
+        memory.setObstacle(3, true);
+        memory.pushRoute(CarTestUtils.CAR_ID, Coords.pack(1, 0), Coords.pack(2, 0), Coords.pack(3, 0), Coords.pack(4, 0));
+        Car.setStore(memory);
+        try {
+            newCar().advance(10);
+        } finally {
+            Car.setStore(null);
+        }
+
+        assertEquals(jedis.get(CarTestUtils.CAR_KEY), Coords.format(memory.position(CarTestUtils.CAR_ID)));
+        assertEquals(jedis.llen(CarTestUtils.TASK_KEY), memory.routeLength(CarTestUtils.CAR_ID));
+        assertEquals(jedis.xlen(CarTestUtils.PATH_KEY), memory.latestPath(CarTestUtils.CAR_ID, 100).size());
+        assertEquals(jedis.sismember("obstacle_events", CarTestUtils.CAR_ID),
+                memory.obstacleEvents().contains(CarTestUtils.CAR_ID));
+        for (long offset = 0; offset < 100; offset++) {
+            assertEquals(jedis.getbit(CarTestUtils.MAP_KEY, offset), memory.isExplored(offset), "map " + offset);
+            assertEquals(jedis.getbit(CarTestUtils.OBSTACLE_KEY, offset), memory.isObstacle(offset), "obstacle " + offset);
+        }
+    }
+
+    @Test
+    void moveSteps_LeavesRemainingRoute() {
+        jedis.rpush(CarTestUtils.TASK_KEY, "1,0", "1,1", "1,2", "1,3");
+
+        newCar().moveSteps(jedis, 2);
+
+        assertEquals("1,1", jedis.get(CarTestUtils.CAR_KEY));
+        assertEquals(java.util.List.of("1,2", "1,3"), jedis.lrange(CarTestUtils.TASK_KEY, 0, -1));
+        assertTrue(jedis.getbit(CarTestUtils.OBSTACLE_KEY, 11));
+        assertFalse(jedis.getbit(CarTestUtils.OBSTACLE_KEY, 1));
+    }
+
+    @Test
+    void scriptMove_MultipleSteps() {
+        jedis.rpush(CarTestUtils.TASK_KEY, "1,0", "1,1", "1,2", "1,3");
+
+        newCar().moveByScript(jedis, 3);
+
+        assertEquals("1,2", jedis.get(CarTestUtils.CAR_KEY));
+        assertEquals(java.util.List.of("1,3"), jedis.lrange(CarTestUtils.TASK_KEY, 0, -1));
+        assertEquals(3, jedis.xlen(CarTestUtils.PATH_KEY));
+        assertEquals(1, jedis.bitcount(CarTestUtils.OBSTACLE_KEY));
+    }
+
+    @Test
+    void scriptMove_DriveToEndReportsMoved() {
+        jedis.rpush(CarTestUtils.TASK_KEY, "1,0", "2,0", "3,0", "4,0");
+        jedis.setbit(CarTestUtils.MAP_KEY, 2, true);//路径中间已点亮的格子
+
+        java.util.List<Object> reply = MoveScript.run(jedis,
+                java.util.List.of(CarTestUtils.TASK_KEY, CarTestUtils.CAR_KEY, CarTestUtils.PATH_KEY,
+                        CarTestUtils.OBSTACLE_KEY, CarTestUtils.MAP_KEY, "obstacle_events"),
+                java.util.List.of(CarTestUtils.CAR_ID, "10", "10", "100", String.valueOf(Integer.MAX_VALUE), "0"));
+
+        assertEquals(MoveScript.MOVED, reply.get(0));
+        assertEquals(4L, reply.get(1));
+        assertEquals("4,0", jedis.get(CarTestUtils.CAR_KEY));
+        assertFalse(jedis.exists(CarTestUtils.TASK_KEY));
+
+        // 走过的路径全亮后再下发同一段路径：第一步前即删除
+        jedis.rpush(CarTestUtils.TASK_KEY, "3,0");
+        newCar().moveByScript(jedis, 1);
+        assertFalse(jedis.exists(CarTestUtils.TASK_KEY));
+        assertEquals("4,0", jedis.get(CarTestUtils.CAR_KEY));
+    }
+
+    @Test
+    void tiledLayout_MoveAcrossTileBoundary() {
+        Car.setMapLayout(MapLayout.tiled(4));
+        try {
+            jedis.set(CarTestUtils.CAR_KEY, "3,0");
+            jedis.setbit("obstacle_map:0:0", 3, true);
+            jedis.rpush(CarTestUtils.TASK_KEY, "4,0", "5,0", "6,0");
+            jedis.setbit("obstacle_map:1:0", 2, true);//(6,0)有其他小车
+
+            newCar().moveSteps(jedis, 10);
+
+            assertEquals("5,0", jedis.get(CarTestUtils.CAR_KEY));
+            assertFalse(jedis.exists(CarTestUtils.TASK_KEY));
+            assertFalse(jedis.getbit("obstacle_map:0:0", 3));
+            assertTrue(jedis.getbit("obstacle_map:1:0", 1));
+            assertFalse(jedis.exists(CarTestUtils.OBSTACLE_KEY));
+            assertFalse(jedis.exists(CarTestUtils.MAP_KEY));
+            assertTrue(jedis.getbit("map:0:0", 3));//(3,0)被(4,0)点亮
+            assertTrue(jedis.getbit("map:1:0", 4 + 2));//(6,1)被(5,0)点亮
+            assertEquals(8, MapLayout.tiled(4).bitCount(jedis, CarTestUtils.MAP_KEY));
+        } finally {
+            Car.setMapLayout(MapLayout.single());
+        }
+    }
+
+    @Test
+    void tiledLayout_ScriptMove() {
+        Car.setMapLayout(MapLayout.tiled(4));
+        try {
+            jedis.set(CarTestUtils.CAR_KEY, "3,3");
+            jedis.setbit("obstacle_map:0:0", 15, true);
+            jedis.rpush(CarTestUtils.TASK_KEY, "4,3", "4,4");
+
+            newCar().moveByScript(jedis, 2);
+
+            assertEquals("4,4", jedis.get(CarTestUtils.CAR_KEY));
+            assertFalse(jedis.getbit("obstacle_map:0:0", 15));
+            assertFalse(jedis.getbit("obstacle_map:1:0", 12));
+            assertTrue(jedis.getbit("obstacle_map:1:1", 0));
+            assertTrue(jedis.getbit("map:0:1", 3));//(3,4)
+            assertTrue(jedis.getbit("map:1:1", 5));//(5,5)
+            assertEquals(1, MapLayout.tiled(4).bitCount(jedis, CarTestUtils.OBSTACLE_KEY));
+        } finally {
+            Car.setMapLayout(MapLayout.single());
+        }
+    }
+
+    @Test
+    void journal_ReplayRebuildsPositionAndMaps() throws IOException {
+        java.nio.file.Path dir = java.nio.file.Files.createTempDirectory("car-journal");
+        jedis.setbit(CarTestUtils.OBSTACLE_KEY, 0, true);
+        jedis.rpush(CarTestUtils.TASK_KEY, "1,0", "2,0", "2,1", "2,2", "3,2");
+        try (MoveJournal journal = MoveJournal.open(dir, 4096, 0)) {
+            Car.setJournal(journal);
+            Car car = newCar();
+            car.moveByScript(jedis, 2);
+            car.moveSteps(jedis, 2);
+            jedis.lpop(CarTestUtils.TASK_KEY);
+            car.updatePosition(jedis, Coords.pack(3, 2));
+        } finally {
+            Car.setJournal(null);
+        }
+        byte[] map = jedis.get(CarTestUtils.MAP_KEY.getBytes());
+        byte[] obstacles = jedis.get(CarTestUtils.OBSTACLE_KEY.getBytes());
+
+        JournalReplay.State state = JournalReplay.load(dir);
+        assertEquals(5, state.records);
+        jedis.flushAll();
+        JournalReplay.rebuild(state, jedis, MapLayout.single());
+
+        assertEquals("3,2", jedis.get(CarTestUtils.CAR_KEY));
+        assertArrayEquals(map, jedis.get(CarTestUtils.MAP_KEY.getBytes()));
+        assertArrayEquals(obstacles, jedis.get(CarTestUtils.OBSTACLE_KEY.getBytes()));
+    }
+
+    @Test
+    void pathHistory_RangeByTime() {
+        for (long t = 1000; t <= 3000; t += 1000) {
+            jedis.xadd(CarTestUtils.PATH_KEY, new StreamEntryID(t, 0),
+                    java.util.Collections.singletonMap("p", (t / 1000) + ",0"));
+        }
+
+        java.util.List<PathHistory.Entry> window = PathHistory.range(jedis, CarTestUtils.CAR_ID, 1500, 3000);
+        assertEquals(2, window.size());
+        assertEquals(2000, window.get(0).timestamp);
+        assertEquals(2, window.get(0).x);
+        assertEquals(3, PathHistory.latest(jedis, CarTestUtils.CAR_ID, 1).get(0).x);
+    }
+}
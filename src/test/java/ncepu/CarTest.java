@@ -6,6 +6,8 @@ import org.junit.jupiter.api.Test;
 import org.mockito.MockedStatic;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.Transaction;
+import redis.clients.jedis.params.XAddParams;
+import redis.clients.jedis.util.SafeEncoder;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
@@ -14,6 +16,8 @@ import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.*;
 
 class CarTest {
+    // setJedisProvider只生效一次，通过静态字段让每个测试拿到自己的mock
+    private static Jedis currentMock;
     private Jedis jedisMock;
     private Car.Position startPosition;
     private Car.Position targetPosition;
@@ -21,7 +25,8 @@ class CarTest {
     @BeforeEach
     void setUp() {
         jedisMock = mock(Jedis.class);
-        Car.setJedisProvider(() -> jedisMock);
+        currentMock = jedisMock;
+        Car.setJedisProvider(() -> currentMock);
 
         // 初始化位置
         startPosition = new Car.Position(0, 0);
@@ -61,9 +66,12 @@ class CarTest {
             // 1. 确保位置存在且正确
             when(jedisMock.exists(CarTestUtils.CAR_KEY)).thenReturn(true);
             when(jedisMock.get(CarTestUtils.CAR_KEY)).thenReturn(startPosition.toString());
+            when(jedisMock.get(SafeEncoder.encode(CarTestUtils.CAR_KEY)))
+                    .thenReturn(SafeEncoder.encode(startPosition.toString()));
 
             // 2. 设置任务队列
             List<String> taskList = Collections.singletonList(targetPosition.toString());
+            when(jedisMock.llen(CarTestUtils.TASK_KEY)).thenReturn((long) taskList.size());
             when(jedisMock.lrange(CarTestUtils.TASK_KEY, 0, -1)).thenReturn(taskList);
             when(jedisMock.lpop(CarTestUtils.TASK_KEY)).thenReturn(targetPosition.toString());
 
@@ -87,9 +95,14 @@ class CarTest {
                 mapStatus.put(offset, false);
             });
 
-            when(jedisMock.getbit(eq("map"), anyLong())).thenAnswer(invocation -> {
-                long offset = invocation.getArgument(1);
-                return mapStatus.getOrDefault(offset, false);
+            when(jedisMock.bitfield(eq("map"), (String[]) any())).thenAnswer(invocation -> {
+                Object[] args = invocation.getArguments();
+                List<Long> values = new ArrayList<>();
+                for (int i = 3; i < args.length; i += 3) {//GET u1 <offset>
+                    long offset = Long.parseLong((String) args[i]);
+                    values.add(mapStatus.getOrDefault(offset, false) ? 1L : 0L);
+                }
+                return values;
             });
 
             // 4. 障碍检查
@@ -112,7 +125,7 @@ class CarTest {
             verify(jedisMock).multi();
             verify(txMock).setbit(CarTestUtils.OBSTACLE_KEY, startOffset, false);
             verify(txMock).set(CarTestUtils.CAR_KEY, targetPosition.toString());
-            verify(txMock).rpush(eq(CarTestUtils.PATH_KEY), anyString());
+            verify(txMock).xadd(eq(CarTestUtils.PATH_KEY), any(XAddParams.class), anyMap());
         }
     }
 
@@ -136,7 +149,7 @@ class CarTestUtils {
     static final String CAR_KEY = "Car001";
     static final String TASK_KEY = "Car001TaskList";
     static final String OBSTACLE_KEY = "obstacle_map";
-    static final String PATH_KEY = "Car001Path";
+    static final String PATH_KEY = "Car001PathStream";
     static final String MAP_KEY = "map";
 
     static int positionToOffset(Car.Position pos, int width) {
@@ -0,0 +1,60 @@
+package ncepu;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CircuitBreakerTest {
+
+    @Test
+    void opensAfterThresholdAndProbesOnceWhenHalfOpen() {
+        AtomicLong now = new AtomicLong();
+        CircuitBreaker breaker = new CircuitBreaker(3, 1000, 4000, now::get);
+
+        breaker.recordFailure();
+        breaker.recordFailure();
+        breaker.clearFailures();//中间有一次成功，重新计数
+        breaker.recordFailure();
+        breaker.recordFailure();
+        assertTrue(breaker.isClosed());
+        breaker.recordFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.state());
+        assertFalse(breaker.allowRequest());
+
+        now.set(1000);
+        assertTrue(breaker.allowRequest());//半开：只放行一次探测
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.state());
+        assertFalse(breaker.allowRequest());
+
+        breaker.recordFailure();//探测失败，冷却加倍
+        assertEquals(CircuitBreaker.State.OPEN, breaker.state());
+        now.set(2999);
+        assertFalse(breaker.allowRequest());
+        now.set(3000);
+        assertTrue(breaker.allowRequest());
+
+        breaker.clearFailures();//半开时借连接成功不关闭熔断
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.state());
+        breaker.recordSuccess();
+        assertTrue(breaker.isClosed());
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    void openTimeIsCapped() {
+        AtomicLong now = new AtomicLong();
+        CircuitBreaker breaker = new CircuitBreaker(1, 1000, 2500, now::get);
+        breaker.recordFailure();
+        for (int i = 0; i < 4; i++) {
+            now.addAndGet(2500);
+            assertTrue(breaker.allowRequest());
+            breaker.recordFailure();
+        }
+        now.addAndGet(2499);
+        assertFalse(breaker.allowRequest());
+        now.addAndGet(1);
+        assertTrue(breaker.allowRequest());
+    }
+}
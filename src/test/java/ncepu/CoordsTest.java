@@ -0,0 +1,40 @@
+package ncepu;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CoordsTest {
+
+    @Test
+    void parseAndFormat() {
+        long coord = Coords.parse("12,345");
+        assertEquals(12, Coords.x(coord));
+        assertEquals(345, Coords.y(coord));
+        assertEquals("12,345", Coords.format(coord));
+        assertEquals(Coords.pack(-1, 7), Coords.parse("-1,7"));
+        assertEquals(Coords.pack(3, 4), Coords.parse("3,4|1700000000000"));//旧路径记录格式
+    }
+
+    @Test
+    void parsesRedisBytes() {
+        assertEquals(Coords.pack(12, 345), Coords.parse("12,345".getBytes(StandardCharsets.US_ASCII)));
+        assertThrows(NumberFormatException.class, () -> Coords.parse("a,4".getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    @Test
+    void rejectsMalformedInput() {
+        assertThrows(NumberFormatException.class, () -> Coords.parse("3"));
+        assertThrows(NumberFormatException.class, () -> Coords.parse(",4"));
+        assertThrows(NumberFormatException.class, () -> Coords.parse("a,4"));
+        assertThrows(NumberFormatException.class, () -> Coords.parse("3,"));
+        assertThrows(NumberFormatException.class, () -> Coords.parse("99999999999,1"));
+    }
+
+    @Test
+    void offsetDoesNotOverflow() {
+        assertEquals(3_000_000_000L + 5, Coords.offset(Coords.pack(5, 60_000), 50_000));
+    }
+}
@@ -0,0 +1,133 @@
+package ncepu;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import redis.clients.jedis.Jedis;
+import redis.embedded.RedisServer;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 使用嵌入式Redis验证节拍调度器一拍内推进多辆小车
+ */
+class FleetSchedulerTest {
+    private static final int PORT = 6392;
+    private static RedisServer server;
+    private Jedis jedis;
+
+    @BeforeAll
+    static void startServer() throws IOException {
+        server = new RedisServer(PORT);
+        server.start();
+    }
+
+    @AfterAll
+    static void stopServer() throws IOException {
+        if (server != null) server.stop();
+    }
+
+    @BeforeEach
+    void setUp() {
+        jedis = new Jedis("localhost", PORT);
+        jedis.flushAll();
+        jedis.set("mapWidth", "10");
+        jedis.set("mapLength", "10");
+    }
+
+    private void place(String carId, int x, int y, String... route) {
+        jedis.set("Car" + carId, x + "," + y);
+        jedis.setbit("obstacle_map", y * 10 + x, true);
+        jedis.rpush("Car" + carId + "TaskList", route);
+        jedis.sadd(FleetScheduler.ACTIVE_KEY, carId);
+    }
+
+    @Test
+    void tick_FollowingCarMovesIntoVacatedCell() {
+        place("001", 0, 0, "1,0", "1,1", "1,2");
+        place("002", 1, 0, "2,0", "3,0");
+
+        assertEquals(2, new FleetScheduler(null, 100).tick(jedis));
+
+        assertEquals("1,0", jedis.get("Car001"));
+        assertEquals("2,0", jedis.get("Car002"));
+        assertEquals(2, jedis.llen("Car001TaskList"));
+        assertEquals(1, jedis.llen("Car002TaskList"));
+        assertEquals(1, jedis.xlen("Car001PathStream"));
+        assertFalse(jedis.getbit("obstacle_map", 0));
+        assertTrue(jedis.getbit("obstacle_map", 1));
+        assertTrue(jedis.getbit("obstacle_map", 2));
+        assertTrue(jedis.getbit("map", 13));//(3,1)被(2,0)点亮
+    }
+
+    @Test
+    void tick_SameTargetFirstCarWinsSecondReportsObstacle() {
+        place("001", 0, 0, "1,0", "1,1");
+        place("002", 2, 0, "1,0", "1,5");
+
+        assertEquals(1, new FleetScheduler(null, 100).tick(jedis));
+
+        assertEquals("1,0", jedis.get("Car001"));
+        assertEquals("2,0", jedis.get("Car002"));
+        assertFalse(jedis.exists("Car002TaskList"));
+        assertTrue(jedis.sismember("obstacle_events", "002"));
+    }
+
+    @Test
+    void tick_LitRouteIsDeleted() {
+        place("001", 0, 0, "1,0");
+        for (int x = 0; x < 3; x++) {
+            for (int y = 0; y < 2; y++) {
+                jedis.setbit("map", y * 10 + x, true);
+            }
+        }
+
+        assertEquals(0, new FleetScheduler(null, 100).tick(jedis));
+
+        assertEquals("0,0", jedis.get("Car001"));
+        assertFalse(jedis.exists("Car001TaskList"));
+    }
+
+    @Test
+    void tick_SeededCarLeavesActiveSetWhenRouteEnds() {
+        place("001", 0, 0, "1,0");
+        jedis.del(FleetScheduler.ACTIVE_KEY);//协调端没有SADD，启动时扫描补入
+        assertEquals(1, FleetScheduler.seed(jedis));
+
+        FleetScheduler scheduler = new FleetScheduler(null, 100);
+        assertEquals(1, scheduler.tick(jedis));
+        assertEquals("1,0", jedis.get("Car001"));
+        assertFalse(jedis.sismember(FleetScheduler.ACTIVE_KEY, "001"));
+
+        // 另一辆车的任务队列被替换不影响其他车
+        place("002", 5, 5, "5,6");
+        place("003", 8, 8, "8,7");
+        jedis.del("Car003TaskList");
+        jedis.rpush("Car003TaskList", "7,8");
+        assertEquals(2, scheduler.tick(jedis));
+        assertEquals("5,6", jedis.get("Car002"));
+        assertEquals("7,8", jedis.get("Car003"));
+        assertEquals(0, scheduler.tick(jedis));
+        assertFalse(jedis.exists(FleetScheduler.ACTIVE_KEY));
+    }
+
+    @Test
+    void activate_AddsCarDrivenOnNextTick() {
+        jedis.set("Car004", "7,7");
+        jedis.setbit("obstacle_map", 77, true);
+        jedis.rpush("Car004TaskList", "7,8");
+        JedisProvider previous = Car.replaceJedisProvider(() -> new Jedis("localhost", PORT));
+        try {
+            FleetScheduler.activate(List.of("004"));//MQ指令只激活小车
+        } finally {
+            Car.replaceJedisProvider(previous);
+        }
+
+        assertEquals(1, new FleetScheduler(null, 100).tick(jedis));
+        assertEquals("7,8", jedis.get("Car004"));
+    }
+}
@@ -0,0 +1,33 @@
+package ncepu;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LatencyHistogramTest {
+
+    @Test
+    void bucketsCoverEveryValue() {
+        long[] samples = {0, 1, 3, 4, 7, 8, 9, 15, 1000, 123_456_789L, Long.MAX_VALUE};
+        for (long value : samples) {
+            int index = LatencyHistogram.index(value);
+            assertTrue(LatencyHistogram.upperBound(index) >= value);
+            assertTrue(index == 0 || LatencyHistogram.upperBound(index - 1) < value);
+        }
+    }
+
+    @Test
+    void percentilesWithinBucketError() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        assertEquals(1000, histogram.count());
+        assertEquals(500_000, histogram.percentile(0.5), 500_000 * 0.25);
+        assertEquals(990_000, histogram.percentile(0.99), 990_000 * 0.25);
+        assertEquals(1_000_000, histogram.percentile(1.0));
+
+        histogram.reset();
+        assertEquals(0, histogram.percentile(0.99));
+    }
+}
@@ -0,0 +1,20 @@
+package ncepu;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LogLimiterTest {
+
+    @Test
+    void repeatedKeyIsSuppressedWithinWindow() throws InterruptedException {
+        LogLimiter limiter = new LogLimiter(200);
+        assertEquals(0, limiter.acquire("reconnect"));
+        assertEquals(-1, limiter.acquire("reconnect"));
+        assertEquals(-1, limiter.acquire("reconnect"));
+        assertEquals(0, limiter.acquire("other"));//不同key互不影响
+
+        Thread.sleep(250);
+        assertEquals(2, limiter.acquire("reconnect"));//新窗口带上被省略的条数
+    }
+}
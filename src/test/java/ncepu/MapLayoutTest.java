@@ -0,0 +1,37 @@
+package ncepu;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MapLayoutTest {
+
+    @Test
+    void singleLayoutKeepsGlobalOffset() {
+        MapLayout layout = MapLayout.single();
+        assertEquals("map", layout.key("map", 1234, 100));
+        assertEquals(1234, layout.bit(1234, 100));
+        assertEquals(1, layout.group("map", new long[]{1, 500, 9999}, 100).size());
+    }
+
+    @Test
+    void tiledLayoutAddressesTileAndLocalBit() {
+        MapLayout layout = MapLayout.tiled(256);
+        long offset = Coords.offset(Coords.pack(70_000, 300), 100_000);
+        assertEquals("map:273:1", layout.key("map", offset, 100_000));//70000/256=273, 300/256=1
+        assertEquals(44 * 256 + 112, layout.bit(offset, 100_000));//300%256=44, 70000%256=112
+
+        // 同一块内的格子一组，跨块的格子各自一组
+        long[] offsets = {
+                Coords.offset(Coords.pack(0, 0), 1000),
+                Coords.offset(Coords.pack(255, 255), 1000),
+                Coords.offset(Coords.pack(256, 0), 1000)};
+        Map<String, List<Integer>> tiles = layout.group("obstacle_map", offsets, 1000);
+        assertEquals(List.of(0, 1), tiles.get("obstacle_map:0:0"));
+        assertEquals(List.of(2), tiles.get("obstacle_map:1:0"));
+        assertThrows(IllegalArgumentException.class, () -> MapLayout.tiled(0));
+    }
+}
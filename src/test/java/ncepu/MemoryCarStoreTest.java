@@ -0,0 +1,118 @@
+package ncepu;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 进程内存储上的移动语义（不需要Redis）
+ */
+class MemoryCarStoreTest {
+    private MemoryCarStore store;
+
+    @BeforeEach
+    void setUp() {
+        store = new MemoryCarStore(10, 10);
+        Car.setStore(store);
+    }
+
+    @AfterEach
+    void tearDown() {
+        Car.setStore(null);
+    }
+
+    private Car newCar(String carId, int x, int y) {
+        store.setPosition(carId, Coords.pack(x, y));
+        Car car = new Car(carId);
+        assertTrue(car.initialize());
+        return car;
+    }
+
+    @Test
+    void advance_MovesLightsAndRecordsPath() {
+        Car car = newCar("001", 0, 0);
+        store.pushRoute("001", Coords.pack(1, 0), Coords.pack(1, 1), Coords.pack(1, 2));
+
+        assertEquals(2, car.advance(2));
+
+        assertEquals(Coords.pack(1, 1), store.position("001"));
+        assertEquals(1, store.routeLength("001"));
+        assertFalse(store.isObstacle(0));
+        assertFalse(store.isObstacle(1));
+        assertTrue(store.isObstacle(11));
+        assertEquals(9, store.exploredCount());//(1,0)和(1,1)周围的3*3合并后为(0..2, 0..2)
+        PathHistory.Entry latest = store.latestPath("001", 1).get(0);//从新到旧
+        assertEquals(1, latest.x);
+        assertEquals(1, latest.y);
+        assertEquals(2, store.latestPath("001", 10).size());
+    }
+
+    @Test
+    void advance_ObstacleClearsRouteAndReports() {
+        Car car = newCar("001", 0, 0);
+        newCar("002", 2, 0);
+        store.pushRoute("001", Coords.pack(1, 0), Coords.pack(2, 0), Coords.pack(3, 0));
+
+        car.advance(10);
+
+        assertEquals(Coords.pack(1, 0), store.position("001"));
+        assertEquals(0, store.routeLength("001"));
+        assertTrue(store.obstacleEvents().contains("001"));
+        assertTrue(store.isObstacle(2));//另一辆车的位置不受影响
+    }
+
+    @Test
+    void advance_LitRouteIsCleared() {
+        Car car = newCar("001", 0, 0);
+        store.pushRoute("001", Coords.pack(1, 0), Coords.pack(1, 1));
+        car.advance(1);//点亮(0..2, 0..1)
+        store.pushRoute("001", Coords.pack(0, 0));//剩余路径(1,1)、(0,0)和终点周围3*3都已点亮
+
+        car.advance(1);
+        assertEquals(0, store.routeLength("001"));
+        assertEquals(Coords.pack(1, 0), store.position("001"));
+    }
+
+    @Test
+    void advance_RouteLitByAnotherCarIsCleared() {
+        Car car = newCar("001", 0, 0);
+        store.pushRoute("001", Coords.pack(1, 0), Coords.pack(2, 0), Coords.pack(3, 0));
+        car.advance(1);//(2,0)、(3,0)和终点周围仍有黑块
+        Car other = newCar("002", 3, 3);
+        store.pushRoute("002", Coords.pack(3, 2), Coords.pack(3, 1));//点亮(2..4, 0..3)
+
+        assertEquals(2, other.advance(2));
+        car.advance(1);
+
+        assertEquals(Coords.pack(1, 0), store.position("001"));
+        assertEquals(0, store.routeLength("001"));
+    }
+
+    @Test
+    void bits_OutOfRangeIsIgnored() {
+        MemoryCarStore.Bits bits = new MemoryCarStore.Bits(10, false);
+        bits.set(9);
+        assertTrue(bits.get(9));
+        assertFalse(bits.get(10));
+        assertFalse(bits.get(64));//超出long数组
+        assertFalse(bits.get(-1));
+        assertFalse(bits.testAndSet(10));//与9同一个字，不写入size以外的位
+        assertFalse(bits.testAndSet(10));
+        bits.clear(64);
+        assertEquals(1, bits.cardinality());
+    }
+
+    @Test
+    void advance_OutOfMapCellDoesNotThrow() {
+        Car car = newCar("001", 0, 9);
+        store.pushRoute("001", Coords.pack(0, 20), Coords.pack(0, 9));//超出地图的格子
+
+        assertEquals(2, car.advance(2));
+
+        assertEquals(Coords.pack(0, 9), store.position("001"));
+        assertFalse(store.isObstacle(200));
+        assertTrue(store.isObstacle(90));
+    }
+}
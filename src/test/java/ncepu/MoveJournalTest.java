@@ -0,0 +1,69 @@
+package ncepu;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MoveJournalTest {
+
+    @Test
+    void rollsSegmentsAndReadsBackInOrder() throws IOException {
+        Path dir = Files.createTempDirectory("move-journal");
+        try (MoveJournal journal = MoveJournal.open(dir, 4096, 0)) {
+            for (int i = 0; i < 200; i++) {
+                journal.append("Car" + (i % 3), Coords.pack(i % 10, 0), Coords.pack((i + 1) % 10, 0), 10, 10);
+            }
+        }
+        assertTrue(MoveJournal.segments(dir).size() > 1);
+
+        List<MoveJournal.Record> records = read(dir);
+        assertEquals(200, records.size());
+        for (int i = 0; i < 200; i++) {
+            MoveJournal.Record record = records.get(i);
+            assertEquals("Car" + (i % 3), record.carId);
+            assertEquals(Coords.pack((i + 1) % 10, 0), record.to);
+        }
+        // (0,0)在角上，3*3中只有4格在地图内
+        MoveJournal.Record corner = records.get(9);
+        assertArrayEquals(new long[]{0, 10, 1, 11}, corner.litOffsets());
+    }
+
+    @Test
+    void reopenSkipsTornRecordAndContinues() throws IOException {
+        Path dir = Files.createTempDirectory("move-journal");
+        try (MoveJournal journal = MoveJournal.open(dir, 4096, 0)) {
+            journal.append("Car001", Coords.NONE, Coords.pack(1, 1), 10, 10);
+            journal.append("Car001", Coords.pack(1, 1), Coords.pack(2, 1), 10, 10);
+        }
+        // 模拟崩溃时写了一半的第三条记录：长度已写入，内容不完整
+        Path segment = MoveJournal.segments(dir).get(0);
+        int end = 2 * (MoveJournal.HEADER + "Car001".length());
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(12).putInt(MoveJournal.HEADER + 6).putInt(0x12345678).putInt(7).flip(), end);
+        }
+        assertEquals(2, read(dir).size());
+
+        try (MoveJournal journal = MoveJournal.open(dir, 4096, 0)) {
+            journal.append("Car001", Coords.pack(2, 1), Coords.pack(3, 1), 10, 10);
+        }
+        List<MoveJournal.Record> records = read(dir);
+        assertEquals(3, records.size());
+        assertEquals(Coords.NONE, records.get(0).from);
+        assertEquals(Coords.pack(3, 1), records.get(2).to);
+    }
+
+    private static List<MoveJournal.Record> read(Path dir) throws IOException {
+        List<MoveJournal.Record> records = new ArrayList<>();
+        MoveJournal.read(dir, records::add);
+        return records;
+    }
+}
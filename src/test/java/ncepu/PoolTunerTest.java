@@ -0,0 +1,38 @@
+package ncepu;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PoolTunerTest {
+
+    @Test
+    void followsBurstsQuicklyAndDecaysSlowly() {
+        PoolTuner tuner = new PoolTuner(5, 20, 100);
+        assertEquals(5, tuner.minIdle());
+        assertEquals(20, tuner.maxIdle());
+
+        tuner.update(40, 0);
+        assertEquals(40, tuner.minIdle());
+        assertEquals(60, tuner.maxIdle());
+
+        tuner.update(40, 3);//有慢借用，多预留1/4
+        assertEquals(50, tuner.minIdle());
+
+        tuner.update(0, 0);//需求消失，每周期回落1/4
+        assertEquals(38, tuner.minIdle());
+        for (int i = 0; i < 30; i++) {
+            tuner.update(0, 0);
+        }
+        assertEquals(5, tuner.minIdle());
+        assertEquals(20, tuner.maxIdle());
+    }
+
+    @Test
+    void neverExceedsMaxTotal() {
+        PoolTuner tuner = new PoolTuner(5, 20, 30);
+        tuner.update(100, 10);
+        assertEquals(30, tuner.minIdle());
+        assertEquals(30, tuner.maxIdle());
+    }
+}
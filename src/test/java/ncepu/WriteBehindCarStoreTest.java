@@ -0,0 +1,206 @@
+package ncepu;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.StreamEntryID;
+import redis.clients.jedis.resps.StreamEntry;
+import redis.embedded.RedisServer;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 写回模式：从嵌入式Redis加载，内存中移动，写回后检查原来的key
+ */
+class WriteBehindCarStoreTest {
+    private static final int PORT = 6393;
+    private static RedisServer server;
+    private Jedis jedis;
+    private WriteBehindCarStore store;
+
+    @BeforeAll
+    static void startServer() throws IOException {
+        server = new RedisServer(PORT);
+        server.start();
+    }
+
+    @AfterAll
+    static void stopServer() throws IOException {
+        if (server != null) server.stop();
+    }
+
+    @BeforeEach
+    void setUp() {
+        jedis = new Jedis("localhost", PORT);
+        jedis.flushAll();
+        jedis.set("mapWidth", "10");
+        jedis.set("mapLength", "10");
+        jedis.set(CarTestUtils.CAR_KEY, "0,0");
+        jedis.setbit(CarTestUtils.OBSTACLE_KEY, 0, true);
+        jedis.setbit(CarTestUtils.OBSTACLE_KEY, 3, true);//(3,0)有其他小车
+        jedis.setbit(CarTestUtils.MAP_KEY, 99, true);
+    }
+
+    @AfterEach
+    void tearDown() {
+        Car.setStore(null);
+        jedis.close();
+    }
+
+    private Car load(MapLayout layout) {
+        store = WriteBehindCarStore.load(() -> new Jedis("localhost", PORT), layout, 1000);
+        Car.setStore(store);
+        Car car = new Car(CarTestUtils.CAR_ID);
+        assertTrue(car.initialize());
+        return car;
+    }
+
+    @Test
+    void movesInMemoryAndFlushesToExistingKeys() {
+        jedis.rpush(CarTestUtils.TASK_KEY, "1,0", "1,1", "2,1", "3,1");
+        Car car = load(MapLayout.single());
+        assertTrue(store.isObstacle(3));
+        assertTrue(store.isExplored(99));
+
+        car.advance(2);
+        assertEquals("0,0", jedis.get(CarTestUtils.CAR_KEY));//写回前Redis不变
+        store.flush();
+
+        assertEquals("1,1", jedis.get(CarTestUtils.CAR_KEY));
+        assertEquals(List.of("2,1", "3,1"), jedis.lrange(CarTestUtils.TASK_KEY, 0, -1));
+        assertEquals(2, jedis.xlen(CarTestUtils.PATH_KEY));
+        assertFalse(jedis.getbit(CarTestUtils.OBSTACLE_KEY, 0));
+        assertTrue(jedis.getbit(CarTestUtils.OBSTACLE_KEY, 11));
+        assertTrue(jedis.getbit(CarTestUtils.OBSTACLE_KEY, 3));
+        assertEquals(10, jedis.bitcount(CarTestUtils.MAP_KEY));//(0..2, 0..2) + (9,9)
+
+        //外部追加的任务在写回后同步到内存
+        jedis.rpush(CarTestUtils.TASK_KEY, "3,2");
+        store.flush();
+        assertEquals(3, store.routeLength(CarTestUtils.CAR_ID));
+
+        car.advance(3);//走完剩余3格，关闭时写回
+        store.close();
+        assertEquals("3,2", jedis.get(CarTestUtils.CAR_KEY));
+        assertFalse(jedis.exists(CarTestUtils.TASK_KEY));
+        assertEquals(5, jedis.xlen(CarTestUtils.PATH_KEY));
+    }
+
+    @Test
+    void obstacleAndReplacedRouteOnTiledLayout() {
+        MapLayout layout = MapLayout.tiled(4);
+        jedis.del(CarTestUtils.OBSTACLE_KEY, CarTestUtils.MAP_KEY);
+        jedis.setbit("obstacle_map:0:0", 0, true);
+        jedis.setbit("obstacle_map:0:0", 3, true);
+        jedis.setbit("map:2:2", 5, true);//(9,9)
+        jedis.rpush(CarTestUtils.TASK_KEY, "1,0", "2,0", "3,0", "4,0");
+        Car car = load(layout);
+        assertTrue(store.isObstacle(3));
+        assertTrue(store.isExplored(99));
+
+        car.advance(10);
+        store.flush();
+        assertEquals("2,0", jedis.get(CarTestUtils.CAR_KEY));
+        assertFalse(jedis.exists(CarTestUtils.TASK_KEY));
+        assertTrue(jedis.sismember("obstacle_events", CarTestUtils.CAR_ID));
+        assertTrue(jedis.getbit("obstacle_map:0:0", 2));
+        assertFalse(jedis.getbit("obstacle_map:0:0", 0));
+        assertFalse(jedis.exists(CarTestUtils.OBSTACLE_KEY));
+
+        //协调端下发新路径，随后替换成更短的路径：长度变短时整体重新读取
+        jedis.rpush(CarTestUtils.TASK_KEY, "2,1", "2,2", "2,3");
+        store.flush();
+        assertEquals(3, store.routeLength(CarTestUtils.CAR_ID));
+        jedis.del(CarTestUtils.TASK_KEY);
+        jedis.rpush(CarTestUtils.TASK_KEY, "2,1");
+        store.flush();
+        assertEquals(1, store.routeLength(CarTestUtils.CAR_ID));
+        car.advance(1);
+        store.close();
+        assertEquals("2,1", jedis.get(CarTestUtils.CAR_KEY));
+        assertTrue(jedis.getbit("obstacle_map:0:0", 6));
+    }
+
+    @Test
+    void replacedRouteIsNotTrimmedAndLatePositionIsLoaded() {
+        jedis.rpush(CarTestUtils.TASK_KEY, "1,0", "1,1");
+        Car car = load(MapLayout.single());
+
+        //本地走了旧路径的一格，写回前协调端把路径整体替换
+        car.advance(1);
+        jedis.del(CarTestUtils.TASK_KEY);
+        jedis.rpush(CarTestUtils.TASK_KEY, "2,0", "2,1", "2,2");
+        store.flush();
+        assertEquals("1,0", jedis.get(CarTestUtils.CAR_KEY));
+        assertEquals(List.of("2,0", "2,1", "2,2"), jedis.lrange(CarTestUtils.TASK_KEY, 0, -1));
+        assertEquals(3, store.routeLength(CarTestUtils.CAR_ID));
+
+        //首次使用时还没有位置的小车，协调端之后写入的位置能被读到
+        Car late = new Car("002");
+        assertFalse(late.initialize());
+        jedis.set("Car002", "5,5");
+        assertTrue(late.initialize());
+        assertEquals(Coords.pack(5, 5), store.position("002"));
+    }
+
+    @Test
+    void longerReplacementIsReloaded() {
+        jedis.rpush(CarTestUtils.TASK_KEY, "1,0", "1,1");
+        Car car = load(MapLayout.single());
+
+        //协调端把路径替换成更长的新路径：前缀不同，整体重新读取而不是只追加尾部
+        jedis.del(CarTestUtils.TASK_KEY);
+        jedis.rpush(CarTestUtils.TASK_KEY, "0,1", "0,2", "0,3");
+        store.flush();
+        assertEquals(3, store.routeLength(CarTestUtils.CAR_ID));
+
+        car.advance(1);
+        store.flush();
+        assertEquals("0,1", jedis.get(CarTestUtils.CAR_KEY));
+        assertEquals(List.of("0,2", "0,3"), jedis.lrange(CarTestUtils.TASK_KEY, 0, -1));
+    }
+
+    @Test
+    void pathKeepsMoveTimesAndTrimSurvivesScriptFlush() throws InterruptedException {
+        jedis.xadd(CarTestUtils.PATH_KEY, new StreamEntryID(System.currentTimeMillis() + 60_000, 0),
+                Map.of(PathHistory.FIELD, "0,0"));//已有记录的ID晚于本机时间
+        jedis.rpush(CarTestUtils.TASK_KEY, "1,0", "1,1", "2,1", "3,1");
+        Car car = load(MapLayout.single());
+
+        car.advance(1);
+        Thread.sleep(20);
+        car.advance(1);
+        jedis.scriptFlush();//脚本缓存被清空
+        store.flush();
+
+        assertEquals(List.of("2,1", "3,1"), jedis.lrange(CarTestUtils.TASK_KEY, 0, -1));
+        List<StreamEntry> entries = jedis.xrange(CarTestUtils.PATH_KEY, "-", "+");
+        assertEquals(3, entries.size());
+        assertTrue(entries.get(1).getID().compareTo(entries.get(0).getID()) > 0);
+        assertTrue(entries.get(2).getID().compareTo(entries.get(1).getID()) > 0);
+
+        // 本机时间晚于已有记录后按移动时间写入，一个写回周期内的两次移动时间不同
+        jedis.del(CarTestUtils.PATH_KEY);
+        store.close();
+        store = WriteBehindCarStore.load(() -> new Jedis("localhost", PORT), MapLayout.single(), 1000);
+        Car.setStore(store);
+        car = new Car(CarTestUtils.CAR_ID);
+        assertTrue(car.initialize());
+        long before = System.currentTimeMillis();
+        car.advance(1);
+        Thread.sleep(20);
+        car.advance(1);
+        long after = System.currentTimeMillis();
+        store.flush();
+        List<PathHistory.Entry> path = PathHistory.range(jedis, CarTestUtils.CAR_ID, before, after);
+        assertEquals(2, path.size());
+        assertTrue(path.get(1).timestamp - path.get(0).timestamp >= 20);
+    }
+}